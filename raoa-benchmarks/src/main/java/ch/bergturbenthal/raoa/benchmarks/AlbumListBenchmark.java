@@ -0,0 +1,62 @@
+package ch.bergturbenthal.raoa.benchmarks;
+
+import ch.bergturbenthal.raoa.libs.service.impl.BareAlbumList;
+import ch.bergturbenthal.raoa.libs.service.impl.DefaultAutoaddIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The periodic rescan of the repository root (resetCache) with all albums already known, which is what happens every
+ * time outside of startup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AlbumListBenchmark {
+    @Param({ "100", "1000" })
+    public int albumCount;
+    @Param({ "100" })
+    public int entryCount;
+
+    private BenchmarkEnvironment environment;
+    private BareAlbumList albumList;
+
+    @Setup
+    public void setup() throws IOException {
+        environment = new BenchmarkEnvironment();
+        for (int i = 0; i < albumCount; i++)
+            SyntheticAlbums.createAlbum(environment.getRepositoryRoot(), String.format("album-%04d", i), entryCount,
+                    1024, 0.3);
+        albumList = new BareAlbumList(environment.getProperties(), environment.getMeterRegistry(),
+                environment.getAsyncService(), environment.getMetadataCache(), environment.getRepositoryPool(),
+                environment.getScheduledExecutorService(), new DefaultAutoaddIndex(environment.getMeterRegistry()));
+        albumList.reconcile().block();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        albumList.close();
+        environment.close();
+    }
+
+    @Benchmark
+    public void resetCache() {
+        albumList.reconcile().block();
+    }
+}
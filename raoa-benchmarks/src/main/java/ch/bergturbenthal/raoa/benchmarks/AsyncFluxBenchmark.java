@@ -0,0 +1,112 @@
+package ch.bergturbenthal.raoa.benchmarks;
+
+import ch.bergturbenthal.raoa.libs.service.AsyncService;
+import ch.bergturbenthal.raoa.libs.service.impl.ExecutorAsyncService;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Lists a tree of 30000 entries, the size of a big album, once handing over every entry on its own and once in chunks.
+ * The plain walk without any handoff is the upper bound.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AsyncFluxBenchmark {
+    private static final int ENTRY_COUNT = 30000;
+
+    @Param({ "64", "512" })
+    public int chunkSize;
+
+    private ExecutorService executorService;
+    private AsyncService asyncService;
+    private File repositoryDir;
+    private Repository repository;
+    private ObjectId treeId;
+
+    @Setup
+    public void setup() throws IOException {
+        executorService = Executors.newFixedThreadPool(4);
+        asyncService = new ExecutorAsyncService(executorService, Optional.empty());
+        repositoryDir = Files.createTempDirectory("async-flux-benchmark").toFile();
+        repository = new FileRepositoryBuilder().setGitDir(repositoryDir).build();
+        repository.create(true);
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            final TreeFormatter formatter = new TreeFormatter();
+            for (int i = 0; i < ENTRY_COUNT; i++) {
+                // names with a fixed width are already in git order
+                final String name = String.format("IMG_%06d.JPG", i);
+                formatter.append(name, FileMode.REGULAR_FILE, inserter.insert(Constants.OBJ_BLOB,
+                        Constants.encode(name)));
+            }
+            treeId = inserter.insert(formatter);
+            inserter.flush();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        executorService.shutdownNow();
+        repository.close();
+        FileUtils.delete(repositoryDir, FileUtils.RECURSIVE);
+    }
+
+    private void walkTree(final Consumer<ObjectId> consumer) throws IOException {
+        try (ObjectReader reader = repository.newObjectReader(); TreeWalk treeWalk = new TreeWalk(reader)) {
+            treeWalk.reset(treeId);
+            treeWalk.setRecursive(true);
+            while (treeWalk.next())
+                consumer.accept(treeWalk.getObjectId(0));
+        }
+    }
+
+    @Benchmark
+    public Long walkOnly() throws IOException {
+        final long[] count = new long[1];
+        walkTree(id -> count[0]++);
+        return count[0];
+    }
+
+    @Benchmark
+    public Long perElement() {
+        return asyncService.<ObjectId> asyncFlux(this::walkTree).count().block();
+    }
+
+    @Benchmark
+    public Long chunked() {
+        return asyncService.<ObjectId> asyncFluxChunked(AsyncService.OperationClass.GIT_READ, chunkSize,
+                this::walkTree).count().block();
+    }
+}
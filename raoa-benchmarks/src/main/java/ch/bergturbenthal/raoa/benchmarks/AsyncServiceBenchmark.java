@@ -0,0 +1,114 @@
+package ch.bergturbenthal.raoa.benchmarks;
+
+import ch.bergturbenthal.raoa.libs.service.AsyncService;
+import ch.bergturbenthal.raoa.libs.service.impl.ExecutorAsyncService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares the fixed thread pool with virtual threads. The slow tasks stand for parsing big raw files, the quick ones
+ * for ref and tree lookups, which should not queue up behind the parses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AsyncServiceBenchmark {
+    private static final int POOL_SIZE = 10;
+    private static final int QUICK_TASKS = 100;
+    private static final long SLOW_TASK_MILLIS = 20;
+    private static final long QUICK_TASK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    @Param({ "pool", "virtual", "virtual-limited" })
+    public String executor;
+    @Param({ "10", "40" })
+    public int slowTasks;
+
+    private ExecutorService executorService;
+    private AsyncService asyncService;
+    private Mono<Void> runningSlowTasks;
+
+    private static long slowTask() throws InterruptedException {
+        Thread.sleep(SLOW_TASK_MILLIS);
+        return SLOW_TASK_MILLIS;
+    }
+
+    private static long quickTask() {
+        LockSupport.parkNanos(QUICK_TASK_NANOS);
+        return QUICK_TASK_NANOS;
+    }
+
+    @Setup
+    public void setup() {
+        switch (executor) {
+        case "pool" -> {
+            executorService = Executors.newFixedThreadPool(POOL_SIZE);
+            asyncService = new ExecutorAsyncService(executorService, Optional.empty());
+        }
+        case "virtual" -> {
+            executorService = Executors.newVirtualThreadPerTaskExecutor();
+            asyncService = new ExecutorAsyncService(executorService, Optional.empty());
+        }
+        case "virtual-limited" -> {
+            executorService = Executors.newVirtualThreadPerTaskExecutor();
+            final Map<AsyncService.OperationClass, Integer> limits = Collections
+                    .singletonMap(AsyncService.OperationClass.TIKA, POOL_SIZE / 2);
+            asyncService = new ExecutorAsyncService(executorService, Optional.empty(), limits);
+        }
+        default -> throw new IllegalArgumentException("Unknown executor " + executor);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Setup(Level.Invocation)
+    public void startSlowTasks() {
+        runningSlowTasks = Flux.range(0, slowTasks)
+                .flatMap(i -> asyncService.asyncMono(AsyncService.OperationClass.TIKA, AsyncServiceBenchmark::slowTask),
+                        slowTasks)
+                .then().cache();
+        runningSlowTasks.subscribe();
+    }
+
+    @TearDown(Level.Invocation)
+    public void awaitSlowTasks() {
+        runningSlowTasks.block();
+    }
+
+    /**
+     * Time until all quick lookups are done while the slow tasks are running
+     */
+    @Benchmark
+    public Long quickLookupsBesideSlowTasks() {
+        return Flux.range(0, QUICK_TASKS)
+                .flatMap(i -> asyncService.asyncMono(AsyncService.OperationClass.GIT_READ,
+                        AsyncServiceBenchmark::quickTask), QUICK_TASKS)
+                .reduce(0L, Long::sum).block();
+    }
+}
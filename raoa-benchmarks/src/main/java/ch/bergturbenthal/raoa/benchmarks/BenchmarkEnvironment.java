@@ -0,0 +1,98 @@
+package ch.bergturbenthal.raoa.benchmarks;
+
+import ch.bergturbenthal.raoa.libs.properties.Properties;
+import ch.bergturbenthal.raoa.libs.service.AsyncService;
+import ch.bergturbenthal.raoa.libs.service.impl.DefaultMetadataCache;
+import ch.bergturbenthal.raoa.libs.service.impl.ExecutorAsyncService;
+import ch.bergturbenthal.raoa.libs.service.impl.RepositoryPool;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.util.FileUtils;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * The services of raoa-libs wired like in the applications, on a temporary directory with the repository root, the
+ * thumbnails and the metadata cache. The repository root holds an empty meta repository like a deployed one, the
+ * album scan waits until it exists.
+ */
+public class BenchmarkEnvironment implements AutoCloseable {
+    private final Path baseDir;
+    private final ExecutorService executorService;
+    private final ScheduledExecutorService scheduledExecutorService;
+    private final Scheduler processScheduler;
+    private final Properties properties;
+    private final SimpleMeterRegistry meterRegistry;
+    private final AsyncService asyncService;
+    private final DefaultMetadataCache metadataCache;
+    private final RepositoryPool repositoryPool;
+
+    public BenchmarkEnvironment() throws IOException {
+        baseDir = Files.createTempDirectory("raoa-benchmark");
+        properties = new Properties(Files.createDirectories(baseDir.resolve("repository")).toFile(),
+                Files.createDirectories(baseDir.resolve("thumbnails")).toFile(),
+                Files.createDirectories(baseDir.resolve("import")).toFile());
+        try {
+            Git.init().setBare(true).setDirectory(properties.getRepository().toPath().resolve(".meta.git").toFile())
+                    .call().close();
+        } catch (GitAPIException e) {
+            throw new IOException("Cannot create meta repository", e);
+        }
+        executorService = Executors.newVirtualThreadPerTaskExecutor();
+        scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
+        processScheduler = Schedulers.newBoundedElastic(2, 300, "process");
+        meterRegistry = new SimpleMeterRegistry();
+        asyncService = new ExecutorAsyncService(executorService, Optional.of(meterRegistry));
+        metadataCache = new DefaultMetadataCache(properties, asyncService, meterRegistry);
+        repositoryPool = new RepositoryPool(asyncService, meterRegistry, properties);
+    }
+
+    public Path getRepositoryRoot() {
+        return properties.getRepository().toPath();
+    }
+
+    public Properties getProperties() {
+        return properties;
+    }
+
+    public SimpleMeterRegistry getMeterRegistry() {
+        return meterRegistry;
+    }
+
+    public AsyncService getAsyncService() {
+        return asyncService;
+    }
+
+    public DefaultMetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    public RepositoryPool getRepositoryPool() {
+        return repositoryPool;
+    }
+
+    public Scheduler getProcessScheduler() {
+        return processScheduler;
+    }
+
+    public ScheduledExecutorService getScheduledExecutorService() {
+        return scheduledExecutorService;
+    }
+
+    @Override
+    public void close() throws IOException {
+        scheduledExecutorService.shutdownNow();
+        executorService.shutdownNow();
+        processScheduler.dispose();
+        FileUtils.delete(baseDir.toFile(), FileUtils.RECURSIVE | FileUtils.RETRY);
+    }
+}
@@ -0,0 +1,23 @@
+package ch.bergturbenthal.raoa.benchmarks;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The JMH main, but writing the results as json to jmh-result.json unless a result format is given, so runs can be
+ * compared by a script, and with the gc profiler for the allocations per operation unless a profiler is given:
+ * java -jar target/benchmarks.jar [jmh options] [benchmark regexp]
+ */
+public class BenchmarkMain {
+    public static void main(final String[] args) throws Exception {
+        final List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (!arguments.contains("-rf"))
+            arguments.addAll(0, List.of("-rf", "json", "-rff", "jmh-result.json"));
+        if (!arguments.contains("-prof"))
+            arguments.addAll(0, List.of("-prof", "gc"));
+        Main.main(arguments.toArray(String[]::new));
+    }
+}
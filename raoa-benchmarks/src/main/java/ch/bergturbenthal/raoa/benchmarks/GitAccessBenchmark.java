@@ -0,0 +1,114 @@
+package ch.bergturbenthal.raoa.benchmarks;
+
+import ch.bergturbenthal.raoa.libs.model.AlbumMeta;
+import ch.bergturbenthal.raoa.libs.service.GitAccess;
+import ch.bergturbenthal.raoa.libs.service.Updater;
+import ch.bergturbenthal.raoa.libs.service.impl.BareGitAccess;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The hot paths of the git access of one synthetic album: listing, reading by id and by name, the reverse lookup of a
+ * name, the album metadata and committing a changed file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GitAccessBenchmark {
+    @Param({ "1000", "10000" })
+    public int entryCount;
+    @Param({ "65536" })
+    public int fileSize;
+    @Param({ "0.3" })
+    public double xmpRatio;
+
+    private BenchmarkEnvironment environment;
+    private GitAccess gitAccess;
+    private List<ObjectId> imageIds;
+    private Path changedFile;
+    private int commitCount = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        environment = new BenchmarkEnvironment();
+        final Path repositoryRoot = environment.getRepositoryRoot();
+        final Path gitDir = SyntheticAlbums.createAlbum(repositoryRoot, "album", entryCount, fileSize, xmpRatio);
+        gitAccess = BareGitAccess.accessOf(gitDir, repositoryRoot.relativize(gitDir), environment.getAsyncService(),
+                environment.getProcessScheduler(), environment.getMeterRegistry(), environment.getMetadataCache(),
+                environment.getRepositoryPool(), () -> {
+                });
+        imageIds = gitAccess.listFiles(TreeFilter.ALL).filter(e -> e.getNameString().endsWith(".JPG"))
+                .map(GitAccess.GitFileEntry::getFileId).collectList().block();
+        changedFile = Files.createTempFile("changed", ".txt");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(changedFile);
+        environment.close();
+    }
+
+    private int randomIndex() {
+        return ThreadLocalRandom.current().nextInt(imageIds.size());
+    }
+
+    @Benchmark
+    public Long listFiles() {
+        return gitAccess.listFiles(TreeFilter.ALL).count().block();
+    }
+
+    @Benchmark
+    public Long readObjectById() {
+        return gitAccess.readObject(imageIds.get(randomIndex())).map(ObjectLoader::getSize).block();
+    }
+
+    @Benchmark
+    public Long readObjectByName() {
+        return gitAccess.readObject(SyntheticAlbums.imageName(randomIndex())).map(ObjectLoader::getSize).block();
+    }
+
+    @Benchmark
+    public String filenameOfObject() {
+        return gitAccess.filenameOfObject(imageIds.get(randomIndex())).block();
+    }
+
+    @Benchmark
+    public AlbumMeta getMetadata() {
+        return gitAccess.getMetadata().block();
+    }
+
+    /**
+     * Every commit changes the same file, so the tree does not grow between the iterations
+     */
+    @Benchmark
+    public Boolean createUpdaterAndCommit() throws IOException {
+        Files.writeString(changedFile, "commit " + commitCount++);
+        final Updater.CommitContext context = Updater.CommitContext.builder().message("benchmark")
+                .username("benchmark").email("benchmark@localhost").build();
+        return gitAccess.createUpdater().flatMap(u -> u.importFile(changedFile, "changed.txt", true).map(id -> u))
+                .flatMap(u -> u.commit(context).flatMap(committed -> u.close().thenReturn(committed))).block();
+    }
+}
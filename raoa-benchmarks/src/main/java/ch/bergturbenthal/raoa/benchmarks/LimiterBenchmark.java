@@ -0,0 +1,72 @@
+package ch.bergturbenthal.raoa.benchmarks;
+
+import ch.bergturbenthal.raoa.libs.properties.Properties;
+import ch.bergturbenthal.raoa.libs.service.Limiter;
+import ch.bergturbenthal.raoa.libs.service.impl.ReactiveLimiter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.publisher.Mono;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of the limiter per Mono, the limited Mono completes immediately, so the time is spent queueing and
+ * dequeueing. With 32 threads there are more callers than the fixed limit of 30.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LimiterBenchmark {
+    private Limiter limiter;
+
+    @Setup
+    public void setup() {
+        // the limiter does not touch the directories
+        final File unused = new File(System.getProperty("java.io.tmpdir"));
+        final Properties properties = new Properties(unused, unused, unused);
+        properties.setLimiterAdaptive(false);
+        limiter = new ReactiveLimiter(properties, new SimpleMeterRegistry());
+    }
+
+    private Integer limitedMono() {
+        return limiter.limit(Mono.just(1), "benchmark").block();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Integer unlimited() {
+        return Mono.just(1).block();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Integer limited1Thread() {
+        return limitedMono();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Integer limited8Threads() {
+        return limitedMono();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public Integer limited32Threads() {
+        return limitedMono();
+    }
+}
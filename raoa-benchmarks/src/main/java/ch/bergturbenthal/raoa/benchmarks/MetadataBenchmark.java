@@ -0,0 +1,123 @@
+package ch.bergturbenthal.raoa.benchmarks;
+
+import ch.bergturbenthal.raoa.elastic.model.AlbumEntryData;
+import ch.bergturbenthal.raoa.libs.model.XmpData;
+import ch.bergturbenthal.raoa.libs.service.impl.XmpWrapper;
+import ch.bergturbenthal.raoa.libs.util.FastMetadataExtractor;
+import ch.bergturbenthal.raoa.libs.util.TikaUtil;
+import ch.bergturbenthal.raoa.libs.util.test.MediaFixtures;
+import com.adobe.internal.xmp.XMPMetaFactory;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work done for every new media file when indexing: reading its metadata, either by a full tika parse or from the
+ * headers only, taking the fields apart with TikaUtil, parsing the xmp sidecar and building the index document. Run
+ * by BenchmarkMain, the gc profiler adds the allocations per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataBenchmark {
+    private static final UUID ALBUM_ID = UUID.nameUUIDFromBytes("album".getBytes(StandardCharsets.UTF_8));
+    private static final TimeZone TIME_ZONE = TimeZone.getTimeZone("Europe/Zurich");
+    private static final String XMP = "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">"
+            + "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">"
+            + "<rdf:Description rdf:about=\"\" xmlns:xmp=\"http://ns.adobe.com/xap/1.0/\""
+            + " xmlns:dc=\"http://purl.org/dc/elements/1.1/\"><xmp:Rating>4</xmp:Rating>"
+            + "<dc:description><rdf:Alt><rdf:li xml:lang=\"x-default\">Sunrise on the ridge</rdf:li></rdf:Alt>"
+            + "</dc:description><dc:subject><rdf:Bag><rdf:li>mountains</rdf:li><rdf:li>hiking</rdf:li>"
+            + "<rdf:li>family</rdf:li></rdf:Bag></dc:subject></rdf:Description></rdf:RDF></x:xmpmeta>";
+    private static final byte[] XMP_DATA = XMP.getBytes(StandardCharsets.UTF_8);
+
+    @Param({ "jpeg", "nef", "mp4" })
+    public String fixture;
+
+    private byte[] data;
+    private ObjectId fileId;
+    private ObjectId xmpFileId;
+    private Metadata metadata;
+    private XmpData xmpData;
+
+    @Setup
+    public void setup() throws Exception {
+        data = MediaFixtures.sample(fixture);
+        fileId = ObjectId.fromRaw(Constants.newMessageDigest().digest(data));
+        xmpFileId = ObjectId.fromRaw(Constants.newMessageDigest().digest(XMP_DATA));
+        metadata = tikaParse();
+        xmpData = parseXmp();
+    }
+
+    /**
+     * Like the fallback of FastMetadataExtractor, with a new parser every time
+     */
+    @Benchmark
+    public Metadata tikaParse() throws Exception {
+        final Metadata parsed = new Metadata();
+        try (TikaInputStream in = TikaInputStream.get(data)) {
+            new AutoDetectParser().parse(in, new BodyContentHandler(), parsed);
+        }
+        return parsed;
+    }
+
+    @Benchmark
+    public Optional<Metadata> fastExtract() throws Exception {
+        return FastMetadataExtractor.readHeaders(new ByteArrayInputStream(data));
+    }
+
+    @Benchmark
+    public void tikaUtilFields(final Blackhole blackhole) {
+        blackhole.consume(TikaUtil.extractCreateTime(metadata, TIME_ZONE));
+        blackhole.consume(TikaUtil.extractTargetWidth(metadata));
+        blackhole.consume(TikaUtil.extractTargetHeight(metadata));
+        blackhole.consume(TikaUtil.extractCameraModel(metadata));
+        blackhole.consume(TikaUtil.extractLensModel(metadata));
+        blackhole.consume(TikaUtil.extractMake(metadata));
+        blackhole.consume(TikaUtil.extractFocalLength(metadata));
+        blackhole.consume(TikaUtil.extractFocalLength35(metadata));
+        blackhole.consume(TikaUtil.extractFNumber(metadata));
+        blackhole.consume(TikaUtil.extractExposureTime(metadata));
+        blackhole.consume(TikaUtil.extractIsoSpeed(metadata));
+        blackhole.consume(TikaUtil.extractContentType(metadata));
+        blackhole.consume(TikaUtil.extractLatitude(metadata));
+        blackhole.consume(TikaUtil.extractLongitude(metadata));
+        blackhole.consume(TikaUtil.extractVideoDuration(metadata));
+    }
+
+    @Benchmark
+    public XmpData parseXmp() throws Exception {
+        return new XmpWrapper(XMPMetaFactory.parseFromBuffer(XMP_DATA)).toXmpData();
+    }
+
+    @Benchmark
+    public AlbumEntryData createAlbumEntry() {
+        return AlbumEntryData.createAlbumEntry(ALBUM_ID, fileId, "IMG_0001." + fixture, metadata,
+                Optional.of(xmpFileId), Optional.of(xmpData), TIME_ZONE);
+    }
+}
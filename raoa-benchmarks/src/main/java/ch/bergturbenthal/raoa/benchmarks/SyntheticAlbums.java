@@ -0,0 +1,83 @@
+package ch.bergturbenthal.raoa.benchmarks;
+
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.PackInserter;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates bare album repositories like the ones below the repository root: one commit on master with the album
+ * metadata, images of random content, which compresses as bad as real ones, and for some of them an xmp sidecar.
+ */
+public class SyntheticAlbums {
+    private static final String XMP_TEMPLATE = "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">"
+            + "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">"
+            + "<rdf:Description rdf:about=\"\" xmlns:xmp=\"http://ns.adobe.com/xap/1.0/\">"
+            + "<xmp:Rating>%d</xmp:Rating></rdf:Description></rdf:RDF></x:xmpmeta>";
+
+    private SyntheticAlbums() {
+    }
+
+    public static String imageName(final int index) {
+        // names with a fixed width are already in git order
+        return String.format("IMG_%06d.JPG", index);
+    }
+
+    /**
+     * @param xmpRatio
+     *            share of the images with an xmp sidecar, between 0 and 1
+     */
+    public static Path createAlbum(final Path repositoryRoot, final String name, final int entryCount,
+            final int fileSize, final double xmpRatio) throws IOException {
+        final Path gitDir = repositoryRoot.resolve(name + ".git");
+        // the same album for the same name, so runs are comparable
+        final Random random = new Random(name.hashCode());
+        try (FileRepository repository = (FileRepository) new FileRepositoryBuilder().setGitDir(gitDir.toFile())
+                .build()) {
+            repository.create(true);
+            try (PackInserter inserter = repository.getObjectDatabase().newPackInserter()) {
+                final TreeFormatter formatter = new TreeFormatter();
+                final UUID albumId = UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8));
+                final String metadata = "{\"albumId\":\"" + albumId + "\",\"albumTitle\":\"" + name + "\"}";
+                formatter.append(".raoa.json", FileMode.REGULAR_FILE,
+                        inserter.insert(Constants.OBJ_BLOB, Constants.encode(metadata)));
+                final byte[] content = new byte[fileSize];
+                for (int i = 0; i < entryCount; i++) {
+                    final String imageName = imageName(i);
+                    random.nextBytes(content);
+                    formatter.append(imageName, FileMode.REGULAR_FILE, inserter.insert(Constants.OBJ_BLOB, content));
+                    if (random.nextDouble() < xmpRatio) {
+                        final String xmp = String.format(XMP_TEMPLATE, random.nextInt(6));
+                        formatter.append(imageName.substring(0, imageName.length() - 4) + ".xmp",
+                                FileMode.REGULAR_FILE, inserter.insert(Constants.OBJ_BLOB, Constants.encode(xmp)));
+                    }
+                }
+                final ObjectId treeId = inserter.insert(formatter);
+                final CommitBuilder commit = new CommitBuilder();
+                final PersonIdent ident = new PersonIdent("benchmark", "benchmark@localhost");
+                commit.setAuthor(ident);
+                commit.setCommitter(ident);
+                commit.setMessage("synthetic album");
+                commit.setTreeId(treeId);
+                final ObjectId commitId = inserter.insert(commit);
+                inserter.flush();
+                final RefUpdate refUpdate = repository.updateRef(Constants.R_HEADS + Constants.MASTER);
+                refUpdate.setNewObjectId(commitId);
+                refUpdate.forceUpdate();
+            }
+        }
+        return gitDir;
+    }
+}
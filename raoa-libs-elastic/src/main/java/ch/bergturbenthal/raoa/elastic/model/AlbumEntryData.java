@@ -1,9 +1,8 @@
 package ch.bergturbenthal.raoa.elastic.model;
 
 import ch.bergturbenthal.raoa.elastic.model.serializer.ObjectIdSerializer;
-import ch.bergturbenthal.raoa.libs.service.impl.XmpWrapper;
+import ch.bergturbenthal.raoa.libs.model.XmpData;
 import ch.bergturbenthal.raoa.libs.util.TikaUtil;
-import com.adobe.internal.xmp.XMPMeta;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonPOJOBuilder;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
@@ -142,7 +141,7 @@ public class AlbumEntryData {
     }
 
     public static AlbumEntryData createAlbumEntry(final UUID albumId, final ObjectId fileId, final String filename,
-            final Metadata metadata, final Optional<ObjectId> xmpFileId, final Optional<XMPMeta> xmpMeta,
+            final Metadata metadata, final Optional<ObjectId> xmpFileId, final Optional<XmpData> xmpData,
             TimeZone defaultTimezone) {
         final AlbumEntryData.AlbumEntryDataBuilder albumEntryDataBuilder = AlbumEntryData.builder().filename(filename)
                 .entryId(fileId).albumId(albumId);
@@ -170,10 +169,11 @@ public class AlbumEntryData {
         if (lat.isPresent() && lon.isPresent()) {
             albumEntryDataBuilder.captureCoordinates(new GeoPoint(lat.get(), lon.get()));
         }
-        xmpMeta.map(XmpWrapper::new).ifPresent(xmpWrapper -> {
-            albumEntryDataBuilder.description(xmpWrapper.readDescription());
-            albumEntryDataBuilder.rating(xmpWrapper.readRating());
-            albumEntryDataBuilder.keywords(new HashSet<>(xmpWrapper.readKeywords()));
+        xmpData.ifPresent(xmp -> {
+            albumEntryDataBuilder.description(xmp.getDescription());
+            albumEntryDataBuilder.rating(xmp.getRating());
+            if (xmp.getKeywords() != null)
+                albumEntryDataBuilder.keywords(new HashSet<>(xmp.getKeywords()));
         });
         return albumEntryDataBuilder.build();
     }
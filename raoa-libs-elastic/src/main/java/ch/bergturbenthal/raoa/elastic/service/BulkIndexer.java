@@ -0,0 +1,12 @@
+package ch.bergturbenthal.raoa.elastic.service;
+
+import java.util.function.Function;
+import reactor.core.publisher.Flux;
+
+public interface BulkIndexer {
+    /**
+     * Writes the documents into the index of their type with bulk requests and emits every document once it is
+     * written. The index is refreshed before completion, so written documents are visible to searches.
+     */
+    <T> Flux<T> index(Class<T> type, Function<T, String> idFunction, Flux<T> documents);
+}
@@ -10,6 +10,7 @@ import ch.bergturbenthal.raoa.elastic.model.User;
 import ch.bergturbenthal.raoa.libs.service.AlbumList;
 import com.adobe.internal.xmp.XMPMeta;
 import java.time.Instant;
+import java.util.Collection;
 import java.util.UUID;
 import org.eclipse.jgit.lib.ObjectId;
 import reactor.core.publisher.Flux;
@@ -20,8 +21,20 @@ public interface DataViewService {
 
     Mono<Long> updateAlbums(Flux<AlbumList.FoundAlbum> albumList);
 
+    /**
+     * Emits after updateAlbums or updateUserData of this instance has written its changes
+     */
+    Flux<Instant> dataUpdates();
+
     Flux<AlbumData> listAlbums();
 
+    /**
+     * All albums with only the id and the create time loaded
+     */
+    Flux<AlbumData> listAlbumCreateTimes();
+
+    Flux<AlbumData> listAlbums(Collection<UUID> ids);
+
     Mono<AlbumData> readAlbum(UUID id);
 
     Flux<AlbumEntryData> listEntries(UUID id);
@@ -5,8 +5,11 @@ import ch.bergturbenthal.raoa.elastic.model.Group;
 import ch.bergturbenthal.raoa.elastic.model.RequestAccess;
 import ch.bergturbenthal.raoa.elastic.model.User;
 import ch.bergturbenthal.raoa.libs.service.Updater;
+import java.util.Collection;
 import java.util.UUID;
 import java.util.function.Function;
+import lombok.Builder;
+import lombok.Value;
 import org.eclipse.jgit.lib.ObjectId;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -19,6 +22,12 @@ public interface UserManager {
 
     Mono<ObjectId> getMetaVersion();
 
+    /**
+     * Users and groups written or removed in the meta repository since the given version. Fails with a
+     * MissingObjectException if that version is not in the repository anymore.
+     */
+    Mono<MetaChanges> changesSince(ObjectId metaVersion);
+
     Mono<Boolean> removeUser(UUID id, final Updater.CommitContext context);
 
     void assignNewIdentity(UUID existingId, AuthenticationId baseRequest, final Updater.CommitContext context);
@@ -33,4 +42,15 @@ public interface UserManager {
 
     Mono<Group> updateGroup(UUID groupId, Function<Group, Group> updater,
             final Updater.CommitContext updateDescription);
+
+    @Value
+    @Builder
+    class MetaChanges {
+        // version of the meta repository the changes lead to
+        ObjectId version;
+        Collection<User> updatedUsers;
+        Collection<UUID> removedUsers;
+        Collection<Group> updatedGroups;
+        Collection<UUID> removedGroups;
+    }
 }
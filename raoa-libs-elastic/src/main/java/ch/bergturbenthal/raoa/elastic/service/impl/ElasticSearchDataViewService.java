@@ -12,33 +12,40 @@ import ch.bergturbenthal.raoa.elastic.repository.AccessRequestRepository;
 import ch.bergturbenthal.raoa.elastic.repository.AlbumDataEntryRepository;
 import ch.bergturbenthal.raoa.elastic.repository.AlbumDataRepository;
 import ch.bergturbenthal.raoa.elastic.repository.GroupRepository;
-import ch.bergturbenthal.raoa.elastic.repository.SyncAlbumDataEntryRepository;
 import ch.bergturbenthal.raoa.elastic.repository.TemporaryPasswordRepository;
 import ch.bergturbenthal.raoa.elastic.repository.UserRepository;
+import ch.bergturbenthal.raoa.elastic.service.BulkIndexer;
 import ch.bergturbenthal.raoa.elastic.service.DataViewService;
 import ch.bergturbenthal.raoa.elastic.service.UserManager;
+import ch.bergturbenthal.raoa.libs.model.XmpData;
 import ch.bergturbenthal.raoa.libs.properties.Properties;
 import ch.bergturbenthal.raoa.libs.service.AlbumList;
-import ch.bergturbenthal.raoa.libs.service.AsyncService;
 import ch.bergturbenthal.raoa.libs.service.GitAccess;
+import ch.bergturbenthal.raoa.libs.service.GitSnapshot;
 import ch.bergturbenthal.raoa.libs.service.impl.XmpWrapper;
 import ch.bergturbenthal.raoa.libs.util.TikaUtil;
 import com.adobe.internal.xmp.XMPMeta;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.collections4.map.LRUMap;
 import org.apache.tika.metadata.Metadata;
+import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.treewalk.filter.OrTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
 import org.eclipse.jgit.treewalk.filter.PathSuffixFilter;
 import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.data.elasticsearch.client.elc.ReactiveElasticsearchTemplate;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.elasticsearch.core.ReactiveIndexOperations;
+import org.springframework.data.elasticsearch.core.SearchHit;
+import org.springframework.data.elasticsearch.core.query.FetchSourceFilter;
+import org.springframework.data.elasticsearch.core.query.Query;
 import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.function.TupleUtils;
+import reactor.core.publisher.Sinks;
 import reactor.util.function.Tuple2;
 import reactor.util.function.Tuples;
 import reactor.util.retry.Retry;
@@ -66,54 +73,64 @@ import java.util.stream.Collectors;
 @Slf4j
 @Service
 public class ElasticSearchDataViewService implements DataViewService {
-    public static final TreeFilter MEDIA_FILE_FILTER = OrTreeFilter.create(new TreeFilter[] {
-            PathSuffixFilter.create(".jpg"), PathSuffixFilter.create(".jpeg"), PathSuffixFilter.create(".JPG"),
-            PathSuffixFilter.create(".JPEG"), PathSuffixFilter.create(".nef"), PathSuffixFilter.create(".NEF"),
-            PathSuffixFilter.create(".mp4"), PathSuffixFilter.create(".MP4"), PathSuffixFilter.create(".mkv") });
+    public static final TreeFilter MEDIA_FILE_FILTER = GitSnapshot.MEDIA_FILE_FILTER;
     public static final TreeFilter IMAGE_FILE_FILTER = OrTreeFilter.create(new TreeFilter[] {
             PathSuffixFilter.create(".jpg"), PathSuffixFilter.create(".jpeg"), PathSuffixFilter.create(".JPG"),
             PathSuffixFilter.create(".JPEG"), PathSuffixFilter.create(".nef"), PathSuffixFilter.create(".NEF") });
-    public static final Duration CACHE_TIME = Duration.ofSeconds(10);
     private static final Pattern NUMBER_PATTERN = Pattern.compile("[0-9.]+");
-    public static TreeFilter XMP_FILE_FILTER = PathSuffixFilter.create(".xmp");
+    public static TreeFilter XMP_FILE_FILTER = GitSnapshot.XMP_FILE_FILTER;
     private final UUID virtualSuperuserId = UUID.randomUUID();
     private final AlbumDataRepository albumDataRepository;
     private final AlbumDataEntryRepository albumDataEntryRepository;
     private final AlbumList albumList;
-    private final SyncAlbumDataEntryRepository syncAlbumDataEntryRepository;
     private final UserRepository userRepository;
     private final GroupRepository groupRepository;
     private final AccessRequestRepository accessRequestRepository;
     private final UserManager userManager;
     private final ExecutorService ioExecutorService = Executors.newFixedThreadPool(3,
             new CustomizableThreadFactory("elastic-data-view"));
-    private final Map<UUID, Mono<User>> userCache = Collections.synchronizedMap(new LRUMap<>(20));
-    private final Map<UUID, Mono<Group>> groupCache = Collections.synchronizedMap(new LRUMap<>(200));
+    private final ReactiveCache<UUID, User> userCache;
+    private final ReactiveCache<UUID, Group> groupCache;
+    private final ReactiveCache<UUID, AlbumData> albumCache;
+    private final ReactiveCache<AuthenticationId, List<User>> authenticationCache;
     private final ReactiveElasticsearchTemplate elasticsearchTemplate;
     private final AtomicReference<ObjectId> lastMetaVersion = new AtomicReference<>();
+    private final Sinks.Many<Instant> dataUpdates = Sinks.many().multicast().directBestEffort();
     private final TemporaryPasswordRepository temporaryPasswordRepository;
-    private final AsyncService asyncService;
+    private final BulkIndexer bulkIndexer;
     private final Properties properties;
 
     public ElasticSearchDataViewService(final AlbumDataRepository albumDataRepository,
             final AlbumDataEntryRepository albumDataEntryRepository, final AlbumList albumList,
-            final SyncAlbumDataEntryRepository syncAlbumDataEntryRepository, final UserRepository userRepository,
-            final GroupRepository groupRepository, final AccessRequestRepository accessRequestRepository,
-            final UserManager userManager, final ReactiveElasticsearchTemplate elasticsearchTemplate,
-            final TemporaryPasswordRepository temporaryPasswordRepository, final AsyncService asyncService,
-            final Properties properties) {
+            final UserRepository userRepository, final GroupRepository groupRepository,
+            final AccessRequestRepository accessRequestRepository, final UserManager userManager,
+            final ReactiveElasticsearchTemplate elasticsearchTemplate,
+            final TemporaryPasswordRepository temporaryPasswordRepository, final BulkIndexer bulkIndexer,
+            final Properties properties, final MeterRegistry meterRegistry) {
         this.albumDataRepository = albumDataRepository;
         this.albumDataEntryRepository = albumDataEntryRepository;
         this.albumList = albumList;
-        this.syncAlbumDataEntryRepository = syncAlbumDataEntryRepository;
         this.userRepository = userRepository;
         this.groupRepository = groupRepository;
         this.accessRequestRepository = accessRequestRepository;
         this.userManager = userManager;
         this.elasticsearchTemplate = elasticsearchTemplate;
         this.temporaryPasswordRepository = temporaryPasswordRepository;
-        this.asyncService = asyncService;
+        this.bulkIndexer = bulkIndexer;
         this.properties = properties;
+        userCache = new ReactiveCache<>("user", userRepository::findById, properties.cacheProperties("user"),
+                meterRegistry);
+        groupCache = new ReactiveCache<>("group", groupRepository::findById, properties.cacheProperties("group"),
+                meterRegistry);
+        albumCache = new ReactiveCache<>("album", albumDataRepository::findById, properties.cacheProperties("album"),
+                meterRegistry);
+        authenticationCache = new ReactiveCache<>("authentication",
+                authenticationId -> userRepository
+                        .findByAuthenticationsAuthorityAndAuthenticationsId(authenticationId.getAuthority(),
+                                authenticationId.getId())
+                        .filter(u -> u.getAuthentications().contains(authenticationId))
+                        .retryWhen(Retry.backoff(10, Duration.ofSeconds(20))).collectList(),
+                properties.cacheProperties("authentication"), meterRegistry);
     }
 
     private static Optional<Integer> extractTargetWidth(final Metadata m) {
@@ -130,9 +147,9 @@ public class ElasticSearchDataViewService implements DataViewService {
     }
 
     private AlbumEntryData createAlbumEntry(final GitAccess.GitFileEntry gitFileEntry, final Metadata metadata,
-            final Optional<XMPMeta> xmpMeta, final Optional<ObjectId> metaFileId, final UUID albumId) {
+            final Optional<XmpData> xmpData, final Optional<ObjectId> metaFileId, final UUID albumId) {
         return AlbumEntryData.createAlbumEntry(albumId, gitFileEntry.getFileId(), gitFileEntry.getNameString(),
-                metadata, metaFileId, xmpMeta, properties.getTimeZone());
+                metadata, metaFileId, xmpData, properties.getTimeZone());
     }
 
     // @Scheduled(fixedDelay = 5 * 60 * 1000, initialDelay = 5 * 1000)
@@ -152,45 +169,67 @@ public class ElasticSearchDataViewService implements DataViewService {
 
     @Override
     public Mono<Void> updateUserData() {
+        return Flux.merge(createIndexIfMissing(Group.class), createIndexIfMissing(User.class))
+                .then(userManager.getMetaVersion().flatMap(version -> {
+                    final ObjectId syncedVersion = lastMetaVersion.get();
+                    if (Objects.equals(syncedVersion, version))
+                        return Mono.empty();
+                    if (syncedVersion == null)
+                        return updateAllUsers(version);
+                    return userManager.changesSince(syncedVersion).flatMap(this::applyMetaChanges)
+                            .onErrorResume(MissingObjectException.class, ex -> {
+                                log.info("Synced meta version " + syncedVersion.name() + " not found, update all");
+                                return updateAllUsers(version);
+                            });
+                }));
+    }
+
+    private Mono<Void> applyMetaChanges(final UserManager.MetaChanges changes) {
         return Flux
-                .merge(createIndexIfMissing(Group.class), createIndexIfMissing(User.class)).then(
-                        userManager.getMetaVersion()
-                                .flatMap(version -> Objects.equals(lastMetaVersion.get(), version) ? Mono.empty()
-                                        : Flux.merge(userRepository.findAll()
-                                                .retryWhen(Retry.backoff(10, Duration.ofSeconds(20)))
-                                                .onErrorResume(ex -> {
-                                                    log.warn("Cannot load existing users", ex);
-                                                    return Flux.empty();
-                                                }).collectMap(User::getId, Function.identity())
-                                                .flatMap((Map<UUID, User> existingUsers) -> userManager.listUsers()
-                                                        .flatMap(storedUser -> Objects.equals(
-                                                                existingUsers.get(storedUser.getId()), storedUser)
-                                                                        ? Mono.just(storedUser.getId())
-                                                                        : userRepository.save(storedUser)
-                                                                                .map(User::getId))
-                                                        .<Set<UUID>> collect(
-                                                                () -> new HashSet<>(existingUsers.keySet()),
-                                                                Set::remove))
-                                                .flatMapIterable(Function.identity())
-                                                .flatMap(userRepository::deleteById).then(),
-                                                groupRepository.findAll()
-                                                        .retryWhen(Retry.backoff(10, Duration.ofSeconds(20)))
-                                                        .onErrorResume(ex -> {
-                                                            log.warn("Cannot load existing groups", ex);
-                                                            return Flux.empty();
-                                                        }).collectMap(Group::getId, Function.identity())
-                                                        .flatMap(existingGroups -> userManager.listGroups()
-                                                                .flatMap(storedGroup -> Objects.equals(
-                                                                        existingGroups.get(storedGroup.getId()),
-                                                                        storedGroup)
-                                                                                ? Mono.just(storedGroup.getId())
-                                                                                : groupRepository.save(storedGroup)
-                                                                                        .map(Group::getId))
-                                                                .collect(() -> new HashSet<>(existingGroups.keySet()),
-                                                                        Set::remove))
-                                                        .flatMapIterable(Function.identity())
-                                                        .flatMap(groupRepository::deleteById).then())
-                                                .doOnComplete(() -> lastMetaVersion.set(version)).then()));
+                .merge(Flux.fromIterable(changes.getUpdatedUsers()).flatMap(userRepository::save),
+                        Flux.fromIterable(changes.getRemovedUsers()).flatMap(userRepository::deleteById),
+                        Flux.fromIterable(changes.getUpdatedGroups()).flatMap(groupRepository::save),
+                        Flux.fromIterable(changes.getRemovedGroups()).flatMap(groupRepository::deleteById))
+                .then().doOnSuccess(v -> {
+                    changes.getUpdatedUsers().forEach(user -> userCache.invalidate(user.getId()));
+                    changes.getRemovedUsers().forEach(userCache::invalidate);
+                    changes.getUpdatedGroups().forEach(group -> groupCache.invalidate(group.getId()));
+                    changes.getRemovedGroups().forEach(groupCache::invalidate);
+                    authenticationCache.invalidateAll();
+                    lastMetaVersion.set(changes.getVersion());
+                    signalDataUpdate();
+                });
+    }
+
+    private Mono<Void> updateAllUsers(final ObjectId version) {
+        return Flux.merge(userRepository.findAll().retryWhen(Retry.backoff(10, Duration.ofSeconds(20)))
+                .onErrorResume(ex -> {
+                    log.warn("Cannot load existing users", ex);
+                    return Flux.empty();
+                }).collectMap(User::getId, Function.identity())
+                .flatMap((Map<UUID, User> existingUsers) -> userManager.listUsers()
+                        .flatMap(storedUser -> Objects.equals(existingUsers.get(storedUser.getId()), storedUser)
+                                ? Mono.just(storedUser.getId())
+                                : userRepository.save(storedUser).map(User::getId))
+                        .<Set<UUID>> collect(() -> new HashSet<>(existingUsers.keySet()), Set::remove))
+                .flatMapIterable(Function.identity()).flatMap(userRepository::deleteById).then(),
+                groupRepository.findAll().retryWhen(Retry.backoff(10, Duration.ofSeconds(20))).onErrorResume(ex -> {
+                    log.warn("Cannot load existing groups", ex);
+                    return Flux.empty();
+                }).collectMap(Group::getId, Function.identity())
+                        .flatMap(existingGroups -> userManager.listGroups()
+                                .flatMap(storedGroup -> Objects.equals(existingGroups.get(storedGroup.getId()),
+                                        storedGroup) ? Mono.just(storedGroup.getId())
+                                                : groupRepository.save(storedGroup).map(Group::getId))
+                                .collect(() -> new HashSet<>(existingGroups.keySet()), Set::remove))
+                        .flatMapIterable(Function.identity()).flatMap(groupRepository::deleteById).then())
+                .doOnComplete(() -> {
+                    userCache.invalidateAll();
+                    groupCache.invalidateAll();
+                    authenticationCache.invalidateAll();
+                    lastMetaVersion.set(version);
+                    signalDataUpdate();
+                }).then();
     }
 
     private Mono<Void> createIndexIfMissing(final Class<?> clazz) {
@@ -213,71 +252,141 @@ public class ElasticSearchDataViewService implements DataViewService {
                     final List<AlbumList.FoundAlbum> albums = new ArrayList<>(l);
                     Collections.shuffle(albums);
                     return albums;
-                }).flatMap(album -> {
-                    final GitAccess access = album.getAccess();
-                    return Mono.zip(access.getCurrentVersion(), access.getName())
-                            .flatMap(TupleUtils.function((currentVersion, currentName) -> albumDataEntryRepository
-                                    .findByAlbumId(album.getAlbumId())
-                                    // .log("find album by id " + album.getAlbumId())
-                                    .collectMap(AlbumEntryData::getEntryId, Function.identity())
-                                    .onErrorResume(ex -> Mono.just(Collections.emptyMap()))
-                                    .flatMap(entriesBefore -> access.listFiles(XMP_FILE_FILTER)
-                                            .flatMap(xmpGitEntry -> access.readObject(xmpGitEntry.getFileId())
-                                                    .flatMap(access::readXmpMeta)
-                                                    .map(meta -> Tuples.of(stripXmpTail(xmpGitEntry.getNameString()),
-                                                            Tuples.of(xmpGitEntry.getFileId(), meta))))
-                                            .collectMap(Tuple2::getT1, Tuple2::getT2)
-                                            // .log("xmp meta")
-                                            .flatMap(xmpMetadata -> access.listFiles(MEDIA_FILE_FILTER)
-                                                    .flatMap(gitFileEntry -> {
-                                                        if (entriesBefore.containsKey(gitFileEntry.getFileId())) {
-                                                            final AlbumEntryData data = entriesBefore
-                                                                    .get(gitFileEntry.getFileId());
-                                                            return Mono.just(Tuples.of(true, data));
-                                                        } else {
-                                                            return access.entryMetdata(gitFileEntry.getFileId())
-                                                                    .map(metadata -> {
-                                                                        final Optional<Tuple2<ObjectId, XMPMeta>> foundMeta = Optional
-                                                                                .ofNullable(xmpMetadata.get(
-                                                                                        gitFileEntry.getNameString()));
-                                                                        return createAlbumEntry(gitFileEntry, metadata,
-                                                                                foundMeta.map(Tuple2::getT2),
-                                                                                foundMeta.map(Tuple2::getT1),
-                                                                                album.getAlbumId());
-                                                                    })
-                                                                    /*
-                                                                     * .doOnNext( d -> log.info( "Loaded metadata of " +
-                                                                     * d.getFilename()))
-                                                                     */
-                                                                    .onErrorResume(ex -> {
-                                                                        log.info(
-                                                                                "Error on "
-                                                                                        + gitFileEntry.getNameString(),
-                                                                                ex);
-                                                                        return Mono.empty();
-                                                                    }).map(e -> Tuples.of(false, e));
-                                                        }
-                                                    }, 20).publish(in -> {
-                                                        final Flux<AlbumEntryData> passThrough = in
-                                                                .filter(Tuple2::getT1).map(Tuple2::getT2);
-                                                        final Flux<AlbumEntryData> stored = in.filter(v -> !v.getT1())
-                                                                .map(Tuple2::getT2).buffer(100)
-                                                                .flatMap(entities -> asyncService.asyncFlux(
-                                                                        result -> syncAlbumDataEntryRepository
-                                                                                .saveAll(entities).forEach(result)));
-                                                        return Flux.merge(passThrough, stored);
-                                                    })
-                                                    .collect(() -> new AlbumStatisticsCollector(entriesBefore.keySet()),
-                                                            AlbumStatisticsCollector::addAlbumData)
-                                                    .publish(statResult -> statResult
-                                                            .flatMapIterable(
-                                                                    AlbumStatisticsCollector::getRemainingEntries)
-                                                            .flatMap(id -> albumDataEntryRepository
-                                                                    .deleteById(AlbumEntryData
-                                                                            .createDocumentId(album.getAlbumId(), id))
-                                                                    .thenReturn(1))
-                                                            .count())))));
-                }, 2).count();
+                }).flatMap(album -> album.getAccess().snapshot()
+                        .flatMap(snapshot -> albumDataRepository.findById(album.getAlbumId())
+                                .mapNotNull(AlbumData::getCurrentVersion).onErrorResume(ex -> {
+                                    log.warn("Cannot load indexed version of " + album.getAlbumId(), ex);
+                                    return Mono.empty();
+                                })
+                                .flatMap(indexedVersion -> updateAlbumIncremental(album, snapshot, indexedVersion)
+                                        .onErrorResume(MissingObjectException.class, ex -> {
+                                            log.info("Indexed version " + indexedVersion.name() + " of "
+                                                    + album.getAlbumId() + " not found, update all entries");
+                                            return Mono.empty();
+                                        }))
+                                .switchIfEmpty(Mono.defer(() -> updateAlbumFull(album, snapshot)))
+                                .doOnSuccess(count -> albumCache.invalidate(album.getAlbumId()))),
+                        2)
+                .count().doOnSuccess(count -> signalDataUpdate());
+    }
+
+    private void signalDataUpdate() {
+        // dropped while nobody listens, concurrent signals of the same update may merge
+        dataUpdates.emitNext(Instant.now(), Sinks.EmitFailureHandler.busyLooping(Duration.ofSeconds(1)));
+    }
+
+    @Override
+    public Flux<Instant> dataUpdates() {
+        return dataUpdates.asFlux();
+    }
+
+    /**
+     * Only the entries of media files changed since the indexed version and the ones with a changed xmp sidecar are
+     * created again, entries of media files removed since then are deleted.
+     */
+    private Mono<Long> updateAlbumIncremental(final AlbumList.FoundAlbum album, final GitSnapshot snapshot,
+            final ObjectId indexedVersion) {
+        final GitAccess access = album.getAccess();
+        final UUID albumId = album.getAlbumId();
+        return snapshot.changesSince(indexedVersion, OrTreeFilter.create(MEDIA_FILE_FILTER, XMP_FILE_FILTER))
+                .collectList().flatMap(changes -> {
+                    final Set<String> touchedMediaFiles = new HashSet<>();
+                    final Set<ObjectId> removedIds = new HashSet<>();
+                    for (GitSnapshot.FileChange change : changes) {
+                        if (change.getPath().endsWith(".xmp")) {
+                            touchedMediaFiles.add(stripXmpTail(change.getPath()));
+                        } else {
+                            if (change.getNewId() != null)
+                                touchedMediaFiles.add(change.getPath());
+                            if (change.getOldId() != null)
+                                removedIds.add(change.getOldId());
+                        }
+                    }
+                    // the same content can still be there under an other name
+                    final Mono<Long> removed = Flux.fromIterable(removedIds)
+                            .filterWhen(id -> snapshot.filenameOfObject(id).hasElement().map(found -> !found))
+                            .flatMap(id -> albumDataEntryRepository
+                                    .deleteById(AlbumEntryData.createDocumentId(albumId, id)).thenReturn(1))
+                            .count();
+                    if (touchedMediaFiles.isEmpty())
+                        return removed;
+                    final List<String> touchedFiles = new ArrayList<>(touchedMediaFiles);
+                    touchedMediaFiles.forEach(filename -> touchedFiles.add(filename + ".xmp"));
+                    final Flux<AlbumEntryData> entries = snapshot
+                            .listFiles(PathFilterGroup.createFromStrings(touchedFiles)).collectList()
+                            .flatMapMany(files -> {
+                                final Map<String, ObjectId> xmpFiles = files.stream()
+                                        .filter(e -> e.getNameString().endsWith(".xmp"))
+                                        .collect(Collectors.toMap(e -> stripXmpTail(e.getNameString()),
+                                                GitAccess.GitFileEntry::getFileId));
+                                return Flux.fromIterable(files)
+                                        .filter(e -> touchedMediaFiles.contains(e.getNameString()))
+                                        .flatMap(gitFileEntry -> {
+                                            final Optional<ObjectId> xmpFileId = Optional
+                                                    .ofNullable(xmpFiles.get(gitFileEntry.getNameString()));
+                                            final Mono<Optional<XmpData>> xmpData = Mono.justOrEmpty(xmpFileId)
+                                                    .flatMap(access::readXmpData).map(Optional::of)
+                                                    .defaultIfEmpty(Optional.empty());
+                                            return Mono
+                                                    .zip(access.entryMetdata(gitFileEntry.getFileId()), xmpData)
+                                                    .map(t -> createAlbumEntry(gitFileEntry, t.getT1(), t.getT2(),
+                                                            xmpFileId, albumId))
+                                                    .onErrorResume(ex -> {
+                                                        log.info("Error on " + gitFileEntry.getNameString(), ex);
+                                                        return Mono.empty();
+                                                    });
+                                        }, 20);
+                            });
+                    final Mono<Long> created = bulkIndexer
+                            .index(AlbumEntryData.class, AlbumEntryData::getDocumentId, entries).count();
+                    return Mono.zip(removed, created).map(t -> t.getT1() + t.getT2());
+                });
+    }
+
+    private Mono<Long> updateAlbumFull(final AlbumList.FoundAlbum album, final GitSnapshot snapshot) {
+        final GitAccess access = album.getAccess();
+        return albumDataEntryRepository.findByAlbumId(album.getAlbumId())
+                // .log("find album by id " + album.getAlbumId())
+                .collectMap(AlbumEntryData::getEntryId, Function.identity())
+                .onErrorResume(ex -> Mono.just(Collections.emptyMap()))
+                .flatMap(entriesBefore -> snapshot.listXmpFiles()
+                        .flatMap(xmpGitEntry -> access.readXmpData(xmpGitEntry.getFileId())
+                                .map(meta -> Tuples.of(stripXmpTail(xmpGitEntry.getNameString()),
+                                        Tuples.of(xmpGitEntry.getFileId(), meta))))
+                        .collectMap(Tuple2::getT1, Tuple2::getT2)
+                        // .log("xmp meta")
+                        .flatMap(xmpMetadata -> snapshot.listMediaFiles().flatMap(gitFileEntry -> {
+                            if (entriesBefore.containsKey(gitFileEntry.getFileId())) {
+                                final AlbumEntryData data = entriesBefore.get(gitFileEntry.getFileId());
+                                return Mono.just(Tuples.of(true, data));
+                            } else {
+                                return access.entryMetdata(gitFileEntry.getFileId()).map(metadata -> {
+                                    final Optional<Tuple2<ObjectId, XmpData>> foundMeta = Optional
+                                            .ofNullable(xmpMetadata.get(gitFileEntry.getNameString()));
+                                    return createAlbumEntry(gitFileEntry, metadata, foundMeta.map(Tuple2::getT2),
+                                            foundMeta.map(Tuple2::getT1), album.getAlbumId());
+                                })
+                                        /*
+                                         * .doOnNext( d -> log.info( "Loaded metadata of " + d.getFilename()))
+                                         */
+                                        .onErrorResume(ex -> {
+                                            log.info("Error on " + gitFileEntry.getNameString(), ex);
+                                            return Mono.empty();
+                                        }).map(e -> Tuples.of(false, e));
+                            }
+                        }, 20).publish(in -> {
+                            final Flux<AlbumEntryData> passThrough = in.filter(Tuple2::getT1).map(Tuple2::getT2);
+                            final Flux<AlbumEntryData> stored = bulkIndexer.index(AlbumEntryData.class,
+                                    AlbumEntryData::getDocumentId, in.filter(v -> !v.getT1()).map(Tuple2::getT2));
+                            return Flux.merge(passThrough, stored);
+                        }).collect(() -> new AlbumStatisticsCollector(entriesBefore.keySet()),
+                                AlbumStatisticsCollector::addAlbumData)
+                                .publish(statResult -> statResult
+                                        .flatMapIterable(AlbumStatisticsCollector::getRemainingEntries)
+                                        .flatMap(id -> albumDataEntryRepository
+                                                .deleteById(AlbumEntryData.createDocumentId(album.getAlbumId(), id))
+                                                .thenReturn(1))
+                                        .count())));
     }
 
     private String stripXmpTail(final String filename) {
@@ -289,9 +398,21 @@ public class ElasticSearchDataViewService implements DataViewService {
         return albumDataRepository.findAll();
     }
 
+    @Override
+    public Flux<AlbumData> listAlbumCreateTimes() {
+        final Query query = Query.findAll().setPageable(Pageable.unpaged());
+        query.addSourceFilter(FetchSourceFilter.of(b -> b.withIncludes("createTime")));
+        return elasticsearchTemplate.search(query, AlbumData.class).map(SearchHit::getContent);
+    }
+
+    @Override
+    public Flux<AlbumData> listAlbums(final Collection<UUID> ids) {
+        return albumDataRepository.findAllById(ids);
+    }
+
     @Override
     public Mono<AlbumData> readAlbum(final UUID id) {
-        return albumDataRepository.findById(id);
+        return albumCache.get(id);
     }
 
     @Override
@@ -306,32 +427,27 @@ public class ElasticSearchDataViewService implements DataViewService {
 
     @Override
     public Flux<User> findUserForAuthentication(final AuthenticationId authenticationId) {
-        return userRepository
-                .findByAuthenticationsAuthorityAndAuthenticationsId(authenticationId.getAuthority(),
-                        authenticationId.getId())
-                .filter(u -> u.getAuthentications().contains(authenticationId))
-                .retryWhen(Retry.backoff(10, Duration.ofSeconds(20))).onErrorResume(ex -> {
-                    log.warn("Cannot load user by authentication id " + authenticationId, ex);
-                    return Flux.empty();
-                });
+        return authenticationCache.get(authenticationId).flatMapIterable(Function.identity()).onErrorResume(ex -> {
+            log.warn("Cannot load user by authentication id " + authenticationId, ex);
+            return Flux.empty();
+        });
     }
 
     @Override
     public Mono<User> findUserById(final UUID id) {
-        return userCache.computeIfAbsent(id, userid -> userRepository.findById(userid).cache(CACHE_TIME))
-                .switchIfEmpty(Mono.defer(() -> {
-                    if (id.equals(virtualSuperuserId)) {
-                        return Mono.just(User.builder().authentications(Collections.emptySet()).id(virtualSuperuserId)
-                                .superuser(true)
-                                .userData(PersonalUserData.builder().comment("Virtual superuser").build()).build());
-                    }
-                    return Mono.empty();
-                }));
+        return userCache.get(id).switchIfEmpty(Mono.defer(() -> {
+            if (id.equals(virtualSuperuserId)) {
+                return Mono.just(User.builder().authentications(Collections.emptySet()).id(virtualSuperuserId)
+                        .superuser(true).userData(PersonalUserData.builder().comment("Virtual superuser").build())
+                        .build());
+            }
+            return Mono.empty();
+        }));
     }
 
     @Override
     public Mono<Group> findGroupById(final UUID id) {
-        return groupCache.computeIfAbsent(id, groupId -> groupRepository.findById(groupId).cache(CACHE_TIME));
+        return groupCache.get(id);
     }
 
     @Override
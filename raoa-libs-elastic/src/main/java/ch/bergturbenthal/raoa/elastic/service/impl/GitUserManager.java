@@ -8,6 +8,7 @@ import ch.bergturbenthal.raoa.elastic.service.UserManager;
 import ch.bergturbenthal.raoa.libs.service.AlbumList;
 import ch.bergturbenthal.raoa.libs.service.AsyncService;
 import ch.bergturbenthal.raoa.libs.service.GitAccess;
+import ch.bergturbenthal.raoa.libs.service.GitSnapshot;
 import ch.bergturbenthal.raoa.libs.service.Limiter;
 import ch.bergturbenthal.raoa.libs.service.Updater;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -16,6 +17,7 @@ import com.fasterxml.jackson.databind.ObjectWriter;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.OrTreeFilter;
 import org.eclipse.jgit.treewalk.filter.PathFilter;
 import org.eclipse.jgit.treewalk.filter.PathSuffixFilter;
 import org.eclipse.jgit.treewalk.filter.TreeFilter;
@@ -29,7 +31,10 @@ import reactor.util.retry.Retry;
 import java.io.File;
 import java.io.IOException;
 import java.time.Duration;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -100,6 +105,44 @@ public class GitUserManager implements UserManager {
         return metaIdMono.flatMap(albumList::getAlbum).flatMap(GitAccess::getCurrentVersion);
     }
 
+    @Override
+    public Mono<MetaChanges> changesSince(final ObjectId metaVersion) {
+        return metaIdMono.flatMap(albumList::getAlbum).flatMap(access -> access.snapshot().flatMap(snapshot -> snapshot
+                .changesSince(metaVersion, OrTreeFilter.create(ALL_USERS_FILTER, ALL_GROUPS_FILTER)).collectList()
+                .flatMap(changes -> {
+                    final Flux<GitSnapshot.FileChange> userChanges = Flux.fromIterable(changes)
+                            .filter(c -> c.getPath().startsWith("users/"));
+                    final Flux<GitSnapshot.FileChange> groupChanges = Flux.fromIterable(changes)
+                            .filter(c -> c.getPath().startsWith("groups/"));
+                    // the id of a removed entry is taken from its last content
+                    return Mono.zip(
+                            userChanges.filter(c -> c.getNewId() != null)
+                                    .flatMap(c -> readUser(access, c.getNewId(), Limiter.Lane.BACKGROUND), 2)
+                                    .collectList(),
+                            userChanges.filter(c -> c.getNewId() == null)
+                                    .flatMap(c -> readUser(access, c.getOldId(), Limiter.Lane.BACKGROUND), 2)
+                                    .map(User::getId).collectList(),
+                            groupChanges.filter(c -> c.getNewId() != null)
+                                    .flatMap(c -> readGroup(access, c.getNewId(), Limiter.Lane.BACKGROUND), 2)
+                                    .collectList(),
+                            groupChanges.filter(c -> c.getNewId() == null)
+                                    .flatMap(c -> readGroup(access, c.getOldId(), Limiter.Lane.BACKGROUND), 2)
+                                    .map(Group::getId).collectList())
+                            .map(t -> MetaChanges.builder().version(snapshot.getCommitId()).updatedUsers(t.getT1())
+                                    .removedUsers(withoutIds(t.getT2(),
+                                            t.getT1().stream().map(User::getId).collect(Collectors.toSet())))
+                                    .updatedGroups(t.getT3())
+                                    .removedGroups(withoutIds(t.getT4(),
+                                            t.getT3().stream().map(Group::getId).collect(Collectors.toSet())))
+                                    .build());
+                })));
+    }
+
+    private static Collection<UUID> withoutIds(final List<UUID> ids, final Set<UUID> excludedIds) {
+        // a file moved to an other name shows up as removed and added
+        return ids.stream().filter(id -> !excludedIds.contains(id)).collect(Collectors.toList());
+    }
+
     @NotNull
     public Mono<Boolean> overrideFile(final String newFilename, final File srcData, final Updater.CommitContext context,
             final boolean replaceIfExists) {
@@ -131,19 +174,28 @@ public class GitUserManager implements UserManager {
 
     @NotNull
     private synchronized Flux<User> allUsers() {
-        return loadUsers(ALL_USERS_FILTER);
+        return loadUsers(ALL_USERS_FILTER, Limiter.Lane.BACKGROUND);
     }
 
     @NotNull
     private Flux<User> loadUsers(final TreeFilter filter) {
-        return metaIdMono.flatMap(albumList::getAlbum).<User> flatMapMany(
-                a -> a.listFiles(filter).flatMap(e -> limiter.limit(a.readObject(e.getFileId()).map(loader -> {
-                    try {
-                        return userReader.readValue(loader.getBytes());
-                    } catch (IOException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                }), "load user "), 2)).map(this::cleanupUser);
+        return loadUsers(filter, Limiter.Lane.INTERACTIVE);
+    }
+
+    @NotNull
+    private Flux<User> loadUsers(final TreeFilter filter, final Limiter.Lane lane) {
+        return metaIdMono.flatMap(albumList::getAlbum)
+                .flatMapMany(a -> a.listFiles(filter).flatMap(e -> readUser(a, e.getFileId(), lane), 2));
+    }
+
+    private Mono<User> readUser(final GitAccess access, final ObjectId fileId, final Limiter.Lane lane) {
+        return limiter.limit(access.readObject(fileId).map(loader -> {
+            try {
+                return userReader.<User> readValue(loader.getBytes());
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }), lane, "load user ").map(this::cleanupUser);
     }
 
     private User cleanupUser(final User user) {
@@ -155,14 +207,23 @@ public class GitUserManager implements UserManager {
 
     @NotNull
     private Flux<Group> loadGroup(final TreeFilter filter) {
-        return metaIdMono.flatMap(albumList::getAlbum).<Group> flatMapMany(
-                a -> a.listFiles(filter).flatMap(e -> limiter.limit(a.readObject(e.getFileId()).map(loader -> {
-                    try {
-                        return groupReader.<Group> readValue(loader.getBytes());
-                    } catch (IOException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                }), "load user "))).map(this::cleanupGroup);
+        return loadGroup(filter, Limiter.Lane.INTERACTIVE);
+    }
+
+    @NotNull
+    private Flux<Group> loadGroup(final TreeFilter filter, final Limiter.Lane lane) {
+        return metaIdMono.flatMap(albumList::getAlbum)
+                .flatMapMany(a -> a.listFiles(filter).flatMap(e -> readGroup(a, e.getFileId(), lane)));
+    }
+
+    private Mono<Group> readGroup(final GitAccess access, final ObjectId fileId, final Limiter.Lane lane) {
+        return limiter.limit(access.readObject(fileId).map(loader -> {
+            try {
+                return groupReader.<Group> readValue(loader.getBytes());
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }), lane, "load group ").map(this::cleanupGroup);
     }
 
     private Group cleanupGroup(final Group group) {
@@ -194,7 +255,7 @@ public class GitUserManager implements UserManager {
 
     @Override
     public synchronized Flux<Group> listGroups() {
-        return loadGroup(ALL_GROUPS_FILTER);
+        return loadGroup(ALL_GROUPS_FILTER, Limiter.Lane.BACKGROUND);
     }
 
     @Override
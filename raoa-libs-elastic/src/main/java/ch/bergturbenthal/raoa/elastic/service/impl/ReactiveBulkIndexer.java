@@ -0,0 +1,245 @@
+package ch.bergturbenthal.raoa.elastic.service.impl;
+
+import ch.bergturbenthal.raoa.elastic.service.BulkIndexer;
+import ch.bergturbenthal.raoa.libs.properties.Properties;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.Time;
+import co.elastic.clients.elasticsearch.core.BulkResponse;
+import co.elastic.clients.elasticsearch.core.bulk.BulkOperation;
+import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
+import co.elastic.clients.elasticsearch.indices.IndexSettings;
+import co.elastic.clients.elasticsearch.indices.IndexState;
+import co.elastic.clients.json.JsonData;
+import co.elastic.clients.util.BinaryData;
+import co.elastic.clients.util.ContentType;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.json.JsonValue;
+import lombok.Data;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.elasticsearch.client.elc.ReactiveElasticsearchClient;
+import org.springframework.data.elasticsearch.client.elc.ReactiveElasticsearchTemplate;
+import org.springframework.data.elasticsearch.core.convert.ElasticsearchConverter;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Bulk requests are cut by size, the size follows the latency of the cluster: it is halved when a request takes longer
+ * than the target latency or documents are rejected, and grows while requests are fast. Documents rejected by a full
+ * write queue (429) are sent again, other failures are logged and skipped. Once the concurrent runs on an index have
+ * sent more documents than the backfill threshold, the refresh of the index is disabled until the last of them is
+ * done.
+ */
+@Slf4j
+@Service
+public class ReactiveBulkIndexer implements BulkIndexer {
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final Time REFRESH_DISABLED = Time.of(t -> t.time("-1"));
+    private final ReactiveElasticsearchClient client;
+    private final ReactiveElasticsearchTemplate elasticsearchTemplate;
+    private final MeterRegistry meterRegistry;
+    private final Properties properties;
+    private final AtomicLong batchBytes;
+    private final Map<String, Mono<Optional<Time>>> configuredRefreshIntervals = new ConcurrentHashMap<>();
+    private final Map<String, IndexRuns> runningIndexes = new HashMap<>();
+
+    public ReactiveBulkIndexer(final ReactiveElasticsearchClient client,
+            final ReactiveElasticsearchTemplate elasticsearchTemplate, final MeterRegistry meterRegistry,
+            final Properties properties) {
+        this.client = client;
+        this.elasticsearchTemplate = elasticsearchTemplate;
+        this.meterRegistry = meterRegistry;
+        this.properties = properties;
+        batchBytes = new AtomicLong(properties.getBulkMinSize().toBytes());
+        meterRegistry.gauge("elastic-bulk.batch-bytes", batchBytes);
+    }
+
+    private static boolean isTooManyRequests(final Throwable ex) {
+        return ex instanceof ElasticsearchException && ((ElasticsearchException) ex).status() == TOO_MANY_REQUESTS;
+    }
+
+    private static Optional<Time> refreshIntervalOf(final IndexSettings settings) {
+        // the settings of an existing index are nested below "index"
+        return Optional.ofNullable(settings.index()).map(IndexSettings::refreshInterval)
+                .or(() -> Optional.ofNullable(settings.refreshInterval()));
+    }
+
+    @Override
+    public <T> Flux<T> index(final Class<T> type, final Function<T, String> idFunction, final Flux<T> documents) {
+        final String index = elasticsearchTemplate.getIndexCoordinatesFor(type).getIndexName();
+        final ElasticsearchConverter converter = elasticsearchTemplate.getElasticsearchConverter();
+        return Flux.usingWhen(Mono.fromSupplier(() -> startRun(index)), runs -> {
+            final AtomicLong pendingBytes = new AtomicLong();
+            return documents.map(document -> {
+                final byte[] json = converter.mapObject(document).toJson().getBytes(StandardCharsets.UTF_8);
+                return new BulkEntry<>(document, idFunction.apply(document), json);
+            }).bufferUntil(entry -> {
+                if (pendingBytes.addAndGet(entry.getJson().length) < batchBytes.get())
+                    return false;
+                pendingBytes.set(0);
+                return true;
+            }).flatMap(batch -> {
+                final Mono<Void> prepare = countDocuments(runs, batch.size()) ? suspendRefresh(index) : Mono.empty();
+                return prepare.thenMany(send(index, batch, 0));
+            }, properties.getBulkConcurrency());
+        }, runs -> finishRun(index, runs), (runs, ex) -> finishRun(index, runs), runs -> finishRun(index, runs));
+    }
+
+    private <T> Flux<T> send(final String index, final List<BulkEntry<T>> batch, final int attempt) {
+        final List<BulkOperation> operations = new ArrayList<>(batch.size());
+        for (BulkEntry<T> entry : batch) {
+            final BinaryData data = BinaryData.of(entry.getJson(), ContentType.APPLICATION_JSON);
+            operations.add(BulkOperation.of(b -> b.index(i -> i.index(index).id(entry.getId()).document(data))));
+        }
+        final AtomicLong startTime = new AtomicLong();
+        return Mono.defer(() -> {
+            startTime.set(System.nanoTime());
+            return client.bulk(b -> b.index(index).operations(operations));
+        }).doOnError(ex -> adaptBatchSize(System.nanoTime() - startTime.get(), isTooManyRequests(ex)))
+                .retryWhen(Retry.backoff(properties.getBulkMaxRetries(), properties.getBulkRetryBackoff())
+                        .filter(ReactiveBulkIndexer::isTooManyRequests))
+                .flatMapMany(response -> {
+                    final long latency = System.nanoTime() - startTime.get();
+                    meterRegistry.timer("elastic-bulk.latency", "index", index).record(latency, TimeUnit.NANOSECONDS);
+                    return handleResponse(index, batch, attempt, response, latency);
+                });
+    }
+
+    private <T> Flux<T> handleResponse(final String index, final List<BulkEntry<T>> batch, final int attempt,
+            final BulkResponse response, final long latency) {
+        final List<T> written = new ArrayList<>(batch.size());
+        final List<BulkEntry<T>> rejected = new ArrayList<>();
+        final List<BulkResponseItem> items = response.items();
+        for (int i = 0; i < items.size(); i++) {
+            final BulkResponseItem item = items.get(i);
+            if (item.error() == null)
+                written.add(batch.get(i).getDocument());
+            else if (item.status() == TOO_MANY_REQUESTS)
+                rejected.add(batch.get(i));
+            else {
+                log.warn("Cannot index " + item.id() + " into " + index + ": " + item.error().reason());
+                meterRegistry.counter("elastic-bulk.documents", "index", index, "result", "failed").increment();
+            }
+        }
+        meterRegistry.counter("elastic-bulk.documents", "index", index, "result", "written").increment(written.size());
+        adaptBatchSize(latency, !rejected.isEmpty());
+        if (rejected.isEmpty())
+            return Flux.fromIterable(written);
+        if (attempt >= properties.getBulkMaxRetries()) {
+            log.warn("Giving up on " + rejected.size() + " rejected documents for " + index);
+            meterRegistry.counter("elastic-bulk.documents", "index", index, "result", "failed")
+                    .increment(rejected.size());
+            return Flux.fromIterable(written);
+        }
+        meterRegistry.counter("elastic-bulk.retries", "index", index).increment(rejected.size());
+        final Duration delay = properties.getBulkRetryBackoff().multipliedBy(1L << attempt);
+        return Flux.concat(Flux.fromIterable(written),
+                Mono.delay(delay).thenMany(Flux.defer(() -> send(index, rejected, attempt + 1))));
+    }
+
+    private void adaptBatchSize(final long latency, final boolean rejected) {
+        final long minBytes = properties.getBulkMinSize().toBytes();
+        final long maxBytes = properties.getBulkMaxSize().toBytes();
+        final long targetLatency = properties.getBulkTargetLatency().toNanos();
+        batchBytes.updateAndGet(current -> {
+            if (rejected || latency > targetLatency)
+                return Math.max(minBytes, current / 2);
+            if (latency < targetLatency / 2)
+                return Math.min(maxBytes, current + minBytes);
+            return current;
+        });
+    }
+
+    private Mono<Optional<Time>> configuredRefreshInterval(final String index) {
+        return configuredRefreshIntervals.computeIfAbsent(index, k -> client.indices().getSettings(r -> r.index(k))
+                .map(response -> response.result().values().stream().findFirst().map(IndexState::settings)
+                        .flatMap(ReactiveBulkIndexer::refreshIntervalOf)
+                        // left over from a process which stopped during a backfill
+                        .filter(interval -> !(interval.isTime() && "-1".equals(interval.time()))))
+                .doOnError(ex -> configuredRefreshIntervals.remove(k)).cache());
+    }
+
+    private Mono<Void> putRefreshInterval(final String index, final Time interval) {
+        return client.indices().putSettings(r -> r.index(index).settings(s -> s.refreshInterval(interval))).then();
+    }
+
+    // null takes the setting away, so the index falls back to the default of elasticsearch
+    private Mono<Void> resetRefreshInterval(final String index) {
+        return client.indices().putSettings(r -> r.index(index)
+                .settings(s -> s.otherSettings("refresh_interval", JsonData.of(JsonValue.NULL)))).then();
+    }
+
+    private IndexRuns startRun(final String index) {
+        synchronized (runningIndexes) {
+            final IndexRuns runs = runningIndexes.computeIfAbsent(index, k -> new IndexRuns());
+            runs.setActiveRuns(runs.getActiveRuns() + 1);
+            return runs;
+        }
+    }
+
+    /**
+     * @return true for the batch which takes the documents of all runs over the backfill threshold
+     */
+    private boolean countDocuments(final IndexRuns runs, final int count) {
+        synchronized (runningIndexes) {
+            runs.setDocumentCount(runs.getDocumentCount() + count);
+            if (runs.isRefreshSuspended() || runs.getDocumentCount() < properties.getBulkBackfillThreshold())
+                return false;
+            runs.setRefreshSuspended(true);
+            return true;
+        }
+    }
+
+    private Mono<Void> finishRun(final String index, final IndexRuns runs) {
+        synchronized (runningIndexes) {
+            runs.setActiveRuns(runs.getActiveRuns() - 1);
+            if (runs.getActiveRuns() > 0)
+                return Mono.empty();
+            runningIndexes.remove(index);
+            if (!runs.isRefreshSuspended())
+                return Mono.empty();
+        }
+        return resumeRefresh(index);
+    }
+
+    private Mono<Void> suspendRefresh(final String index) {
+        log.info("Disable refresh of " + index + " while backfilling");
+        return configuredRefreshInterval(index).then(putRefreshInterval(index, REFRESH_DISABLED));
+    }
+
+    private Mono<Void> resumeRefresh(final String index) {
+        return configuredRefreshInterval(index)
+                .flatMap(interval -> interval.map(i -> putRefreshInterval(index, i))
+                        .orElseGet(() -> resetRefreshInterval(index)))
+                .doOnSuccess(v -> log.info("Restored refresh of " + index));
+    }
+
+    @Value
+    private static class BulkEntry<T> {
+        T document;
+        String id;
+        byte[] json;
+    }
+
+    // the runs on one index, guarded by the map of running indexes
+    @Data
+    private static class IndexRuns {
+        private int activeRuns;
+        private long documentCount;
+        private boolean refreshSuspended;
+    }
+}
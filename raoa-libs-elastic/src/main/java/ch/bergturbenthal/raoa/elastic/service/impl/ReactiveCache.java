@@ -0,0 +1,124 @@
+package ch.bergturbenthal.raoa.elastic.service.impl;
+
+import ch.bergturbenthal.raoa.libs.properties.Properties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Mono;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Least recently used cache of asynchronous lookups. Empty results are cached too. Concurrent misses of the same key
+ * share one load, an entry older than the refresh time is still returned but reloaded in the background, an entry
+ * older than the time to live is loaded again before it is returned.
+ */
+@Slf4j
+public class ReactiveCache<K, V> {
+    private final String name;
+    private final Function<K, Mono<V>> loader;
+    private final int maxSize;
+    private final long timeToLiveNanos;
+    private final long refreshAfterNanos;
+    private final MeterRegistry meterRegistry;
+    private final Map<K, CacheEntry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<K, Mono<Optional<V>>> pendingLoads = new HashMap<>();
+
+    public ReactiveCache(final String name, final Function<K, Mono<V>> loader,
+            final Properties.CacheProperties properties, final MeterRegistry meterRegistry) {
+        this.name = name;
+        this.loader = loader;
+        this.meterRegistry = meterRegistry;
+        maxSize = properties.getSize();
+        timeToLiveNanos = properties.getTimeToLive().toNanos();
+        refreshAfterNanos = properties.getRefreshAfter().toNanos();
+        Gauge.builder("data-view-cache.size", this, c -> {
+            synchronized (c.entries) {
+                return c.entries.size();
+            }
+        }).tag("cache", name).register(meterRegistry);
+    }
+
+    public Mono<V> get(final K key) {
+        return Mono.defer(() -> {
+            final long now = System.nanoTime();
+            synchronized (entries) {
+                final CacheEntry<V> entry = entries.get(key);
+                if (entry != null && now - entry.getLoadTime() < timeToLiveNanos) {
+                    meterRegistry.counter("data-view-cache.requests", "cache", name, "result", "hit").increment();
+                    if (now - entry.getLoadTime() >= refreshAfterNanos && !pendingLoads.containsKey(key)) {
+                        meterRegistry.counter("data-view-cache.refresh", "cache", name).increment();
+                        load(key).subscribe(v -> {
+                        }, ex -> log.warn("Cannot refresh " + key + " in " + name, ex));
+                    }
+                    return Mono.just(entry.getValue());
+                }
+                meterRegistry.counter("data-view-cache.requests", "cache", name, "result", "miss").increment();
+                return load(key);
+            }
+        }).flatMap(Mono::justOrEmpty);
+    }
+
+    public void invalidate(final K key) {
+        synchronized (entries) {
+            entries.remove(key);
+            // a load started before is not stored anymore
+            pendingLoads.remove(key);
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+            pendingLoads.clear();
+        }
+    }
+
+    // called with the lock held
+    private Mono<Optional<V>> load(final K key) {
+        final Mono<Optional<V>> pending = pendingLoads.get(key);
+        if (pending != null)
+            return pending;
+        final AtomicReference<Mono<Optional<V>>> self = new AtomicReference<>();
+        final Mono<Optional<V>> newLoad = Mono.defer(() -> {
+            final Timer.Sample sample = Timer.start(meterRegistry);
+            return loader.apply(key).map(Optional::of).defaultIfEmpty(Optional.empty())
+                    .doOnSuccess(v -> sample.stop(meterRegistry.timer("data-view-cache.load", "cache", name, "result",
+                            "success")))
+                    .doOnError(ex -> sample
+                            .stop(meterRegistry.timer("data-view-cache.load", "cache", name, "result", "error")));
+        }).doOnNext(value -> {
+            synchronized (entries) {
+                if (pendingLoads.get(key) != self.get())
+                    return;
+                entries.put(key, new CacheEntry<>(value, System.nanoTime()));
+                final Iterator<K> iterator = entries.keySet().iterator();
+                while (entries.size() > maxSize && iterator.hasNext()) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            }
+        }).doFinally(signal -> {
+            synchronized (entries) {
+                pendingLoads.remove(key, self.get());
+            }
+        }).cache();
+        self.set(newLoad);
+        pendingLoads.put(key, newLoad);
+        return newLoad;
+    }
+
+    @Value
+    private static class CacheEntry<V> {
+        Optional<V> value;
+        long loadTime;
+    }
+}
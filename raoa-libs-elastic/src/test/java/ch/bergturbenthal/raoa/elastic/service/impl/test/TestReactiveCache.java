@@ -0,0 +1,76 @@
+package ch.bergturbenthal.raoa.elastic.service.impl.test;
+
+import ch.bergturbenthal.raoa.elastic.service.impl.ReactiveCache;
+import ch.bergturbenthal.raoa.libs.properties.Properties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+public class TestReactiveCache {
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private static Properties.CacheProperties cacheProperties(final Duration refreshAfter) {
+        final Properties.CacheProperties properties = new Properties.CacheProperties();
+        properties.setTimeToLive(Duration.ofHours(1));
+        properties.setRefreshAfter(refreshAfter);
+        return properties;
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() {
+        final AtomicInteger loadCount = new AtomicInteger();
+        final Sinks.One<String> result = Sinks.one();
+        final ReactiveCache<String, String> cache = new ReactiveCache<>("test", key -> {
+            loadCount.incrementAndGet();
+            return result.asMono();
+        }, cacheProperties(Duration.ofHours(1)), new SimpleMeterRegistry());
+
+        final List<String> received = new ArrayList<>();
+        cache.get("key").subscribe(received::add);
+        cache.get("key").subscribe(received::add);
+        result.tryEmitValue("value");
+
+        Assert.assertEquals(1, loadCount.get());
+        Assert.assertEquals(List.of("value", "value"), received);
+        Assert.assertEquals("value", cache.get("key").block(TIMEOUT));
+        Assert.assertEquals(1, loadCount.get());
+    }
+
+    @Test
+    public void testRefreshAheadReturnsOldValue() throws InterruptedException {
+        final AtomicInteger loadCount = new AtomicInteger();
+        final ReactiveCache<String, Integer> cache = new ReactiveCache<>("test",
+                key -> Mono.fromSupplier(loadCount::incrementAndGet), cacheProperties(Duration.ofMillis(50)),
+                new SimpleMeterRegistry());
+
+        Assert.assertEquals(Integer.valueOf(1), cache.get("key").block(TIMEOUT));
+        Thread.sleep(100);
+        Assert.assertEquals(Integer.valueOf(1), cache.get("key").block(TIMEOUT));
+        Assert.assertEquals(2, loadCount.get());
+        Assert.assertEquals(Integer.valueOf(2), cache.get("key").block(TIMEOUT));
+    }
+
+    @Test
+    public void testInvalidateDuringLoadDropsStaleResult() {
+        final AtomicInteger loadCount = new AtomicInteger();
+        final Sinks.One<String> staleResult = Sinks.one();
+        final ReactiveCache<String, String> cache = new ReactiveCache<>("test",
+                key -> loadCount.incrementAndGet() == 1 ? staleResult.asMono() : Mono.just("fresh"),
+                cacheProperties(Duration.ofHours(1)), new SimpleMeterRegistry());
+
+        final List<String> received = new ArrayList<>();
+        cache.get("key").subscribe(received::add);
+        cache.invalidate("key");
+        staleResult.tryEmitValue("stale");
+
+        Assert.assertEquals(List.of("stale"), received);
+        Assert.assertEquals("fresh", cache.get("key").block(TIMEOUT));
+        Assert.assertEquals(2, loadCount.get());
+    }
+}
@@ -4,8 +4,11 @@ import ch.bergturbenthal.raoa.libs.properties.Properties;
 import ch.bergturbenthal.raoa.libs.service.AsyncService;
 import ch.bergturbenthal.raoa.libs.service.impl.BareGitAccess;
 import ch.bergturbenthal.raoa.libs.service.impl.ExecutorAsyncService;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+import org.eclipse.jgit.storage.file.WindowCacheStats;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
@@ -14,11 +17,13 @@ import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 import java.time.Duration;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
 
 @Configuration
 @EnableConfigurationProperties(Properties.class)
@@ -26,17 +31,51 @@ import java.util.concurrent.TimeUnit;
 @Slf4j
 public class RaoaLibConfiguration {
 
+    public RaoaLibConfiguration(final Properties properties, final MeterRegistry meterRegistry) {
+        // has to be installed before the first repository is opened
+        final WindowCacheConfig windowCacheConfig = new WindowCacheConfig();
+        windowCacheConfig.setPackedGitLimit(properties.getGitPackedGitLimit().toBytes());
+        windowCacheConfig.setPackedGitWindowSize(Math.toIntExact(properties.getGitPackedGitWindowSize().toBytes()));
+        windowCacheConfig.setPackedGitMMAP(properties.isGitPackedGitMmap());
+        windowCacheConfig.setPackedGitOpenFiles(properties.getGitPackedGitOpenFiles());
+        windowCacheConfig.setDeltaBaseCacheLimit(Math.toIntExact(properties.getGitDeltaBaseCacheLimit().toBytes()));
+        windowCacheConfig.setStreamFileThreshold(Math.toIntExact(properties.getGitStreamFileThreshold().toBytes()));
+        windowCacheConfig.install();
+        log.info("Installed jgit window cache: limit " + properties.getGitPackedGitLimit() + ", window "
+                + properties.getGitPackedGitWindowSize() + ", mmap " + properties.isGitPackedGitMmap());
+
+        // installing a configuration replaces the cache instance, so the statistics are looked up on every read
+        windowCacheGauge(meterRegistry, "hits", WindowCacheStats::getHitCount);
+        windowCacheGauge(meterRegistry, "misses", WindowCacheStats::getMissCount);
+        windowCacheGauge(meterRegistry, "hit-ratio", WindowCacheStats::getHitRatio);
+        windowCacheGauge(meterRegistry, "evictions", WindowCacheStats::getEvictionCount);
+        windowCacheGauge(meterRegistry, "load-time-average", WindowCacheStats::getAverageLoadTime);
+        windowCacheGauge(meterRegistry, "open-files", WindowCacheStats::getOpenFileCount);
+        windowCacheGauge(meterRegistry, "open-bytes", WindowCacheStats::getOpenByteCount);
+    }
+
+    private static void windowCacheGauge(final MeterRegistry meterRegistry, final String name,
+            final ToDoubleFunction<WindowCacheStats> value) {
+        Gauge.builder("jgit.window-cache." + name, () -> value.applyAsDouble(WindowCacheStats.getStats()))
+                .register(meterRegistry);
+    }
+
     @Bean
     public AsyncService asyncService(final Properties properties, MeterRegistry meterRegistry) {
+        final ExecutorService executor;
+        if (properties.isAsyncVirtualThreads()) {
+            executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("async-", 0).factory());
+        } else {
+            final CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("async");
+            threadFactory.setDaemon(true);
+            final LinkedBlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<>();
+            executor = new ThreadPoolExecutor(properties.getAsyncThreadCount(), properties.getAsyncThreadCount(),
+                    Duration.ofMinutes(1).toMillis(), TimeUnit.MILLISECONDS, workQueue, threadFactory);
+        }
+        log.info("Async tasks on " + (properties.isAsyncVirtualThreads() ? "virtual threads" : "thread pool")
+                + ", limits " + properties.getAsyncConcurrencyLimits());
 
-        final CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("async");
-        threadFactory.setDaemon(true);
-        final LinkedBlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<>();
-        final ThreadPoolExecutor executor = new ThreadPoolExecutor(properties.getAsyncThreadCount(),
-                properties.getAsyncThreadCount(), Duration.ofMinutes(1).toMillis(), TimeUnit.MILLISECONDS, workQueue,
-                threadFactory);
-
-        return new ExecutorAsyncService(executor, Optional.of(meterRegistry));
+        return new ExecutorAsyncService(executor, Optional.of(meterRegistry), properties.getAsyncConcurrencyLimits());
     }
 
     @Bean
@@ -0,0 +1,13 @@
+package ch.bergturbenthal.raoa.libs.model;
+
+import java.util.Set;
+import lombok.Builder;
+import lombok.Value;
+
+@Value
+@Builder
+public class XmpData {
+    String description;
+    Integer rating;
+    Set<String> keywords;
+}
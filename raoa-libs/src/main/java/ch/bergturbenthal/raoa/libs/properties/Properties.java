@@ -1,12 +1,18 @@
 package ch.bergturbenthal.raoa.libs.properties;
 
+import ch.bergturbenthal.raoa.libs.service.AsyncService;
+import ch.bergturbenthal.raoa.libs.service.Limiter;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.lang.NonNull;
+import org.springframework.util.unit.DataSize;
 import org.springframework.validation.annotation.Validated;
 
 import java.io.File;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.TimeZone;
 
 @Slf4j
@@ -20,8 +26,71 @@ public class Properties {
     private File thumbnailDir;
     @NonNull
     private File importDir;
+    // fixed limit of the limiter when it is not adaptive
     private int maxConcurrent = 30;
+    // the adaptive limiter follows the latency of the limited calls within these bounds
+    private boolean limiterAdaptive = true;
+    private int limiterMinConcurrent = 4;
+    private int limiterMaxConcurrent = 200;
+    private Duration limiterTimeout = Duration.ofSeconds(30);
+    // queued entries fail after this time unless the caller sets its own deadline
+    private Duration limiterQueueTimeout = Duration.ofSeconds(30);
+    // share of the free slots of each lane while several lanes are waiting
+    private Map<Limiter.Lane, Integer> limiterLaneWeights = new HashMap<>(
+            Map.of(Limiter.Lane.INTERACTIVE, 8, Limiter.Lane.BACKGROUND, 3, Limiter.Lane.MAINTENANCE, 1));
     private int asyncThreadCount = 10;
+    // one virtual thread per async task instead of a pool of asyncThreadCount threads
+    private boolean asyncVirtualThreads = false;
+    // maximum concurrent async tasks by operation class, unlimited if not set
+    private Map<AsyncService.OperationClass, Integer> asyncConcurrencyLimits = new HashMap<>();
     private String superuser = "107024483334418897627";
     private TimeZone timeZone = TimeZone.getDefault();
+    // defaults to .metadata in the thumbnail dir
+    private File metadataCacheDir;
+    private DataSize metadataCacheMemorySize = DataSize.ofMegabytes(32);
+    // defaults to album-registry in the metadata cache dir
+    private File registrySnapshotFile;
+    // global jgit pack cache, shared by all repositories
+    private DataSize gitPackedGitLimit = DataSize.ofMegabytes(256);
+    private DataSize gitPackedGitWindowSize = DataSize.ofKilobytes(64);
+    private boolean gitPackedGitMmap = false;
+    private int gitPackedGitOpenFiles = 512;
+    private DataSize gitDeltaBaseCacheLimit = DataSize.ofMegabytes(32);
+    // larger objects are streamed instead of loaded into memory
+    private DataSize gitStreamFileThreshold = DataSize.ofMegabytes(50);
+    // limits of the pool of open repositories
+    private int repositoryPoolSize = 256;
+    private int repositoryPoolMaxPackFiles = 2048;
+    private DataSize repositoryPoolMaxIndexMemory = DataSize.ofMegabytes(512);
+    // repository maintenance, enable it in only one process per repository root
+    private boolean maintenanceEnabled = false;
+    private Duration maintenanceInterval = Duration.ofMinutes(15);
+    private int maintenanceLooseObjectThreshold = 500;
+    private int maintenancePackThreshold = 20;
+    // maximum bytes per second read and written by maintenance
+    private DataSize maintenanceIoBudget = DataSize.ofMegabytes(20);
+    // size of bulk index requests, adapted within these bounds to stay below the target latency
+    private DataSize bulkMinSize = DataSize.ofKilobytes(512);
+    private DataSize bulkMaxSize = DataSize.ofMegabytes(16);
+    private Duration bulkTargetLatency = Duration.ofSeconds(1);
+    private int bulkConcurrency = 4;
+    // documents rejected by elasticsearch are sent again with a doubling delay
+    private int bulkMaxRetries = 5;
+    private Duration bulkRetryBackoff = Duration.ofMillis(500);
+    // refresh of the index is off once the concurrent indexing runs on it write more documents than this
+    private int bulkBackfillThreshold = 5000;
+    // lookup caches of the data view by name: user, group, album and authentication
+    private Map<String, CacheProperties> caches = new HashMap<>();
+
+    public CacheProperties cacheProperties(final String name) {
+        return caches.getOrDefault(name, new CacheProperties());
+    }
+
+    @Data
+    public static class CacheProperties {
+        private int size = 1000;
+        private Duration timeToLive = Duration.ofSeconds(30);
+        // older entries are still returned, but loaded again in the background
+        private Duration refreshAfter = Duration.ofSeconds(10);
+    }
 }
@@ -1,20 +1,68 @@
 package ch.bergturbenthal.raoa.libs.service;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.Callable;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 public interface AsyncService {
     <T> Mono<T> asyncMono(Callable<T> callable);
 
+    /**
+     * Runs the callable counted against the concurrency limit of its operation class, if there is one
+     */
+    default <T> Mono<T> asyncMono(OperationClass operationClass, Callable<T> callable) {
+        return asyncMono(callable);
+    }
+
     default <T> Mono<T> asyncMonoOptional(Callable<Optional<T>> callable) {
         return asyncMono(callable).filter(Optional::isPresent).map(Optional::get);
     }
 
+    default <T> Mono<T> asyncMonoOptional(OperationClass operationClass, Callable<Optional<T>> callable) {
+        return asyncMono(operationClass, callable).filter(Optional::isPresent).map(Optional::get);
+    }
+
     <T> Flux<T> asyncFlux(RelaxConsumer<Consumer<T>> sinkHandler);
 
+    default <T> Flux<T> asyncFlux(OperationClass operationClass, RelaxConsumer<Consumer<T>> sinkHandler) {
+        return asyncFlux(sinkHandler);
+    }
+
+    /**
+     * Like asyncFlux, but the elements are handed over to the subscriber in chunks, so the producer only waits for
+     * demand once per chunk. At most two chunks are buffered ahead of the subscriber.
+     */
+    default <T> Flux<T> asyncFluxChunked(OperationClass operationClass, int chunkSize,
+            RelaxConsumer<Consumer<T>> sinkHandler) {
+        return this.<List<T>> asyncFlux(operationClass, chunkConsumer -> {
+            final List<T> chunk = new ArrayList<>(chunkSize);
+            sinkHandler.accept(element -> {
+                chunk.add(element);
+                if (chunk.size() >= chunkSize) {
+                    chunkConsumer.accept(new ArrayList<>(chunk));
+                    chunk.clear();
+                }
+            });
+            if (!chunk.isEmpty())
+                chunkConsumer.accept(chunk);
+        }).flatMapIterable(Function.identity(), 2);
+    }
+
+    enum OperationClass {
+        // reading refs, trees and objects of a repository
+        GIT_READ,
+        // parsing media files for their metadata
+        TIKA,
+        // plain filesystem work like directory scans
+        FILE_IO,
+        OTHER
+    }
+
     @FunctionalInterface
     interface RelaxConsumer<T> {
         void accept(T t) throws Exception;
@@ -0,0 +1,22 @@
+package ch.bergturbenthal.raoa.libs.service;
+
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Autoadd times of all albums, kept in memory. The answers wait for the initial scan of the albums, afterwards they
+ * never touch a repository.
+ */
+public interface AutoaddIndex {
+    /**
+     * Album with the latest autoadd time before the timestamp
+     */
+    Mono<UUID> albumOf(Instant timestamp);
+
+    /**
+     * Album with the latest autoadd time of all
+     */
+    Mono<UUID> latestAlbum();
+}
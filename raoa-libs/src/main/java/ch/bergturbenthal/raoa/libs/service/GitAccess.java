@@ -1,6 +1,7 @@
 package ch.bergturbenthal.raoa.libs.service;
 
 import ch.bergturbenthal.raoa.libs.model.AlbumMeta;
+import ch.bergturbenthal.raoa.libs.model.XmpData;
 import com.adobe.internal.xmp.XMPMeta;
 import java.time.Instant;
 import java.util.Collection;
@@ -15,6 +16,10 @@ import reactor.core.publisher.Mono;
 public interface GitAccess {
     Flux<GitFileEntry> listFiles(TreeFilter filter);
 
+    Mono<GitSnapshot> snapshot();
+
+    Mono<GitSnapshot> snapshotAt(ObjectId commitId);
+
     Mono<ObjectLoader> readObject(AnyObjectId fileId);
 
     Mono<String> filenameOfObject(AnyObjectId objectId);
@@ -29,6 +34,12 @@ public interface GitAccess {
 
     Mono<Updater> createUpdater();
 
+    /**
+     * Updater for importing many files at once: the imported files are collected in one pack, which is written when
+     * committing. Closing without commit discards them.
+     */
+    Mono<Updater> createBulkUpdater();
+
     Mono<String> getName();
 
     Mono<String> getFullPath();
@@ -41,10 +52,15 @@ public interface GitAccess {
 
     Mono<XMPMeta> readXmpMeta(ObjectLoader loader);
 
+    Mono<XmpData> readXmpData(AnyObjectId xmpFileId);
+
     Mono<Boolean> writeXmpMeta(String filename, XMPMeta xmpMeta, final Updater.CommitContext context);
 
     Mono<ObjectId> writeXmpMeta(String filename, XMPMeta xmpMeta, Updater updater);
 
+    /**
+     * @return the repository of the album, the caller closes it when done
+     */
     Mono<Repository> getRepository();
 
     @Value
@@ -0,0 +1,65 @@
+package ch.bergturbenthal.raoa.libs.service;
+
+import ch.bergturbenthal.raoa.libs.model.AlbumMeta;
+import lombok.Value;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.treewalk.filter.OrTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathSuffixFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+
+/**
+ * Immutable view of an album pinned to one commit. Derived data is computed at most once per snapshot.
+ */
+public interface GitSnapshot {
+    TreeFilter MEDIA_FILE_FILTER = OrTreeFilter.create(new TreeFilter[] { PathSuffixFilter.create(".jpg"),
+            PathSuffixFilter.create(".jpeg"), PathSuffixFilter.create(".JPG"), PathSuffixFilter.create(".JPEG"),
+            PathSuffixFilter.create(".nef"), PathSuffixFilter.create(".NEF"), PathSuffixFilter.create(".mp4"),
+            PathSuffixFilter.create(".MP4"), PathSuffixFilter.create(".mkv") });
+    TreeFilter XMP_FILE_FILTER = PathSuffixFilter.create(".xmp");
+
+    ObjectId getCommitId();
+
+    ObjectId getTreeId();
+
+    Flux<GitAccess.GitFileEntry> listFiles(TreeFilter filter);
+
+    Flux<GitAccess.GitFileEntry> listMediaFiles();
+
+    Flux<GitAccess.GitFileEntry> listXmpFiles();
+
+    /**
+     * Files matching the filter which differ between the tree of the given commit and this snapshot. Fails with a
+     * MissingObjectException if the commit is not in the repository anymore.
+     */
+    Flux<FileChange> changesSince(ObjectId baseCommitId, TreeFilter filter);
+
+    Mono<ObjectLoader> readObject(String filename);
+
+    Mono<String> filenameOfObject(AnyObjectId objectId);
+
+    Mono<AlbumMeta> getMetadata();
+
+    Flux<Instant> readAutoadd();
+
+    /**
+     * Blob id of the autoadd file, empty if the album has none
+     */
+    Mono<ObjectId> getAutoaddId();
+
+    Mono<String> getName();
+
+    @Value
+    class FileChange {
+        String path;
+        // null if the file was added
+        ObjectId oldId;
+        // null if the file was removed
+        ObjectId newId;
+    }
+}
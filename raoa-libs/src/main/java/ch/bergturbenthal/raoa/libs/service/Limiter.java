@@ -1,5 +1,6 @@
 package ch.bergturbenthal.raoa.libs.service;
 
+import java.time.Instant;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
@@ -7,4 +8,35 @@ public interface Limiter {
     <T> Mono<T> limit(Mono<T> input, String context);
 
     <T> Flux<T> limit(Flux<T> input, String context);
+
+    /**
+     * Queues the input in the given lane, until the default queue timeout of the limiter
+     */
+    default <T> Mono<T> limit(Mono<T> input, Lane lane, String context) {
+        return limit(input, context);
+    }
+
+    default <T> Flux<T> limit(Flux<T> input, Lane lane, String context) {
+        return limit(input, context);
+    }
+
+    /**
+     * Queues the input in the given lane, an input still waiting at the deadline fails with a TimeoutException
+     */
+    default <T> Mono<T> limit(Mono<T> input, Lane lane, Instant deadline, String context) {
+        return limit(input, lane, context);
+    }
+
+    default <T> Flux<T> limit(Flux<T> input, Lane lane, Instant deadline, String context) {
+        return limit(input, lane, context);
+    }
+
+    enum Lane {
+        // a user is waiting for the result
+        INTERACTIVE,
+        // synchronization and indexing
+        BACKGROUND,
+        // housekeeping, gets the smallest share of the free slots
+        MAINTENANCE
+    }
 }
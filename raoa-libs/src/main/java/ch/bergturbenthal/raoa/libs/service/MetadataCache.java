@@ -0,0 +1,13 @@
+package ch.bergturbenthal.raoa.libs.service;
+
+import ch.bergturbenthal.raoa.libs.model.XmpData;
+import java.util.concurrent.Callable;
+import org.apache.tika.metadata.Metadata;
+import org.eclipse.jgit.lib.AnyObjectId;
+import reactor.core.publisher.Mono;
+
+public interface MetadataCache {
+    Mono<Metadata> metadataOf(AnyObjectId blobId, Callable<Metadata> extractor);
+
+    Mono<XmpData> xmpDataOf(AnyObjectId blobId, Callable<XmpData> extractor);
+}
@@ -1,26 +1,24 @@
 package ch.bergturbenthal.raoa.libs.service.impl;
 
-import ch.bergturbenthal.raoa.libs.model.AlbumMeta;
 import ch.bergturbenthal.raoa.libs.properties.Properties;
 import ch.bergturbenthal.raoa.libs.service.AlbumList;
 import ch.bergturbenthal.raoa.libs.service.AsyncService;
 import ch.bergturbenthal.raoa.libs.service.FileImporter;
 import ch.bergturbenthal.raoa.libs.service.GitAccess;
+import ch.bergturbenthal.raoa.libs.service.GitSnapshot;
+import ch.bergturbenthal.raoa.libs.service.MetadataCache;
 import ch.bergturbenthal.raoa.libs.service.Updater;
+import ch.bergturbenthal.raoa.libs.util.FastMetadataExtractor;
 import ch.bergturbenthal.raoa.libs.util.TikaUtil;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.tika.exception.TikaException;
-import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
-import org.apache.tika.parser.AutoDetectParser;
-import org.apache.tika.sax.BodyContentHandler;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.lib.ObjectId;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.stereotype.Service;
-import org.xml.sax.SAXException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Scheduler;
@@ -28,6 +26,7 @@ import reactor.core.scheduler.Schedulers;
 import reactor.util.function.Tuple2;
 import reactor.util.function.Tuples;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -35,6 +34,7 @@ import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -42,10 +42,14 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.SortedMap;
-import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -54,12 +58,15 @@ import java.util.stream.Stream;
 
 @Slf4j
 @Service
-public class BareAlbumList implements AlbumList {
-    public static final Duration MAX_REPOSITORY_CACHE_TIME = Duration.ofMinutes(5);
-    public static final Duration MAX_AUTOINDEX_CACHE_TIME = Duration.ofMinutes(5);
+public class BareAlbumList implements AlbumList, Closeable {
+    // catches changes the watch service cannot see, like albums on network filesystems or changes of other processes
+    private static final Duration RECONCILE_INTERVAL = Duration.ofMinutes(30);
+    private static final Duration WATCH_POLL_INTERVAL = Duration.ofSeconds(2);
+    // repositories created by other processes are initialized after their directory appears
+    private static final Duration NEW_REPOSITORY_DELAY = Duration.ofSeconds(2);
+    private static final Duration SNAPSHOT_WRITE_INTERVAL = Duration.ofSeconds(10);
     private static final Collection<String> IMPORTING_TYPES = new HashSet<>(
             Arrays.asList("image/jpeg", "image/tiff", "application/mp4", "video/mp4"));
-    private final AtomicReference<CachedData> scanCache = new AtomicReference<>();
     /*
      * private final ExecutorService ioExecutor = Executors.newFixedThreadPool( 50, new ThreadFactory() { AtomicInteger
      * threadId = new AtomicInteger();
@@ -71,10 +78,28 @@ public class BareAlbumList implements AlbumList {
     private final Scheduler processScheduler;
     private final Path repoRootPath;
     private final Properties properties;
+    private final MetadataCache metadataCache;
+    private final RepositoryPool repositoryPool;
+    // one access per repository for the whole lifetime, so their caches survive every refresh
+    private final Map<Path, GitAccess> accesses = new ConcurrentHashMap<>();
+    private final Map<Path, RegisteredAlbum> registeredAlbums = new ConcurrentHashMap<>();
+    private final AtomicReference<Map<UUID, GitAccess>> albumsById = new AtomicReference<>(Collections.emptyMap());
+    private final DefaultAutoaddIndex autoaddIndex;
+    private final Mono<Void> initialScan;
+    private final Path snapshotFile;
+    private final AtomicBoolean snapshotOutdated = new AtomicBoolean(false);
+    private final RepositoryTreeWatcher watcher;
+    // the poll, snapshot and reconcile tasks, stopped on close
+    private final List<ScheduledFuture<?>> scheduledTasks = new ArrayList<>();
 
-    public BareAlbumList(Properties properties, MeterRegistry meterRegistry, final AsyncService asyncService) {
+    public BareAlbumList(Properties properties, MeterRegistry meterRegistry, final AsyncService asyncService,
+            final MetadataCache metadataCache, final RepositoryPool repositoryPool,
+            final ScheduledExecutorService executorService, final DefaultAutoaddIndex autoaddIndex) {
         this.properties = properties;
+        this.autoaddIndex = autoaddIndex;
         this.asyncService = asyncService;
+        this.metadataCache = metadataCache;
+        this.repositoryPool = repositoryPool;
 
         processScheduler = Schedulers.newBoundedElastic(2, 300, "process");
         repoRootPath = this.properties.getRepository().toPath();
@@ -86,7 +111,35 @@ public class BareAlbumList implements AlbumList {
             }
         }
         this.meterRegistry = meterRegistry;
-        resetCache();
+        meterRegistry.gauge("album-list.albums", registeredAlbums, Map::size);
+        // watch before the first scan, so no album created in between is missed
+        RepositoryTreeWatcher treeWatcher = null;
+        try {
+            treeWatcher = new RepositoryTreeWatcher(repoRootPath, new WatchListener());
+            scheduledTasks.add(executorService.scheduleWithFixedDelay(treeWatcher::poll, WATCH_POLL_INTERVAL.toMillis(),
+                    WATCH_POLL_INTERVAL.toMillis(), TimeUnit.MILLISECONDS));
+        } catch (IOException e) {
+            log.warn("Cannot watch " + repoRootPath + ", new albums are found by the periodic scan only", e);
+        }
+        watcher = treeWatcher;
+        snapshotFile = Optional.ofNullable(properties.getRegistrySnapshotFile())
+                .orElseGet(() -> new File(Optional.ofNullable(properties.getMetadataCacheDir())
+                        .orElseGet(() -> new File(properties.getThumbnailDir(), ".metadata")), "album-registry"))
+                .toPath();
+        if (loadSnapshot()) {
+            // serve the snapshot right away and catch up with the repositories in the background
+            initialScan = Mono.empty();
+            autoaddIndex.markLoaded();
+            resetCache();
+        } else {
+            initialScan = reconcile().doOnTerminate(autoaddIndex::markLoaded).cache();
+            // the autoadd index is queried without going through this list, so it has to be filled eagerly
+            initialScan.subscribe();
+        }
+        scheduledTasks.add(executorService.scheduleWithFixedDelay(this::writeSnapshotIfOutdated,
+                SNAPSHOT_WRITE_INTERVAL.toMillis(), SNAPSHOT_WRITE_INTERVAL.toMillis(), TimeUnit.MILLISECONDS));
+        scheduledTasks.add(executorService.scheduleWithFixedDelay(this::resetCache, RECONCILE_INTERVAL.toMillis(),
+                RECONCILE_INTERVAL.toMillis(), TimeUnit.MILLISECONDS));
     }
 
     private static void listSubdirs(final Path dir, final Consumer<Path> fluxSink) throws IOException {
@@ -106,25 +159,145 @@ public class BareAlbumList implements AlbumList {
         }
     }
 
+    /**
+     * Stops the background tasks and the watch service, the shared executor keeps running
+     */
+    @Override
+    public void close() throws IOException {
+        scheduledTasks.forEach(task -> task.cancel(false));
+        if (watcher != null)
+            watcher.close();
+        processScheduler.dispose();
+    }
+
+    /**
+     * Scans the whole repository root again. Known repositories keep their access, vanished ones are dropped.
+     */
     @Override
     public void resetCache() {
+        reconcile().subscribe();
+    }
+
+    /**
+     * Like resetCache, completes when the scan is done
+     */
+    public Mono<Void> reconcile() {
+        final Timer.Sample sample = Timer.start(meterRegistry);
+        return listSubdirs(repoRootPath).collect(Collectors.toSet()).flatMap(found -> {
+            accesses.keySet().retainAll(found);
+            if (registeredAlbums.keySet().retainAll(found))
+                updateAlbumView();
+            return Flux.fromIterable(found).flatMap(this::refreshIfChanged, 4).then();
+        }).doOnTerminate(() -> sample.stop(meterRegistry.timer("album-list.reconcile")));
+    }
+
+    private boolean loadSnapshot() {
+        final Timer.Sample sample = Timer.start(meterRegistry);
+        final List<RegistrySnapshot.Entry> entries = RegistrySnapshot.read(snapshotFile);
+        for (RegistrySnapshot.Entry entry : entries) {
+            final Path gitDir = repoRootPath.resolve(entry.getRelativePath());
+            registeredAlbums.put(gitDir, new RegisteredAlbum(entry.getAlbumId(), accessOf(gitDir), entry.getHead(),
+                    entry.getTitle(), entry.getAutoaddId(), entry.getAutoadd()));
+        }
+        updateAlbumView();
+        snapshotOutdated.set(false);
+        sample.stop(meterRegistry.timer("album-list.snapshot.load"));
+        log.info("Loaded " + entries.size() + " albums from " + snapshotFile);
+        return !entries.isEmpty();
+    }
+
+    private void writeSnapshotIfOutdated() {
+        if (!snapshotOutdated.getAndSet(false))
+            return;
+        final List<RegistrySnapshot.Entry> entries = new ArrayList<>();
+        registeredAlbums.forEach((gitDir, album) -> entries
+                .add(new RegistrySnapshot.Entry(album.getAlbumId(), repoRootPath.relativize(gitDir).toString(),
+                        album.getHead(), album.getTitle(), album.getAutoaddId(), album.getAutoadd())));
+        try {
+            RegistrySnapshot.write(snapshotFile, entries);
+        } catch (IOException e) {
+            log.warn("Cannot write " + snapshotFile, e);
+        }
+    }
+
+    private GitAccess accessOf(final Path gitDir) {
+        return accesses.computeIfAbsent(gitDir,
+                p -> BareGitAccess.accessOf(p, repoRootPath.relativize(p), asyncService, processScheduler,
+                        meterRegistry, metadataCache, repositoryPool, () -> refreshAlbum(p).subscribe()));
+    }
+
+    // reading the head is cheap, the metadata is only read again when the album has changed since it was registered
+    private Mono<RegisteredAlbum> refreshIfChanged(final Path gitDir) {
+        final RegisteredAlbum known = registeredAlbums.get(gitDir);
+        if (known == null)
+            return refreshAlbum(gitDir);
+        return known.getAccess().getCurrentVersion().map(Optional::of).defaultIfEmpty(Optional.empty())
+                .flatMap(head -> {
+                    if (head.equals(Optional.ofNullable(known.getHead())))
+                        return Mono.just(known);
+                    return refreshAlbum(gitDir);
+                }).onErrorResume(e -> {
+                    log.warn("Cannot read head of " + gitDir, e);
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<RegisteredAlbum> refreshAlbum(final Path gitDir) {
+        final GitAccess access = accessOf(gitDir);
+        final RegisteredAlbum known = registeredAlbums.get(gitDir);
+        // a commit after taking the snapshot is seen by the next refresh
+        return access.getMetadata()
+                .flatMap(meta -> access.snapshot().flatMap(snapshot -> snapshot.getAutoaddId().map(Optional::of)
+                        .defaultIfEmpty(Optional.empty())
+                        .flatMap(autoaddId -> readAutoaddIfChanged(snapshot, known, autoaddId.orElse(null))
+                                .map(autoadd -> new RegisteredAlbum(meta.getAlbumId(), access,
+                                        snapshot.getCommitId(), meta.getAlbumTitle(), autoaddId.orElse(null),
+                                        autoadd)))))
+                .doOnNext(album -> {
+                    if (album.getAlbumId() == null)
+                        registeredAlbums.remove(gitDir);
+                    else
+                        registeredAlbums.put(gitDir, album);
+                    updateAlbumView();
+                }).filter(album -> album.getAlbumId() != null).onErrorResume(e -> {
+                    log.warn("Cannot refresh album at " + gitDir, e);
+                    return Mono.empty();
+                });
+    }
+
+    private static Mono<List<Instant>> readAutoaddIfChanged(final GitSnapshot snapshot, final RegisteredAlbum known,
+            final ObjectId autoaddId) {
+        if (known != null && Objects.equals(known.getAutoaddId(), autoaddId))
+            return Mono.just(known.getAutoadd());
+        return snapshot.readAutoadd().collectList();
+    }
+
+    private void removeAlbums(final Path path) {
+        accesses.keySet().removeIf(p -> p.startsWith(path));
+        if (registeredAlbums.keySet().removeIf(p -> p.startsWith(path)))
+            updateAlbumView();
+    }
+
+    private synchronized void updateAlbumView() {
+        final Map<UUID, GitAccess> repositories = new HashMap<>();
+        for (RegisteredAlbum album : registeredAlbums.values()) {
+            repositories.put(album.getAlbumId(), album.getAccess());
+            // only changed autoadd files are applied to the index
+            autoaddIndex.update(album.getAlbumId(), album.getAutoaddId(), album.getAutoadd());
+        }
+        for (UUID removedAlbum : albumsById.get().keySet())
+            if (!repositories.containsKey(removedAlbum))
+                autoaddIndex.remove(removedAlbum);
+        albumsById.set(Collections.unmodifiableMap(repositories));
+        snapshotOutdated.set(true);
+    }
 
-        final Mono<Map<UUID, GitAccess>> repositories = listSubdirs(repoRootPath)
-                .<GitAccess> map(p -> BareGitAccess.accessOf(p, repoRootPath.relativize(p), asyncService,
-                        processScheduler, meterRegistry))
-                .flatMap(p -> p.getMetadata().map(m -> Tuples.of(p, m)), 4)
-                .filter(t1 -> t1.getT2().getAlbumId() != null).collectMap(t -> t.getT2().getAlbumId(), Tuple2::getT1)
-                .cache(MAX_REPOSITORY_CACHE_TIME);
-        final Mono<SortedMap<Instant, UUID>> autoaddIndex = repositories.<SortedMap<Instant, UUID>> flatMap(reps -> Flux
-                .fromIterable(reps.entrySet())
-                .flatMap(e -> e.getValue().readAutoadd().map(t -> new AutoaddEntry(t, e.getKey())), 10)
-                .collect(Collectors.toMap(AutoaddEntry::getTime, AutoaddEntry::getId, (a, b) -> b, TreeMap::new)))
-                .cache(MAX_AUTOINDEX_CACHE_TIME);
-        scanCache.set(new CachedData(autoaddIndex, repositories));
+    private Mono<Map<UUID, GitAccess>> repositories() {
+        return initialScan.then(Mono.fromSupplier(albumsById::get));
     }
 
     private Flux<Path> listSubdirs(Path dir) {
-        return asyncService.asyncFlux(sink -> {
+        return asyncService.asyncFlux(AsyncService.OperationClass.FILE_IO, sink -> {
             final Path metaDir = dir.resolve(".meta.git");
             while (!Files.exists(metaDir)) {
                 log.info("Waiting for " + metaDir);
@@ -171,14 +344,15 @@ public class BareAlbumList implements AlbumList {
             private Mono<Tuple2<UUID, ObjectId>> doImportFile(final Path file, final String originalFileName,
                     final Function<UUID, Mono<Boolean>> albumFilter,
                     final Function<Instant, Mono<UUID>> repositorySelector) {
-                return scanCache.get().getRepositories().flatMap(
-                        reps -> asyncService.asyncMonoOptional(() -> detectTimestamp(file)).flatMap(createTimestamp -> {
+                return repositories().flatMap(reps -> asyncService
+                        .asyncMonoOptional(AsyncService.OperationClass.TIKA, () -> detectTimestamp(file))
+                        .flatMap(createTimestamp -> {
                             final String prefix = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss")
                                     .format(createTimestamp.atZone(properties.getTimeZone().toZoneId()));
                             final String targetFilename = prefix + "-" + originalFileName;
                             return repositorySelector.apply(createTimestamp).filterWhen(albumFilter)
                                     .flatMap(repositoryId -> pendingUpdaters
-                                            .computeIfAbsent(repositoryId, k -> reps.get(k).createUpdater().cache())
+                                            .computeIfAbsent(repositoryId, k -> reps.get(k).createBulkUpdater().cache())
                                             .flatMap(updater -> updater.importFile(file, targetFilename, true)
                                                     .map(objectId -> Tuples.of(repositoryId, objectId))
                                                     .onErrorResume(e -> {
@@ -191,26 +365,25 @@ public class BareAlbumList implements AlbumList {
             @Override
             public @NotNull Mono<Boolean> commitAll() {
                 return Flux.fromIterable(pendingUpdaters.values()).flatMap(m -> m)
-                        .flatMap((Updater updater) -> updater.commit(context)).reduce((b1, b2) -> b1 && b2)
-                        .defaultIfEmpty(Boolean.TRUE).doFinally(signal -> pendingUpdaters.clear())
-                        .doFinally(signal -> resetCache());
+                        .flatMap((Updater updater) -> updater.commit(context)
+                                .flatMap(committed -> updater.close().thenReturn(committed)))
+                        .reduce((b1, b2) -> b1 && b2)
+                        .defaultIfEmpty(Boolean.TRUE).doFinally(signal -> pendingUpdaters.clear());
             }
         };
     }
 
     @Override
     public Mono<UUID> detectTargetAlbum(final Path file) {
-        return scanCache.get().getRepositories()
-                .flatMap(reps -> asyncService.asyncMonoOptional(() -> detectTimestamp(file))).flatMap(this::albumOf);
+        return repositories()
+                .flatMap(reps -> asyncService.asyncMonoOptional(AsyncService.OperationClass.TIKA,
+                        () -> detectTimestamp(file))).flatMap(this::albumOf);
     }
 
-    private Optional<Instant> detectTimestamp(final Path file) throws IOException, SAXException, TikaException {
-        AutoDetectParser parser = new AutoDetectParser();
-        BodyContentHandler handler = new BodyContentHandler();
-        Metadata metadata = new Metadata();
-        final TikaInputStream inputStream = TikaInputStream.get(file);
+    private Optional<Instant> detectTimestamp(final Path file) {
+        final Metadata metadata;
         try {
-            parser.parse(inputStream, handler, metadata);
+            metadata = FastMetadataExtractor.extract(file);
         } catch (Throwable e) {
             log.error("Error while parsing file {}", file, e);
             return Optional.empty();
@@ -225,13 +398,13 @@ public class BareAlbumList implements AlbumList {
 
     @Override
     public Flux<FoundAlbum> listAlbums() {
-        return scanCache.get().getRepositories().flatMapIterable(Map::entrySet)
+        return repositories().flatMapIterable(Map::entrySet)
                 .map(e -> new FoundAlbum(e.getKey(), e.getValue()));
     }
 
     @Override
     public Flux<String> listParentDirs() {
-        return scanCache.get().getRepositories().flatMapIterable(Map::values).flatMap(GitAccess::getFullPath, 2)
+        return repositories().flatMapIterable(Map::values).flatMap(GitAccess::getFullPath, 2)
                 .map(f -> {
                     final int i = f.lastIndexOf('/');
                     if (i < 0)
@@ -242,7 +415,7 @@ public class BareAlbumList implements AlbumList {
 
     @Override
     public Mono<GitAccess> getAlbum(final UUID albumId) {
-        return scanCache.get().getRepositories().map(reps -> Optional.ofNullable(reps.get(albumId)))
+        return repositories().map(reps -> Optional.ofNullable(reps.get(albumId)))
                 .filter(Optional::isPresent).map(Optional::get);
     }
 
@@ -258,26 +431,48 @@ public class BareAlbumList implements AlbumList {
                 Git.init().setDirectory(dir).setBare(true).call();
             }
             return dir;
-        }).map(File::toPath)
-                .flatMap(p -> BareGitAccess
-                        .accessOf(p, repoRootPath.relativize(p), asyncService, processScheduler, meterRegistry)
-                        .getMetadata().map(AlbumMeta::getAlbumId).doOnNext(signal -> resetCache()));
+        }).map(File::toPath).flatMap(this::refreshAlbum).map(RegisteredAlbum::getAlbumId);
     }
 
     private Mono<UUID> albumOf(final Instant timestamp) {
-        return scanCache.get().getAutoaddIndex().map(i -> i.headMap(timestamp)).filter(t -> !t.isEmpty())
-                .map(t -> t.get(t.lastKey()));
+        return initialScan.then(autoaddIndex.albumOf(timestamp));
     }
 
     @Value
-    private static class AutoaddEntry {
-        Instant time;
-        UUID id;
+    private static class RegisteredAlbum {
+        UUID albumId;
+        GitAccess access;
+        // commit the entry was read from, null for albums without commits
+        ObjectId head;
+        String title;
+        // null if the album has no autoadd file
+        ObjectId autoaddId;
+        List<Instant> autoadd;
     }
 
-    @Value
-    private static class CachedData {
-        Mono<SortedMap<Instant, UUID>> autoaddIndex;
-        Mono<Map<UUID, GitAccess>> repositories;
+    private class WatchListener implements RepositoryTreeWatcher.Listener {
+        @Override
+        public void repositoryAppeared(final Path gitDir) {
+            Mono.delay(NEW_REPOSITORY_DELAY).then(Mono.defer(() -> refreshAlbum(gitDir))).subscribe();
+        }
+
+        @Override
+        public void directoryAppeared(final Path dir) {
+            Mono.delay(NEW_REPOSITORY_DELAY)
+                    .thenMany(Flux.defer(() -> asyncService.<Path> asyncFlux(AsyncService.OperationClass.FILE_IO,
+                            sink -> listSubdirs(dir, sink))))
+                    .flatMap(BareAlbumList.this::refreshAlbum, 4).subscribe();
+        }
+
+        @Override
+        public void removed(final Path path) {
+            removeAlbums(path);
+        }
+
+        @Override
+        public void overflow() {
+            log.info("Missed changes in " + repoRootPath + ", scanning again");
+            resetCache();
+        }
     }
 }
@@ -1,28 +1,31 @@
 package ch.bergturbenthal.raoa.libs.service.impl;
 
 import ch.bergturbenthal.raoa.libs.model.AlbumMeta;
+import ch.bergturbenthal.raoa.libs.model.XmpData;
 import ch.bergturbenthal.raoa.libs.service.AsyncService;
 import ch.bergturbenthal.raoa.libs.service.GitAccess;
+import ch.bergturbenthal.raoa.libs.service.GitSnapshot;
+import ch.bergturbenthal.raoa.libs.service.MetadataCache;
 import ch.bergturbenthal.raoa.libs.service.Updater;
+import ch.bergturbenthal.raoa.libs.util.FastMetadataExtractor;
 import com.adobe.internal.xmp.XMPMeta;
 import com.adobe.internal.xmp.XMPMetaFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.Cleanup;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.IOUtils;
 import org.apache.tika.exception.TikaException;
-import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
-import org.apache.tika.parser.AutoDetectParser;
-import org.apache.tika.sax.BodyContentHandler;
 import org.eclipse.jgit.dircache.DirCache;
 import org.eclipse.jgit.dircache.DirCacheBuildIterator;
 import org.eclipse.jgit.dircache.DirCacheBuilder;
 import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.dircache.DirCacheIterator;
 import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.events.ListenerHandle;
 import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.Constants;
@@ -38,7 +41,6 @@ import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
-import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.jetbrains.annotations.NotNull;
@@ -47,7 +49,6 @@ import org.xml.sax.SAXException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Scheduler;
-import reactor.function.TupleUtils;
 import reactor.util.function.Tuples;
 import reactor.util.retry.Retry;
 
@@ -55,26 +56,20 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.CharacterCodingException;
-import java.nio.charset.CharsetDecoder;
+import java.lang.ref.WeakReference;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
-import java.time.LocalDate;
-import java.time.LocalDateTime;
-import java.time.LocalTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -91,6 +86,8 @@ import java.util.stream.Collectors;
 public class BareGitAccess implements GitAccess {
     public static final String METADATA_FILENAME = ".raoa.json";
     private static final Duration REPOSITORY_CACHE_TIME = Duration.ofSeconds(20);
+    private static final String MASTER_REF = Constants.R_HEADS + Constants.MASTER;
+    private static final int MAX_CACHED_SNAPSHOTS = 4;
     private static final ObjectWriter albumMetaWriter;
     private static final com.fasterxml.jackson.databind.ObjectReader albumMetaRader;
 
@@ -105,29 +102,41 @@ public class BareGitAccess implements GitAccess {
     private final MeterRegistry meterRegistry;
     private final Path relativePath;
     private final AsyncService asyncService;
+    private final MetadataCache metadataCache;
     // private final Scheduler processScheduler;
     private final AtomicReference<Mono<Ref>> cachedMasterRef = new AtomicReference<>();
-    private final AtomicReference<Mono<RevTree>> cachedMasterTree = new AtomicReference<>();
+    private final AtomicReference<PathIndex> pathIndex = new AtomicReference<>();
+    private final Map<ObjectId, Mono<GitSnapshot>> snapshots = Collections
+            .synchronizedMap(new LinkedHashMap<ObjectId, Mono<GitSnapshot>>(MAX_CACHED_SNAPSHOTS * 2, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<ObjectId, Mono<GitSnapshot>> eldest) {
+                    return size() > MAX_CACHED_SNAPSHOTS;
+                }
+            });
     private final Mono<AlbumMeta> metaIfExists;
+    private final CommitQueue commitQueue;
+    private final Runnable commitListener;
 
     private BareGitAccess(final Path path, final Path relativePath, final AsyncService asyncService,
-            final Scheduler processScheduler, final MeterRegistry meterRegistry) {
+            final Scheduler processScheduler, final MeterRegistry meterRegistry, final MetadataCache metadataCache,
+            final RepositoryPool repositoryPool, final Runnable commitListener) {
         this.relativePath = relativePath;
         this.asyncService = asyncService;
+        this.metadataCache = metadataCache;
         // this.processScheduler = processScheduler;
         this.meterRegistry = meterRegistry;
+        this.commitListener = commitListener;
+        commitQueue = new CommitQueue(relativePath.toString(), asyncService, meterRegistry, this::onCommitted);
+
+        final AtomicReference<Repository> listenedRepository = new AtomicReference<>();
+        repository = Mono.defer(() -> repositoryPool.repositoryOf(path)).doOnNext(rep -> {
+            // pushes received over http use the pooled instance too
+            if (listenedRepository.getAndSet(rep) != rep)
+                listenForRefChanges(rep, this);
+        });
+        listenForEvictions(repositoryPool, path, this);
 
-        repository = this.asyncService
-                .asyncMono(() -> new FileRepositoryBuilder().setGitDir(path.toFile()).readEnvironment().build())
-                .cache(REPOSITORY_CACHE_TIME);
-
-        metaIfExists = readObject(METADATA_FILENAME).flatMap(l -> createAsyncMonoOptional(() -> {
-            try (final ObjectStream src = l.openStream()) {
-                return Optional.of(albumMetaRader.<AlbumMeta> readValue(src));
-            } catch (MissingObjectException e) {
-                return Optional.empty();
-            }
-        })).flatMap(data -> {
+        metaIfExists = Mono.defer(this::snapshot).flatMap(GitSnapshot::getMetadata).flatMap(data -> {
             if (data.getAlbumId() == null) {
                 final AlbumMeta.AlbumMetaBuilder albumMetaBuilder = data.toBuilder();
                 final AlbumMeta updatedMeta = albumMetaBuilder.albumId(UUID.randomUUID()).build();
@@ -136,18 +145,49 @@ public class BareGitAccess implements GitAccess {
             } else {
                 return Mono.just(data);
             }
-        }).cache(Duration.ofMillis(100));
+        });
         albumMetaSupplier = metaIfExists.switchIfEmpty(Mono.defer(() -> createName().flatMap(name -> {
             final UUID uuid = UUID.randomUUID();
             final AlbumMeta newMetadata = AlbumMeta.builder().albumId(uuid).albumTitle(name).build();
             return writeNewMetadata(newMetadata, Updater.CommitContext.builder().message("create metadata").build())
                     .flatMap(Updater::close).thenReturn(newMetadata);
-        }))).retryWhen(Retry.backoff(5, Duration.ofMillis(500))).cache(Duration.ofMillis(100));
+        }))).retryWhen(Retry.backoff(5, Duration.ofMillis(500)));
     }
 
     public static BareGitAccess accessOf(Path path, final Path relativePath, AsyncService ioScheduler,
-            final Scheduler processScheduler, MeterRegistry meterRegistry) {
-        return new BareGitAccess(path, relativePath, ioScheduler, processScheduler, meterRegistry);
+            final Scheduler processScheduler, MeterRegistry meterRegistry, final MetadataCache metadataCache,
+            final RepositoryPool repositoryPool, final Runnable commitListener) {
+        return new BareGitAccess(path, relativePath, ioScheduler, processScheduler, meterRegistry, metadataCache,
+                repositoryPool, commitListener);
+    }
+
+    // pooled repositories outlive the accesses of an album, the listener must not keep the access alive
+    private static void listenForRefChanges(final Repository rep, final BareGitAccess access) {
+        final WeakReference<BareGitAccess> accessReference = new WeakReference<>(access);
+        final AtomicReference<ListenerHandle> handle = new AtomicReference<>();
+        handle.set(rep.getListenerList().addRefsChangedListener(event -> {
+            final BareGitAccess listeningAccess = accessReference.get();
+            if (listeningAccess != null)
+                listeningAccess.cachedMasterRef.set(null);
+            else if (handle.get() != null)
+                handle.get().remove();
+        }));
+    }
+
+    // memoized snapshots would keep using an evicted repository, the next snapshot takes the pooled one again
+    private static void listenForEvictions(final RepositoryPool repositoryPool, final Path path,
+            final BareGitAccess access) {
+        final WeakReference<BareGitAccess> accessReference = new WeakReference<>(access);
+        repositoryPool.evictions().takeWhile(evicted -> accessReference.get() != null).filter(path::equals)
+                .subscribe(evicted -> {
+                    final BareGitAccess listeningAccess = accessReference.get();
+                    if (listeningAccess != null)
+                        listeningAccess.snapshots.clear();
+                });
+    }
+
+    private <T> Mono<T> withRepository(final Function<Repository, Mono<T>> operation) {
+        return Mono.usingWhen(repository, operation, RepositoryPool::release);
     }
 
     @NotNull
@@ -163,32 +203,31 @@ public class BareGitAccess implements GitAccess {
 
     @Override
     public Flux<GitFileEntry> listFiles(TreeFilter filter) {
-        return Mono.zip(repository, masterTree()).flatMapMany(t -> {
-            final Repository reps = t.getT1();
-            final RevTree revTree = t.getT2();
-            return asyncService.asyncFlux(consumer -> {
-                try (ObjectReader objectReader = reps.newObjectReader()) {
-                    TreeWalk tw = new TreeWalk(reps, objectReader);
-                    tw.setFilter(filter);
-                    tw.reset(new ObjectId[] { revTree.getId() });
-                    tw.setRecursive(true);
-                    while (tw.next()) {
-                        final String nameString = tw.getPathString();
-                        final FileMode fileMode = tw.getFileMode();
-                        final ObjectId fileId = tw.getObjectId(0);
-                        consumer.accept(new GitFileEntry(nameString, fileMode, fileId));
-                    }
-                }
-            });
-        });
+        return snapshot().flatMapMany(s -> s.listFiles(filter));
+    }
+
+    @Override
+    public Mono<GitSnapshot> snapshot() {
+        return findMasterRef().flatMap(ref -> snapshotAt(ref.getObjectId()));
+    }
+
+    @Override
+    public Mono<GitSnapshot> snapshotAt(final ObjectId commitId) {
+        // the snapshot keeps the repository, but takes a reference of its own for every read
+        return snapshots.computeIfAbsent(commitId.copy(), id -> BareGitSnapshot.memoize(withRepository(rep -> {
+            final String defaultName = relativePath.getFileName().toString();
+            return asyncService.<GitSnapshot> asyncMono(AsyncService.OperationClass.GIT_READ,
+                    () -> new BareGitSnapshot(id, rep.parseCommit(id).getTree().getId().copy(), rep, asyncService,
+                            treeId -> pathIndexOf(rep, treeId), albumMetaRader, defaultName));
+        })));
     }
 
     @Override
     public Mono<ObjectLoader> readObject(AnyObjectId objectId) {
 
-        return repository.map(Repository::getObjectDatabase).flatMap(db -> this.createAsyncMonoOptional(() -> {
+        return withRepository(rep -> this.createAsyncMonoOptional(() -> {
             try {
-                return Optional.of(db.open(objectId));
+                return Optional.of(rep.getObjectDatabase().open(objectId));
             } catch (MissingObjectException ex) {
                 return Optional.empty();
             }
@@ -198,69 +237,59 @@ public class BareGitAccess implements GitAccess {
 
     @Override
     public Mono<String> filenameOfObject(AnyObjectId objectId) {
-        return Mono.zip(repository, masterTree())
-                .flatMap(TupleUtils.function((rep, tree) -> asyncService.asyncMonoOptional(() -> {
-                    final TreeWalk tw = new TreeWalk(rep);
-
-                    tw.setFilter(new TreeFilter() {
-                        @Override
-                        public boolean include(final TreeWalk walker) {
-                            return walker.getObjectId(0).equals(objectId);
-                        }
-
-                        @Override
-                        public boolean shouldBeRecursive() {
-                            return true;
-                        }
-
-                        @Override
-                        public TreeFilter clone() {
-                            return this;
-                        }
-                    });
-                    tw.reset(tree);
-                    tw.setRecursive(false);
-                    if (tw.next()) {
-                        return Optional.of(tw.getPathString());
-                    } else
-                        return Optional.empty();
-                })));
+        return snapshot().flatMap(s -> s.filenameOfObject(objectId));
     }
 
     private <T> Mono<T> createAsyncMonoOptional(Callable<Optional<T>> callable) {
-        return asyncService.asyncMono(callable).filter(Optional::isPresent).map(Optional::get);
+        return asyncService.asyncMonoOptional(AsyncService.OperationClass.GIT_READ, callable);
     }
 
     @Override
     public Mono<ObjectLoader> readObject(String filename) {
-        return Mono.zip(repository, masterTree()).flatMap(t -> this.createAsyncMonoOptional(() -> {
-            try {
-                final Repository rep = t.getT1();
-                final RevTree tree = t.getT2();
-                final TreeWalk treeWalk = TreeWalk.forPath(rep, filename, tree);
-                if (treeWalk == null) {
-                    return Optional.empty();
-                }
-                final ObjectId objectId = treeWalk.getObjectId(0);
-                final ObjectLoader objectLoader = rep.getObjectDatabase().open(objectId, Constants.OBJ_BLOB);
-                return Optional.of(objectLoader);
-            } catch (MissingObjectException e) {
-                return Optional.empty();
-            }
-        }))
-        // .log("read " + filename)
-        // .publishOn(processScheduler)
-        ;
+        return snapshot().flatMap(s -> s.readObject(filename));
+    }
+
+    private Mono<PathIndex> pathIndexOf(final Repository rep, final AnyObjectId treeId) {
+        final PathIndex existing = pathIndex.get();
+        if (existing != null && existing.getTreeId().equals(treeId)) {
+            meterRegistry.counter("git-access.path-index.lookup", "result", "hit").increment();
+            return Mono.just(existing);
+        }
+        meterRegistry.counter("git-access.path-index.lookup", "result", "miss").increment();
+        return RepositoryPool.using(rep,
+                r -> asyncService.asyncMono(AsyncService.OperationClass.GIT_READ, () -> updatePathIndex(r, treeId)));
     }
 
-    private Mono<RevTree> masterTree() {
-        return cachedMasterTree.updateAndGet(treeMono -> Objects.requireNonNullElseGet(treeMono,
-                () -> findMasterRef().flatMap(this::readTree).cache(REPOSITORY_CACHE_TIME)));
+    private PathIndex updatePathIndex(final Repository rep, final AnyObjectId treeId) throws IOException {
+        synchronized (pathIndex) {
+            final PathIndex existing = pathIndex.get();
+            if (existing != null && existing.getTreeId().equals(treeId))
+                return existing;
+            final Timer.Sample sample = Timer.start(meterRegistry);
+            PathIndex updated = null;
+            String mode = "full";
+            try (ObjectReader reader = rep.newObjectReader()) {
+                if (existing != null) {
+                    try {
+                        updated = existing.update(reader, treeId);
+                        mode = "incremental";
+                    } catch (MissingObjectException e) {
+                        log.info("Previous tree of " + relativePath + " is gone, rebuilding path index");
+                    }
+                }
+                if (updated == null)
+                    updated = PathIndex.build(reader, treeId);
+            }
+            sample.stop(meterRegistry.timer("git-access.path-index.update", "mode", mode));
+            pathIndex.set(updated);
+            return updated;
+        }
     }
 
     private Mono<RevTree> readTree(final Ref ref) {
         // log.info("Read tree " + ref + " at " + relativePath);
-        return repository.flatMap(r -> asyncService.asyncMono(() -> r.parseCommit(ref.getObjectId())))
+        return withRepository(r -> asyncService.asyncMono(AsyncService.OperationClass.GIT_READ,
+                () -> r.parseCommit(ref.getObjectId())))
                 // .publishOn(processScheduler)
                 .map(RevCommit::getTree);
     }
@@ -271,33 +300,18 @@ public class BareGitAccess implements GitAccess {
     }
 
     private Mono<Ref> findMasterRef() {
+        // local commits and pushes reset the cached ref immediately, the timeout only catches up with commits of
+        // other processes working on the same repository
         return cachedMasterRef.updateAndGet(refMono -> Objects.requireNonNullElseGet(refMono,
-                () -> repository.map(Repository::getRefDatabase)
-                        .flatMap(db -> asyncService.asyncMono(() -> db.findRef("master")))
-                        .cache(REPOSITORY_CACHE_TIME)))
+                () -> withRepository(rep -> asyncService.asyncMono(AsyncService.OperationClass.GIT_READ,
+                        () -> rep.getRefDatabase().exactRef(MASTER_REF))).cache(REPOSITORY_CACHE_TIME)))
         // .publishOn(processScheduler)
         ;
     }
 
     @Override
     public Flux<Instant> readAutoadd() {
-        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
-        return readObject(".autoadd").map(ObjectLoader::getBytes).map(ByteBuffer::wrap).map(b1 -> {
-            try {
-                return decoder.decode(b1);
-            } catch (CharacterCodingException e) {
-                throw new RuntimeException("Cannot read date string", e);
-            }
-        }).map(CharBuffer::toString).flatMapIterable(s -> Arrays.asList(s.split("\n"))).map(String::trim).map(l -> {
-            if (l.length() <= 12)
-                return LocalDate.from(DateTimeFormatter.ISO_LOCAL_DATE.parse(l)).atTime(LocalTime.NOON)
-                        .atZone(ZoneId.of("UTC")).toInstant();
-            else if (l.length() <= 18) {
-                return LocalDateTime.from(DateTimeFormatter.ISO_LOCAL_DATE_TIME.parse(l)).atZone(ZoneId.of("UTC"))
-                        .toInstant();
-            }
-            return Instant.from(DateTimeFormatter.ISO_OFFSET_DATE_TIME.parse(l));
-        });
+        return snapshot().flatMapMany(GitSnapshot::readAutoadd);
     }
 
     @Override
@@ -323,65 +337,131 @@ public class BareGitAccess implements GitAccess {
 
     @Override
     public Mono<Updater> createUpdater() {
+        return createUpdater(false);
+    }
 
-        return repository.flatMap(
+    @Override
+    public Mono<Updater> createBulkUpdater() {
+        return createUpdater(true);
+    }
+
+    private Mono<Updater> createUpdater(final boolean bulk) {
+        // the updater keeps the repository, but takes a reference of its own for every write
+        return withRepository(
                 rep -> findMasterRef().flatMap(r -> readTree(r).map(t -> Tuples.of(Optional.of(r), Optional.of(t))))
                         .defaultIfEmpty(Tuples.of(Optional.empty(), Optional.empty()))
-                        .flatMap(t -> asyncService.asyncMono(() -> createUpdater(rep, t.getT1(), t.getT2()))));
+                        .flatMap(t -> asyncService.asyncMono(() -> createUpdater(rep, t.getT1(), t.getT2(), bulk))));
     }
 
-    private Updater createUpdater(final Repository rep, final Optional<Ref> masterRef, final Optional<RevTree> tree) {
-        Map<ObjectId, String> alreadyExistingFiles = Collections.synchronizedMap(new HashMap<>());
-        final DirCache dirCache;
-        final DirCacheBuilder builder;
-        final boolean isBareRepository = rep.isBare();
-        final Function<ObjectReader, Optional<TreeWalk>> treeWalkSupplier;
-        final Function<TreeWalk, DirCacheEntry> dirCacheEntryCreator;
-        Set<String> replacedFiles = Collections.synchronizedSet(new HashSet<>());
-        try {
-            if (isBareRepository) {
-                dirCache = DirCache.newInCore();
+    private Updater createUpdater(final Repository rep, final Optional<Ref> masterRef, final Optional<RevTree> tree,
+            final boolean bulk) {
+        if (rep.isBare())
+            return createQueuedUpdater(rep, tree,
+                    bulk ? BulkBlobWriter.pack(rep, meterRegistry) : BulkBlobWriter.loose(rep, meterRegistry));
+        return createWorkTreeUpdater(rep, masterRef);
+    }
 
-                builder = dirCache.builder();
-                treeWalkSupplier = tree.<Function<ObjectReader, Optional<TreeWalk>>> map(revTree -> (reader) -> {
-                    try {
-                        TreeWalk tw = new TreeWalk(rep, reader);
+    private Updater createQueuedUpdater(final Repository rep, final Optional<RevTree> tree,
+            final BulkBlobWriter blobWriter) {
+        return new Updater() {
+            private final Map<String, CommitQueue.FileEdit> edits = new LinkedHashMap<>();
 
-                        tw.reset(revTree);
-                        tw.setRecursive(true);
-                        return Optional.of(tw);
-                    } catch (IOException e) {
-                        throw new RuntimeException("Cannot create tree-walk", e);
-                    }
-                }).orElseGet(() -> reader -> Optional.empty());
+            @Override
+            public Mono<Void> close() {
+                return RepositoryPool.using(rep, r -> asyncService.asyncMono(() -> {
+                    blobWriter.close();
+                    return "";
+                })).then();
+            }
+
+            @Override
+            public Mono<ObjectId> importFile(final Path file, final String name) {
+                return importFile(file, name, false);
+            }
 
-                dirCacheEntryCreator = tw -> {
-                    final DirCacheEntry dirCacheEntry = new DirCacheEntry(tw.getPathString());
-                    dirCacheEntry.setObjectId(tw.getObjectId(0));
-                    dirCacheEntry.setFileMode(tw.getFileMode());
-                    return dirCacheEntry;
-                };
+            @Override
+            public Mono<ObjectId> importFile(final Path file, final String name, boolean replaceIfExists) {
+                return existingIdOf(name)
+                        .flatMap(existingId -> RepositoryPool.using(rep, r -> asyncService.asyncMono(() -> {
+                            final ObjectId newFileId = blobWriter.insert(file);
+                            synchronized (edits) {
+                                final CommitQueue.FileEdit pendingEdit = edits.get(name);
+                                final Optional<ObjectId> currentId = pendingEdit == null ? existingId
+                                        : Optional.ofNullable(pendingEdit.getObjectId());
+                                if (currentId.filter(newFileId::equals).isPresent()) {
+                                    log.info("File " + file + " already imported as " + name + " -> skipping");
+                                    return newFileId;
+                                }
+                                edits.put(name, CommitQueue.FileEdit.put(name, newFileId, replaceIfExists));
+                            }
+                            return newFileId;
+                        })));
+            }
 
-            } else {
-                dirCache = rep.lockDirCache();
+            @Override
+            public Mono<Boolean> removeFile(final String name) {
+                return existingIdOf(name).map(existingId -> {
+                    synchronized (edits) {
+                        final CommitQueue.FileEdit pendingEdit = edits.put(name, CommitQueue.FileEdit.delete(name));
+                        if (pendingEdit != null)
+                            return pendingEdit.getObjectId() != null;
+                        return existingId.isPresent();
+                    }
+                });
+            }
 
-                builder = dirCache.builder();
-                treeWalkSupplier = reader -> {
-                    TreeWalk tw = new TreeWalk(rep, reader);
+            @Override
+            public Mono<Boolean> commit(CommitContext context) {
+                final List<CommitQueue.FileEdit> pendingEdits;
+                synchronized (edits) {
+                    pendingEdits = new ArrayList<>(edits.values());
+                }
+                // the new blobs have to be in the repository before a commit can refer to them
+                return RepositoryPool.using(rep, r -> asyncService.asyncMono(() -> {
+                    blobWriter.flush();
+                    return pendingEdits;
+                })).flatMap(e -> commitQueue.submit(rep, e, context));
+            }
 
-                    tw.addTree(new DirCacheBuildIterator(builder));
-                    tw.setRecursive(true);
-                    return Optional.of(tw);
-                };
-                dirCacheEntryCreator = tw -> tw.getTree(0, DirCacheIterator.class).getDirCacheEntry();
+            private Mono<Optional<ObjectId>> existingIdOf(final String name) {
+                return tree.map(t -> pathIndexOf(rep, t).map(index -> index.lookupId(name)))
+                        .orElseGet(() -> Mono.just(Optional.empty()));
             }
+        };
+    }
+
+    private void onCommitted(final Repository rep, final ObjectId commitId, final ObjectId treeId) {
+        cachedMasterRef.set(null);
+        try {
+            updatePathIndex(rep, treeId);
+        } catch (IOException e) {
+            log.warn("Cannot update path index of " + relativePath, e);
+            pathIndex.set(null);
+        }
+        commitListener.run();
+    }
+
+    private Updater createWorkTreeUpdater(final Repository rep, final Optional<Ref> masterRef) {
+        Map<ObjectId, String> alreadyExistingFiles = Collections.synchronizedMap(new HashMap<>());
+        final DirCache dirCache;
+        final DirCacheBuilder builder;
+        final Function<ObjectReader, TreeWalk> treeWalkSupplier;
+        Set<String> replacedFiles = Collections.synchronizedSet(new HashSet<>());
+        try {
+            dirCache = rep.lockDirCache();
+
+            builder = dirCache.builder();
+            treeWalkSupplier = reader -> {
+                TreeWalk tw = new TreeWalk(rep, reader);
+
+                tw.addTree(new DirCacheBuildIterator(builder));
+                tw.setRecursive(true);
+                return tw;
+            };
             try (ObjectReader reader = rep.newObjectReader()) {
-                final Optional<TreeWalk> optionalTreeWalk = treeWalkSupplier.apply(reader);
-                if (optionalTreeWalk.isPresent()) {
-                    TreeWalk tw = optionalTreeWalk.get();
-                    while (tw.next()) {
-                        alreadyExistingFiles.put(tw.getObjectId(0), tw.getPathString());
-                    }
+                TreeWalk tw = treeWalkSupplier.apply(reader);
+                while (tw.next()) {
+                    alreadyExistingFiles.put(tw.getObjectId(0), tw.getPathString());
                 }
             }
         } catch (IOException e) {
@@ -393,12 +473,10 @@ public class BareGitAccess implements GitAccess {
 
             @Override
             public Mono<Void> close() {
-                if (!isBareRepository)
-                    return asyncService.asyncMono(() -> {
-                        dirCache.unlock();
-                        return "";
-                    }).then();
-                return Mono.empty();
+                return asyncService.asyncMono(() -> {
+                    dirCache.unlock();
+                    return "";
+                }).then();
             }
 
             @Override
@@ -410,7 +488,7 @@ public class BareGitAccess implements GitAccess {
             public Mono<ObjectId> importFile(final Path file, final String name, boolean replaceIfExists) {
                 if (replaceIfExists)
                     replacedFiles.add(name);
-                return asyncService.asyncMonoOptional(() -> {
+                return RepositoryPool.using(rep, r -> asyncService.asyncMonoOptional(() -> {
                     try (final ObjectInserter objectInserter = rep.newObjectInserter()) {
                         final ObjectId newFileId = objectInserter.insert(Constants.OBJ_BLOB, Files.size(file),
                                 Files.newInputStream(file));
@@ -430,7 +508,7 @@ public class BareGitAccess implements GitAccess {
                         }
                         return Optional.of(newFileId);
                     }
-                });
+                }));
             }
 
             @Override
@@ -449,36 +527,28 @@ public class BareGitAccess implements GitAccess {
                 return Mono.zip(findMasterRef().map(Optional::of).defaultIfEmpty(Optional.empty()), nameMono)
                         .flatMap(t -> executeCommit(context, t.getT1())
                 // .log("Commit " + t.getT2())
-                ).defaultIfEmpty(Boolean.FALSE).doFinally(signal -> {
-                    if (!isBareRepository)
-                        dirCache.unlock();
-                });
+                ).defaultIfEmpty(Boolean.FALSE).doFinally(signal -> dirCache.unlock());
             }
 
             private Mono<Boolean> executeCommit(final CommitContext context, final Optional<Ref> currentMasterRef) {
                 if (!modified) {
                     return Mono.just(true);
                 }
-                return asyncService.asyncMono(() -> {
+                return RepositoryPool.using(rep, r -> asyncService.asyncMono(() -> {
                     try {
 
                         try (ObjectReader reader = rep.newObjectReader()) {
-                            final Optional<TreeWalk> apply = treeWalkSupplier.apply(reader);
-                            if (apply.isPresent()) {
-                                TreeWalk tw = apply.get();
-                                while (tw.next()) {
-                                    if (!replacedFiles.contains(tw.getPathString()))
-                                        builder.add(dirCacheEntryCreator.apply(tw));
-                                }
+                            TreeWalk tw = treeWalkSupplier.apply(reader);
+                            while (tw.next()) {
+                                if (!replacedFiles.contains(tw.getPathString()))
+                                    builder.add(tw.getTree(0, DirCacheIterator.class).getDirCacheEntry());
                             }
                         }
                         builder.finish();
-                        if (!isBareRepository) {
-                            // update index
-                            dirCache.write();
-                            if (!dirCache.commit()) {
-                                return (false);
-                            }
+                        // update index
+                        dirCache.write();
+                        if (!dirCache.commit()) {
+                            return (false);
                         }
                     } catch (IOException e) {
                         log.warn("Cannot prepare commit", e);
@@ -528,27 +598,25 @@ public class BareGitAccess implements GitAccess {
                             case FORCED:
                             case NEW:
                             case RENAMED:
-                                if (!isBareRepository)
-                                    // checkout index
-                                    try (ObjectReader reader = rep.newObjectReader()) {
-                                        final File workTree = rep.getWorkTree();
-                                        for (int i = 0; i < dirCache.getEntryCount(); i++) {
-                                            final DirCacheEntry dirCacheEntry = dirCache.getEntry(i);
-                                            if (dirCacheEntry == null)
-                                                continue;
-                                            final File file = new File(workTree, dirCacheEntry.getPathString());
-                                            if (replacedFiles.contains(dirCacheEntry.getPathString()))
-                                                file.delete();
-                                            if (file.exists())
-                                                continue;
-                                            @Cleanup
-                                            final FileOutputStream outputStream = new FileOutputStream(file);
-                                            reader.open(dirCacheEntry.getObjectId()).copyTo(outputStream);
-                                        }
+                                // checkout index
+                                try (ObjectReader reader = rep.newObjectReader()) {
+                                    final File workTree = rep.getWorkTree();
+                                    for (int i = 0; i < dirCache.getEntryCount(); i++) {
+                                        final DirCacheEntry dirCacheEntry = dirCache.getEntry(i);
+                                        if (dirCacheEntry == null)
+                                            continue;
+                                        final File file = new File(workTree, dirCacheEntry.getPathString());
+                                        if (replacedFiles.contains(dirCacheEntry.getPathString()))
+                                            file.delete();
+                                        if (file.exists())
+                                            continue;
+                                        @Cleanup
+                                        final FileOutputStream outputStream = new FileOutputStream(file);
+                                        reader.open(dirCacheEntry.getObjectId()).copyTo(outputStream);
                                     }
+                                }
                                 // log.info("Commit successful " + rep.getDirectory());
-                                cachedMasterRef.set(null);
-                                cachedMasterTree.set(null);
+                                onCommitted(rep, commitId, treeId);
                                 return true;
                         }
                     } catch (IOException e) {
@@ -556,25 +624,25 @@ public class BareGitAccess implements GitAccess {
                     }
                     log.warn("Commit not executed");
                     return false;
-                });
+                }));
             }
         };
     }
 
     @Override
     public Mono<String> getName() {
-        return metaIfExists.map(AlbumMeta::getAlbumTitle).defaultIfEmpty(relativePath.getFileName().toString());
+        return snapshot().flatMap(GitSnapshot::getName).defaultIfEmpty(relativePath.getFileName().toString());
     }
 
     @Override
     public Mono<String> getFullPath() {
         final String pathString = relativePath.toString();
-        return repository.map(r -> {
+        return withRepository(r -> Mono.fromSupplier(() -> {
             if (r.isBare() && pathString.endsWith(".git"))
                 return pathString.substring(0, pathString.length() - 4);
             else
                 return pathString;
-        });
+        }));
     }
 
     public String toString() {
@@ -582,14 +650,14 @@ public class BareGitAccess implements GitAccess {
     }
 
     private Mono<String> createName() {
-        return repository.map(rep -> {
+        return withRepository(rep -> Mono.fromSupplier(() -> {
             if (rep.isBare()) {
                 final String filename = rep.getDirectory().getName();
                 return filename.substring(0, filename.length() - 4);
             } else {
                 return rep.getWorkTree().getName();
             }
-        });
+        }));
     }
 
     @Override
@@ -607,20 +675,21 @@ public class BareGitAccess implements GitAccess {
 
     @Override
     public Mono<Metadata> entryMetdata(final AnyObjectId entryId) {
-        return getMetadata().flatMap(albumMeta -> readObject(entryId).flatMap(
-                loader -> asyncService.asyncMono(() -> meterRegistry.timer("git-access.metadata.load").record(() -> {
-                    try (final ObjectStream stream = loader.openStream()) {
-                        AutoDetectParser parser = new AutoDetectParser();
-                        BodyContentHandler handler = new BodyContentHandler();
-                        Metadata metadata = new Metadata();
-                        @Cleanup
-                        final TikaInputStream inputStream = TikaInputStream.get(stream);
-                        parser.parse(inputStream, handler, metadata);
-                        return metadata;
-                    } catch (IOException | SAXException | TikaException e) {
-                        throw new RuntimeException("Cannot read metadata of " + entryId, e);
-                    }
-                }))).cache());
+        return getMetadata().flatMap(albumMeta -> withRepository(rep -> metadataCache.metadataOf(entryId, () -> {
+            final ObjectLoader loader;
+            try {
+                loader = rep.getObjectDatabase().open(entryId);
+            } catch (MissingObjectException e) {
+                return null;
+            }
+            return meterRegistry.timer("git-access.metadata.load").record(() -> {
+                try {
+                    return FastMetadataExtractor.extract(loader::openStream);
+                } catch (IOException | SAXException | TikaException e) {
+                    throw new RuntimeException("Cannot read metadata of " + entryId, e);
+                }
+            });
+        })));
     }
 
     @Override
@@ -632,6 +701,18 @@ public class BareGitAccess implements GitAccess {
         });
     }
 
+    @Override
+    public Mono<XmpData> readXmpData(final AnyObjectId xmpFileId) {
+        return withRepository(rep -> metadataCache.xmpDataOf(xmpFileId, () -> {
+            try (final ObjectStream stream = rep.getObjectDatabase().open(xmpFileId, Constants.OBJ_BLOB)
+                    .openStream()) {
+                return new XmpWrapper(XMPMetaFactory.parse(stream)).toXmpData();
+            } catch (MissingObjectException e) {
+                return null;
+            }
+        }));
+    }
+
     @Override
     public Mono<Boolean> writeXmpMeta(final String filename, final XMPMeta xmpMeta,
             final Updater.CommitContext context) {
@@ -0,0 +1,213 @@
+package ch.bergturbenthal.raoa.libs.service.impl;
+
+import ch.bergturbenthal.raoa.libs.model.AlbumMeta;
+import ch.bergturbenthal.raoa.libs.service.AsyncService;
+import ch.bergturbenthal.raoa.libs.service.GitAccess;
+import ch.bergturbenthal.raoa.libs.service.GitSnapshot;
+import com.fasterxml.jackson.databind.ObjectReader;
+import lombok.Getter;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectStream;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.lang.ref.SoftReference;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+class BareGitSnapshot implements GitSnapshot {
+    private static final Duration FOREVER = Duration.ofMillis(Long.MAX_VALUE);
+    private static final String AUTOADD_FILENAME = ".autoadd";
+    // large albums are listed in chunks, handing over every entry on its own costs more than reading the tree
+    private static final int LIST_CHUNK_SIZE = 512;
+    @Getter
+    private final ObjectId commitId;
+    @Getter
+    private final ObjectId treeId;
+    private final Repository repository;
+    private final AsyncService asyncService;
+    private final Mono<PathIndex> pathIndex;
+    private final Mono<AlbumMeta> metadata;
+    private final Mono<List<Instant>> autoadd;
+    private final Mono<String> name;
+    // file lists can get big on large albums, so they are given up under memory pressure
+    private final SoftMemo<List<GitAccess.GitFileEntry>> mediaFiles;
+    private final SoftMemo<List<GitAccess.GitFileEntry>> xmpFiles;
+
+    BareGitSnapshot(final ObjectId commitId, final ObjectId treeId, final Repository repository,
+            final AsyncService asyncService, final Function<ObjectId, Mono<PathIndex>> pathIndexLoader,
+            final ObjectReader albumMetaReader, final String defaultName) {
+        this.commitId = commitId;
+        this.treeId = treeId;
+        this.repository = repository;
+        this.asyncService = asyncService;
+        pathIndex = memoize(Mono.defer(() -> pathIndexLoader.apply(treeId)));
+        metadata = memoize(readObject(BareGitAccess.METADATA_FILENAME).flatMap(l -> asyncOptional(() -> {
+            try (final ObjectStream src = l.openStream()) {
+                return Optional.of(albumMetaReader.<AlbumMeta> readValue(src));
+            } catch (MissingObjectException e) {
+                return Optional.empty();
+            }
+        })));
+        autoadd = memoize(readObject(AUTOADD_FILENAME).map(l -> parseAutoadd(l.getBytes()))
+                .defaultIfEmpty(Collections.emptyList()));
+        name = memoize(metadata.flatMap(m -> Mono.justOrEmpty(m.getAlbumTitle())).defaultIfEmpty(defaultName));
+        mediaFiles = new SoftMemo<>(() -> listFiles(MEDIA_FILE_FILTER).collectList());
+        xmpFiles = new SoftMemo<>(() -> listFiles(XMP_FILE_FILTER).collectList());
+    }
+
+    static <T> Mono<T> memoize(Mono<T> mono) {
+        return mono.cache(v -> FOREVER, ex -> Duration.ZERO, () -> FOREVER);
+    }
+
+    private static List<Instant> parseAutoadd(final byte[] content) {
+        final List<Instant> ret = new ArrayList<>();
+        for (String line : new String(content, StandardCharsets.UTF_8).split("\n")) {
+            final String l = line.trim();
+            if (l.length() <= 12)
+                ret.add(LocalDate.from(DateTimeFormatter.ISO_LOCAL_DATE.parse(l)).atTime(LocalTime.NOON)
+                        .atZone(ZoneId.of("UTC")).toInstant());
+            else if (l.length() <= 18)
+                ret.add(LocalDateTime.from(DateTimeFormatter.ISO_LOCAL_DATE_TIME.parse(l)).atZone(ZoneId.of("UTC"))
+                        .toInstant());
+            else
+                ret.add(Instant.from(DateTimeFormatter.ISO_OFFSET_DATE_TIME.parse(l)));
+        }
+        return Collections.unmodifiableList(ret);
+    }
+
+    private <T> Mono<T> asyncOptional(Callable<Optional<T>> callable) {
+        return asyncService.asyncMonoOptional(AsyncService.OperationClass.GIT_READ, callable);
+    }
+
+    @Override
+    public Flux<GitAccess.GitFileEntry> listFiles(final TreeFilter filter) {
+        return RepositoryPool.usingMany(repository, rep -> asyncService.asyncFluxChunked(
+                AsyncService.OperationClass.GIT_READ, LIST_CHUNK_SIZE, consumer -> {
+                    try (org.eclipse.jgit.lib.ObjectReader objectReader = rep.newObjectReader()) {
+                        TreeWalk tw = new TreeWalk(rep, objectReader);
+                        tw.setFilter(filter);
+                        tw.reset(treeId);
+                        tw.setRecursive(true);
+                        while (tw.next()) {
+                            final String nameString = tw.getPathString();
+                            final FileMode fileMode = tw.getFileMode();
+                            final ObjectId fileId = tw.getObjectId(0);
+                            consumer.accept(new GitAccess.GitFileEntry(nameString, fileMode, fileId));
+                        }
+                    }
+                }));
+    }
+
+    @Override
+    public Flux<FileChange> changesSince(final ObjectId baseCommitId, final TreeFilter filter) {
+        return RepositoryPool.usingMany(repository, rep -> asyncService.asyncFluxChunked(
+                AsyncService.OperationClass.GIT_READ, LIST_CHUNK_SIZE, consumer -> {
+                    try (org.eclipse.jgit.lib.ObjectReader objectReader = rep.newObjectReader();
+                            RevWalk revWalk = new RevWalk(objectReader)) {
+                        TreeWalk tw = new TreeWalk(rep, objectReader);
+                        tw.addTree(revWalk.parseCommit(baseCommitId).getTree());
+                        tw.addTree(treeId);
+                        tw.setFilter(AndTreeFilter.create(filter, TreeFilter.ANY_DIFF));
+                        tw.setRecursive(true);
+                        while (tw.next()) {
+                            final ObjectId oldId = tw.getFileMode(0) == FileMode.MISSING ? null : tw.getObjectId(0);
+                            final ObjectId newId = tw.getFileMode(1) == FileMode.MISSING ? null : tw.getObjectId(1);
+                            consumer.accept(new FileChange(tw.getPathString(), oldId, newId));
+                        }
+                    }
+                }));
+    }
+
+    @Override
+    public Flux<GitAccess.GitFileEntry> listMediaFiles() {
+        return mediaFiles.get().flatMapIterable(Function.identity());
+    }
+
+    @Override
+    public Flux<GitAccess.GitFileEntry> listXmpFiles() {
+        return xmpFiles.get().flatMapIterable(Function.identity());
+    }
+
+    @Override
+    public Mono<ObjectLoader> readObject(final String filename) {
+        return pathIndex.flatMap(index -> Mono.justOrEmpty(index.lookupId(filename)))
+                .flatMap(objectId -> RepositoryPool.using(repository, rep -> asyncOptional(() -> {
+                    try {
+                        return Optional.of(rep.getObjectDatabase().open(objectId, Constants.OBJ_BLOB));
+                    } catch (MissingObjectException e) {
+                        return Optional.empty();
+                    }
+                })));
+    }
+
+    @Override
+    public Mono<String> filenameOfObject(final AnyObjectId objectId) {
+        return pathIndex.flatMap(index -> Mono.justOrEmpty(index.lookupPath(objectId)));
+    }
+
+    @Override
+    public Mono<AlbumMeta> getMetadata() {
+        return metadata;
+    }
+
+    @Override
+    public Flux<Instant> readAutoadd() {
+        return autoadd.flatMapIterable(Function.identity());
+    }
+
+    @Override
+    public Mono<ObjectId> getAutoaddId() {
+        return pathIndex.flatMap(index -> Mono.justOrEmpty(index.lookupId(AUTOADD_FILENAME)));
+    }
+
+    @Override
+    public Mono<String> getName() {
+        return name;
+    }
+
+    public String toString() {
+        return "BareGitSnapshot[" + repository.getDirectory().getName() + "@" + commitId.name() + "]";
+    }
+
+    private static class SoftMemo<T> {
+        private final Supplier<Mono<T>> loader;
+        private SoftReference<Mono<T>> reference = new SoftReference<>(null);
+
+        private SoftMemo(final Supplier<Mono<T>> loader) {
+            this.loader = loader;
+        }
+
+        synchronized Mono<T> get() {
+            Mono<T> mono = reference.get();
+            if (mono == null) {
+                mono = memoize(loader.get());
+                reference = new SoftReference<>(mono);
+            }
+            return mono;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package ch.bergturbenthal.raoa.libs.service.impl;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jgit.internal.storage.file.ObjectDirectory;
+import org.eclipse.jgit.internal.storage.file.PackInserter;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes the imported files of one updater. In pack mode all files go into a single pack, which is only visible to
+ * the repository after {@link #flush()}. Files are streamed through the inserter, so memory stays bounded by its
+ * buffer regardless of the file size.
+ */
+@Slf4j
+class BulkBlobWriter implements AutoCloseable {
+    private final Repository repository;
+    private final MeterRegistry meterRegistry;
+    private final PackInserter packInserter;
+    private final String mode;
+    private boolean pending = false;
+
+    private BulkBlobWriter(final Repository repository, final MeterRegistry meterRegistry,
+            final PackInserter packInserter) {
+        this.repository = repository;
+        this.meterRegistry = meterRegistry;
+        this.packInserter = packInserter;
+        mode = packInserter == null ? "loose" : "pack";
+    }
+
+    /**
+     * Writer creating one loose object per file
+     */
+    static BulkBlobWriter loose(final Repository repository, final MeterRegistry meterRegistry) {
+        return new BulkBlobWriter(repository, meterRegistry, null);
+    }
+
+    /**
+     * Writer collecting all files into one pack, falls back to loose objects on repositories without an object
+     * directory
+     */
+    static BulkBlobWriter pack(final Repository repository, final MeterRegistry meterRegistry) {
+        if (repository.getObjectDatabase() instanceof ObjectDirectory objectDirectory) {
+            final PackInserter packInserter = objectDirectory.newPackInserter();
+            // imported files are mostly jpegs and videos, trying to compress them costs time and gains nothing
+            packInserter.setCompressionLevel(1);
+            return new BulkBlobWriter(repository, meterRegistry, packInserter);
+        }
+        log.info("No object directory on " + repository + ", importing as loose objects");
+        return loose(repository, meterRegistry);
+    }
+
+    ObjectId insert(final Path file) throws IOException {
+        final long size = Files.size(file);
+        final ObjectId objectId;
+        if (packInserter == null) {
+            try (ObjectInserter inserter = repository.newObjectInserter();
+                    InputStream inputStream = Files.newInputStream(file)) {
+                objectId = inserter.insert(Constants.OBJ_BLOB, size, inputStream);
+                inserter.flush();
+            }
+        } else {
+            // the pack is written sequentially, concurrent imports have to wait for their turn
+            synchronized (packInserter) {
+                try (InputStream inputStream = Files.newInputStream(file)) {
+                    objectId = packInserter.insert(Constants.OBJ_BLOB, size, inputStream);
+                }
+                pending = true;
+            }
+        }
+        meterRegistry.counter("git-access.import.bytes", "mode", mode).increment(size);
+        meterRegistry.counter("git-access.import.objects", "mode", mode).increment();
+        return objectId;
+    }
+
+    /**
+     * Writes the pack and its index, the imported objects are readable by everyone afterwards
+     */
+    void flush() throws IOException {
+        if (packInserter == null)
+            return;
+        synchronized (packInserter) {
+            if (!pending)
+                return;
+            final Timer.Sample sample = Timer.start(meterRegistry);
+            packInserter.flush();
+            pending = false;
+            sample.stop(meterRegistry.timer("git-access.import.pack.flush"));
+        }
+    }
+
+    /**
+     * Discards everything not flushed yet
+     */
+    @Override
+    public void close() {
+        if (packInserter == null)
+            return;
+        synchronized (packInserter) {
+            packInserter.close();
+            pending = false;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package ch.bergturbenthal.raoa.libs.service.impl;
+
+import ch.bergturbenthal.raoa.libs.service.AsyncService;
+import ch.bergturbenthal.raoa.libs.service.Updater;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Serializes the commits on one bare repository. Edits submitted while a commit is written are collected and applied
+ * together on top of the current head, so concurrent updaters share one tree build and one ref update instead of
+ * racing for the ref. Every submitter gets its own result. Only the trees on the edited paths are rewritten.
+ */
+@Slf4j
+class CommitQueue {
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final int MAX_LOCK_RETRIES = 3;
+    private static final String DEFAULT_AUTHOR_NAME = "raoa-importer";
+    private static final String DEFAULT_AUTHOR_EMAIL = "photos@teamkoenig.ch";
+    private final String name;
+    private final AsyncService asyncService;
+    private final MeterRegistry meterRegistry;
+    private final CommitListener listener;
+    private final Queue<PendingCommit> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger wip = new AtomicInteger();
+
+    CommitQueue(final String name, final AsyncService asyncService, final MeterRegistry meterRegistry,
+            final CommitListener listener) {
+        this.name = name;
+        this.asyncService = asyncService;
+        this.meterRegistry = meterRegistry;
+        this.listener = listener;
+    }
+
+    private static String mergeMessages(final List<PendingCommit> commits) {
+        if (commits.size() == 1)
+            return commits.get(0).getContext().getMessage();
+        return commits.stream().map(c -> "- " + Objects.requireNonNullElse(c.getContext().getMessage(), "update"))
+                .collect(Collectors.joining("\n", commits.size() + " updates\n\n", "\n"));
+    }
+
+    private static PersonIdent mergeAuthors(final List<PendingCommit> commits) {
+        final Updater.CommitContext first = commits.get(0).getContext();
+        final boolean sameAuthor = commits.stream().map(PendingCommit::getContext)
+                .allMatch(c -> Objects.equals(c.getUsername(), first.getUsername())
+                        && Objects.equals(c.getEmail(), first.getEmail()));
+        if (!sameAuthor)
+            return new PersonIdent(DEFAULT_AUTHOR_NAME, DEFAULT_AUTHOR_EMAIL);
+        return new PersonIdent(Objects.requireNonNullElse(first.getUsername(), DEFAULT_AUTHOR_NAME),
+                Objects.requireNonNullElse(first.getEmail(), DEFAULT_AUTHOR_EMAIL));
+    }
+
+    public Mono<Boolean> submit(final Repository repository, final Collection<FileEdit> edits,
+            final Updater.CommitContext context) {
+        if (edits.isEmpty())
+            return Mono.just(true);
+        final List<FileEdit> editList = List.copyOf(edits);
+        return Mono.create(sink -> {
+            pending.add(new PendingCommit(repository, editList, context, sink));
+            drain();
+        });
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0)
+            return;
+        asyncService.asyncMono(() -> {
+            int missed = 1;
+            while (true) {
+                List<PendingCommit> batch = pollBatch();
+                while (!batch.isEmpty()) {
+                    try {
+                        writeBatch(batch);
+                    } catch (RuntimeException e) {
+                        log.warn("Cannot commit on " + name, e);
+                        batch.forEach(c -> c.getSink().error(e));
+                    }
+                    batch = pollBatch();
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0)
+                    return true;
+            }
+        }).subscribe(done -> {
+        }, ex -> log.error("Commit queue of " + name + " stopped", ex));
+    }
+
+    private List<PendingCommit> pollBatch() {
+        final List<PendingCommit> batch = new ArrayList<>();
+        PendingCommit next;
+        while (batch.size() < MAX_BATCH_SIZE && (next = pending.poll()) != null)
+            batch.add(next);
+        return batch;
+    }
+
+    private void writeBatch(final List<PendingCommit> batch) {
+        final Timer.Sample sample = Timer.start(meterRegistry);
+        // all requests refer to the same git directory, any of the repository instances will do
+        final Repository repository = batch.get(0).getRepository();
+        // the repository may have been evicted from the pool while the commits were waiting
+        repository.incrementOpen();
+        try {
+            commitBatch(batch, repository, sample);
+        } finally {
+            repository.close();
+        }
+    }
+
+    private void commitBatch(final List<PendingCommit> batch, final Repository repository,
+            final Timer.Sample sample) {
+        for (int attempt = 0;; attempt++) {
+            final List<PendingCommit> accepted = new ArrayList<>();
+            final List<PendingCommit> rejected = new ArrayList<>();
+            try (ObjectReader reader = repository.newObjectReader();
+                    ObjectInserter inserter = repository.newObjectInserter();
+                    RevWalk revWalk = new RevWalk(reader)) {
+                final Ref head = repository.exactRef(Constants.HEAD);
+                final ObjectId headId = head == null ? null : head.getObjectId();
+                final RevTree baseTree = headId == null ? null : revWalk.parseCommit(headId).getTree();
+
+                final Map<String, FileEdit> merged = new LinkedHashMap<>();
+                for (PendingCommit commit : batch) {
+                    if (conflicts(commit, merged, reader, baseTree)) {
+                        rejected.add(commit);
+                        continue;
+                    }
+                    accepted.add(commit);
+                    for (FileEdit edit : commit.getEdits())
+                        merged.put(edit.getPath(), edit);
+                }
+                if (accepted.isEmpty()) {
+                    complete(accepted, rejected, false, sample, "rejected");
+                    return;
+                }
+                final Map<String, ObjectId> treeEdits = new HashMap<>();
+                for (FileEdit edit : merged.values())
+                    treeEdits.put(edit.getPath(), edit.getObjectId());
+                final ObjectId treeId = TreeRewriter.rewrite(reader, inserter, baseTree, treeEdits);
+                if (baseTree != null && baseTree.getId().equals(treeId)) {
+                    complete(accepted, rejected, true, sample, "unchanged");
+                    return;
+                }
+
+                final CommitBuilder commit = new CommitBuilder();
+                final PersonIdent author = mergeAuthors(accepted);
+                final String message = mergeMessages(accepted);
+                if (message != null)
+                    commit.setMessage(message);
+                commit.setAuthor(author);
+                commit.setCommitter(author);
+                if (headId != null)
+                    commit.setParentId(headId);
+                commit.setTreeId(treeId);
+                final ObjectId commitId = inserter.insert(commit);
+                inserter.flush();
+
+                final RefUpdate ru = repository.updateRef(Constants.HEAD);
+                ru.setNewObjectId(commitId);
+                ru.setExpectedOldObjectId(headId == null ? ObjectId.zeroId() : headId);
+                ru.setRefLogMessage("auto import" + revWalk.parseCommit(commitId).getShortMessage(), false);
+                final RefUpdate.Result result = ru.update();
+                switch (result) {
+                case NO_CHANGE:
+                case FAST_FORWARD:
+                case FORCED:
+                case NEW:
+                case RENAMED:
+                    listener.committed(repository, commitId, treeId);
+                    complete(accepted, rejected, true, sample, "committed");
+                    meterRegistry.summary("git-access.commit.batch-size").record(accepted.size());
+                    return;
+                case LOCK_FAILURE:
+                    // someone outside of this queue moved the head, build again on top of it
+                    meterRegistry.counter("git-access.commit.lock-retry").increment();
+                    if (attempt < MAX_LOCK_RETRIES)
+                        continue;
+                    final IllegalStateException ex = new IllegalStateException("Lock Failure committing on " + name);
+                    sample.stop(meterRegistry.timer("git-access.commit", "result", "lock-failure"));
+                    accepted.forEach(c -> c.getSink().error(ex));
+                    rejected.forEach(c -> c.getSink().success(false));
+                    return;
+                default:
+                    log.warn("Error committing " + message + " on " + name + ": " + result);
+                    complete(accepted, rejected, false, sample, "failed");
+                    return;
+                }
+            } catch (IOException e) {
+                log.warn("Cannot commit on " + name, e);
+                complete(batch, List.of(), false, sample, "failed");
+                return;
+            }
+        }
+    }
+
+    // a file and paths below it cannot be written into the same tree
+    private static boolean clashes(final FileEdit edit, final Map<String, FileEdit> edits) {
+        if (edit.getObjectId() == null)
+            return false;
+        final String path = edit.getPath();
+        for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash + 1)) {
+            final FileEdit parent = edits.get(path.substring(0, slash));
+            if (parent != null && parent.getObjectId() != null)
+                return true;
+        }
+        final String prefix = path + "/";
+        return edits.values().stream().anyMatch(e -> e.getObjectId() != null && e.getPath().startsWith(prefix));
+    }
+
+    private boolean conflicts(final PendingCommit commit, final Map<String, FileEdit> merged,
+            final ObjectReader reader, final RevTree baseTree) throws IOException {
+        final Map<String, FileEdit> ownEdits = new HashMap<>();
+        for (FileEdit edit : commit.getEdits())
+            ownEdits.put(edit.getPath(), edit);
+        for (FileEdit edit : commit.getEdits()) {
+            if (clashes(edit, merged) || clashes(edit, ownEdits)) {
+                log.warn("Not committing " + commit.getContext().getMessage() + " on " + name + ": "
+                        + edit.getPath() + " clashes with a file or directory of the same name");
+                return true;
+            }
+            if (edit.isReplace())
+                continue;
+            final ObjectId existing;
+            if (merged.containsKey(edit.getPath()))
+                existing = merged.get(edit.getPath()).getObjectId();
+            else if (baseTree == null)
+                existing = null;
+            else
+                try (TreeWalk tw = TreeWalk.forPath(reader, edit.getPath(), baseTree)) {
+                    existing = tw == null ? null : tw.getObjectId(0);
+                }
+            if (existing != null && !existing.equals(edit.getObjectId())) {
+                log.warn("Not committing " + commit.getContext().getMessage() + " on " + name + ": "
+                        + edit.getPath() + " already exists");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void complete(final List<PendingCommit> accepted, final List<PendingCommit> rejected,
+            final boolean success, final Timer.Sample sample, final String result) {
+        sample.stop(meterRegistry.timer("git-access.commit", "result", result));
+        accepted.forEach(c -> c.getSink().success(success));
+        rejected.forEach(c -> c.getSink().success(false));
+    }
+
+    @FunctionalInterface
+    interface CommitListener {
+        void committed(Repository repository, ObjectId commitId, ObjectId treeId);
+    }
+
+    /**
+     * A changed path of an updater. The object id is null for removed paths. An edit that does not replace fails if
+     * the path already has a different content.
+     */
+    @Value
+    static class FileEdit {
+        String path;
+        ObjectId objectId;
+        boolean replace;
+
+        static FileEdit put(final String path, final ObjectId objectId, final boolean replace) {
+            return new FileEdit(path, objectId, replace);
+        }
+
+        static FileEdit delete(final String path) {
+            return new FileEdit(path, null, true);
+        }
+    }
+
+    @Value
+    private static class PendingCommit {
+        Repository repository;
+        List<FileEdit> edits;
+        Updater.CommitContext context;
+        MonoSink<Boolean> sink;
+    }
+}
@@ -0,0 +1,99 @@
+package ch.bergturbenthal.raoa.libs.service.impl;
+
+import ch.bergturbenthal.raoa.libs.service.AutoaddIndex;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Value;
+import org.eclipse.jgit.lib.ObjectId;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Sorted set of all autoadd times, fed by the album list. An album is only updated when the blob id of its autoadd file
+ * has changed. Lookups read the sorted set without locking.
+ */
+@Service
+public class DefaultAutoaddIndex implements AutoaddIndex {
+    private static final UUID LOWEST_ID = new UUID(Long.MIN_VALUE, Long.MIN_VALUE);
+    private static final Comparator<TimeEntry> ORDER = Comparator.comparing(TimeEntry::getTime)
+            .thenComparing(TimeEntry::getAlbumId);
+    private final NavigableSet<TimeEntry> times = new ConcurrentSkipListSet<>(ORDER);
+    private final Map<UUID, AlbumEntry> albums = new ConcurrentHashMap<>();
+    private final Sinks.Empty<Void> loaded = Sinks.empty();
+
+    public DefaultAutoaddIndex(final MeterRegistry meterRegistry) {
+        meterRegistry.gauge("autoadd-index.entries", times, NavigableSet::size);
+    }
+
+    @Override
+    public Mono<UUID> albumOf(final Instant timestamp) {
+        return loaded.asMono()
+                .then(Mono.fromSupplier(() -> times.lower(new TimeEntry(timestamp, LOWEST_ID))))
+                .map(TimeEntry::getAlbumId);
+    }
+
+    @Override
+    public Mono<UUID> latestAlbum() {
+        return loaded.asMono().then(Mono.fromSupplier(() -> times.isEmpty() ? null : times.last()))
+                .map(TimeEntry::getAlbumId);
+    }
+
+    /**
+     * @return true if the index already contains the autoadd file with this id for the album
+     */
+    boolean isCurrent(final UUID albumId, final ObjectId autoaddId) {
+        final AlbumEntry entry = albums.get(albumId);
+        return entry != null && Objects.equals(entry.getAutoaddId(), autoaddId);
+    }
+
+    synchronized void update(final UUID albumId, final ObjectId autoaddId, final Collection<Instant> autoadd) {
+        if (isCurrent(albumId, autoaddId))
+            return;
+        final AlbumEntry previous = albums.put(albumId, new AlbumEntry(autoaddId, List.copyOf(autoadd)));
+        // add before remove, concurrent lookups never miss a time kept by the new version
+        for (Instant time : autoadd)
+            times.add(new TimeEntry(time, albumId));
+        if (previous != null)
+            for (Instant time : previous.getTimes())
+                if (!autoadd.contains(time))
+                    times.remove(new TimeEntry(time, albumId));
+    }
+
+    synchronized void remove(final UUID albumId) {
+        final AlbumEntry previous = albums.remove(albumId);
+        if (previous != null)
+            for (Instant time : previous.getTimes())
+                times.remove(new TimeEntry(time, albumId));
+    }
+
+    /**
+     * Releases the waiting lookups, called when all albums have been registered once
+     */
+    void markLoaded() {
+        loaded.tryEmitEmpty();
+    }
+
+    @Value
+    private static class TimeEntry {
+        Instant time;
+        UUID albumId;
+    }
+
+    @Value
+    private static class AlbumEntry {
+        // null if the album has no autoadd file
+        ObjectId autoaddId;
+        List<Instant> times;
+    }
+}
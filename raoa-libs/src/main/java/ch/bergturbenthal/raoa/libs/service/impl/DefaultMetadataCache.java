@@ -0,0 +1,314 @@
+package ch.bergturbenthal.raoa.libs.service.impl;
+
+import ch.bergturbenthal.raoa.libs.model.XmpData;
+import ch.bergturbenthal.raoa.libs.properties.Properties;
+import ch.bergturbenthal.raoa.libs.service.AsyncService;
+import ch.bergturbenthal.raoa.libs.service.MetadataCache;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.tika.metadata.Metadata;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Caches extracted metadata by blob id. Entries are stored deflated, one file per blob, and the most recently used
+ * entries are kept in memory in their encoded form. Every lookup decodes a fresh instance, so callers may modify the
+ * result.
+ */
+@Slf4j
+@Service
+public class DefaultMetadataCache implements MetadataCache {
+    // also bumped when the extracted values change, 2: dimensions of raw files and videos follow tika
+    private static final byte FORMAT_VERSION = 2;
+    private static final int XMP_DESCRIPTION = 1;
+    private static final int XMP_RATING = 2;
+    private static final int XMP_KEYWORDS = 4;
+    private final Path cacheDir;
+    private final long maxMemoryBytes;
+    private final Map<String, byte[]> memoryTier = new LinkedHashMap<>(1024, 0.75f, true);
+    private final AsyncService asyncService;
+    private final MeterRegistry meterRegistry;
+    private long memoryBytes = 0;
+
+    public DefaultMetadataCache(final Properties properties, final AsyncService asyncService,
+            final MeterRegistry meterRegistry) {
+        this.asyncService = asyncService;
+        this.meterRegistry = meterRegistry;
+        cacheDir = Optional.ofNullable(properties.getMetadataCacheDir())
+                .orElseGet(() -> new File(properties.getThumbnailDir(), ".metadata")).toPath();
+        maxMemoryBytes = properties.getMetadataCacheMemorySize().toBytes();
+        Gauge.builder("metadata-cache.memory.bytes", this, c -> {
+            synchronized (c.memoryTier) {
+                return c.memoryBytes;
+            }
+        }).register(meterRegistry);
+        Gauge.builder("metadata-cache.memory.entries", this, c -> {
+            synchronized (c.memoryTier) {
+                return c.memoryTier.size();
+            }
+        }).register(meterRegistry);
+    }
+
+    private static byte[] encodeMetadata(final Metadata metadata) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(FORMAT_VERSION);
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bos))) {
+            final String[] names = metadata.names();
+            writeVarInt(out, names.length);
+            for (String name : names) {
+                writeString(out, name);
+                final String[] values = metadata.getValues(name);
+                writeVarInt(out, values.length);
+                for (String value : values) {
+                    writeString(out, value);
+                }
+            }
+        }
+        return bos.toByteArray();
+    }
+
+    private static Metadata decodeMetadata(final byte[] data) throws IOException {
+        final Metadata metadata = new Metadata();
+        try (DataInputStream in = openEncoded(data)) {
+            final int nameCount = readVarInt(in);
+            for (int i = 0; i < nameCount; i++) {
+                final String name = readString(in);
+                final int valueCount = readVarInt(in);
+                for (int j = 0; j < valueCount; j++) {
+                    metadata.add(name, readString(in));
+                }
+            }
+        }
+        return metadata;
+    }
+
+    private static byte[] encodeXmpData(final XmpData xmpData) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(FORMAT_VERSION);
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bos))) {
+            final String description = xmpData.getDescription();
+            final Integer rating = xmpData.getRating();
+            final Set<String> keywords = xmpData.getKeywords();
+            out.writeByte((description != null ? XMP_DESCRIPTION : 0) | (rating != null ? XMP_RATING : 0)
+                    | (keywords != null ? XMP_KEYWORDS : 0));
+            if (description != null)
+                writeString(out, description);
+            if (rating != null)
+                out.writeInt(rating);
+            if (keywords != null) {
+                writeVarInt(out, keywords.size());
+                for (String keyword : keywords) {
+                    writeString(out, keyword);
+                }
+            }
+        }
+        return bos.toByteArray();
+    }
+
+    private static XmpData decodeXmpData(final byte[] data) throws IOException {
+        final XmpData.XmpDataBuilder builder = XmpData.builder();
+        try (DataInputStream in = openEncoded(data)) {
+            final int flags = in.readByte();
+            if ((flags & XMP_DESCRIPTION) != 0)
+                builder.description(readString(in));
+            if ((flags & XMP_RATING) != 0)
+                builder.rating(in.readInt());
+            if ((flags & XMP_KEYWORDS) != 0) {
+                final int count = readVarInt(in);
+                final Set<String> keywords = new LinkedHashSet<>();
+                for (int i = 0; i < count; i++) {
+                    keywords.add(readString(in));
+                }
+                builder.keywords(keywords);
+            }
+        }
+        return builder.build();
+    }
+
+    private static DataInputStream openEncoded(final byte[] data) throws IOException {
+        if (data.length < 1 || data[0] != FORMAT_VERSION)
+            throw new IOException("Unsupported cache format");
+        return new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data, 1, data.length - 1)));
+    }
+
+    private static void writeVarInt(final DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(final DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed length");
+    }
+
+    private static void writeString(final DataOutput out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInput in) throws IOException {
+        final byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Mono<Metadata> metadataOf(final AnyObjectId blobId, final Callable<Metadata> extractor) {
+        return lookup("metadata", blobId, extractor, DefaultMetadataCache::encodeMetadata,
+                DefaultMetadataCache::decodeMetadata);
+    }
+
+    @Override
+    public Mono<XmpData> xmpDataOf(final AnyObjectId blobId, final Callable<XmpData> extractor) {
+        return lookup("xmp", blobId, extractor, DefaultMetadataCache::encodeXmpData,
+                DefaultMetadataCache::decodeXmpData);
+    }
+
+    private <T> Mono<T> lookup(final String type, final AnyObjectId blobId, final Callable<T> extractor,
+            final Encoder<T> encoder, final Decoder<T> decoder) {
+        final String name = blobId.name();
+        final String key = type + "/" + name;
+        final byte[] inMemory = readMemory(key);
+        if (inMemory != null) {
+            try {
+                final T value = decoder.decode(inMemory);
+                countLookup(type, "memory");
+                return Mono.just(value);
+            } catch (IOException e) {
+                log.warn("Cannot decode cached " + key, e);
+                removeMemory(key);
+            }
+        }
+        return asyncService.asyncMonoOptional(AsyncService.OperationClass.TIKA, () -> {
+            final Path file = cacheDir.resolve(type).resolve(name.substring(0, 2)).resolve(name.substring(2));
+            final Optional<T> fromDisk = readDisk(key, file, decoder);
+            if (fromDisk.isPresent()) {
+                countLookup(type, "disk");
+                return fromDisk;
+            }
+            countLookup(type, "miss");
+            final T value = extractor.call();
+            if (value == null)
+                return Optional.empty();
+            final byte[] encoded = encoder.encode(value);
+            writeMemory(key, encoded);
+            writeDisk(file, encoded);
+            return Optional.of(value);
+        });
+    }
+
+    private <T> Optional<T> readDisk(final String key, final Path file, final Decoder<T> decoder) {
+        try {
+            final byte[] data = Files.readAllBytes(file);
+            final T value = decoder.decode(data);
+            writeMemory(key, data);
+            return Optional.of(value);
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            log.warn("Cannot read cached " + file + ", dropping", e);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                log.warn("Cannot remove " + file, ex);
+            }
+            return Optional.empty();
+        }
+    }
+
+    private void writeDisk(final Path file, final byte[] data) {
+        try {
+            final Path dir = file.getParent();
+            Files.createDirectories(dir);
+            // several processes may share the cache dir, so the entry only becomes visible when complete
+            final Path tempFile = dir.resolve(UUID.randomUUID() + ".tmp");
+            Files.write(tempFile, data);
+            try {
+                Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            log.warn("Cannot write " + file, e);
+        }
+    }
+
+    private byte[] readMemory(final String key) {
+        synchronized (memoryTier) {
+            return memoryTier.get(key);
+        }
+    }
+
+    private void removeMemory(final String key) {
+        synchronized (memoryTier) {
+            final byte[] removed = memoryTier.remove(key);
+            if (removed != null)
+                memoryBytes -= removed.length;
+        }
+    }
+
+    private void writeMemory(final String key, final byte[] data) {
+        synchronized (memoryTier) {
+            final byte[] replaced = memoryTier.put(key, data);
+            memoryBytes += data.length;
+            if (replaced != null)
+                memoryBytes -= replaced.length;
+            final Iterator<byte[]> iterator = memoryTier.values().iterator();
+            while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+                memoryBytes -= iterator.next().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    private void countLookup(final String type, final String result) {
+        meterRegistry.counter("metadata-cache.lookup", "type", type, "result", result).increment();
+    }
+
+    @FunctionalInterface
+    private interface Encoder<T> {
+        byte[] encode(T value) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface Decoder<T> {
+        T decode(byte[] data) throws IOException;
+    }
+}
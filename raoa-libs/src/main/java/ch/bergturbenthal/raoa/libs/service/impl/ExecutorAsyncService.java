@@ -6,23 +6,41 @@ import lombok.extern.slf4j.Slf4j;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
+/**
+ * Runs the blocking work on an executor, either a fixed pool or one virtual thread per task. Operation classes with a
+ * concurrency limit wait for a free slot on their task thread, which is only cheap on virtual threads. The wait for
+ * the thread and the slot is recorded as async.task.wait, the work itself as async.task.run.
+ */
 @Slf4j
 public class ExecutorAsyncService implements AsyncService {
     private final ExecutorService executorService;
     private final Optional<MeterRegistry> meterRegistryOptional;
+    private final Map<OperationClass, Semaphore> concurrencyLimits = new EnumMap<>(OperationClass.class);
 
     public ExecutorAsyncService(final ExecutorService executorService, Optional<MeterRegistry> meterRegistryOptional) {
+        this(executorService, meterRegistryOptional, Collections.emptyMap());
+    }
+
+    public ExecutorAsyncService(final ExecutorService executorService, Optional<MeterRegistry> meterRegistryOptional,
+            final Map<OperationClass, Integer> concurrencyLimits) {
         this.executorService = executorService;
         this.meterRegistryOptional = meterRegistryOptional;
+        concurrencyLimits.forEach((operationClass, limit) -> this.concurrencyLimits.put(operationClass,
+                new Semaphore(limit)));
     }
 
     @Override
@@ -32,13 +50,18 @@ public class ExecutorAsyncService implements AsyncService {
 
     @Override
     public <T> Mono<T> asyncMono(Callable<T> callable) {
+        return asyncMono(OperationClass.OTHER, callable);
+    }
+
+    @Override
+    public <T> Mono<T> asyncMono(final OperationClass operationClass, Callable<T> callable) {
         return Mono.<T> create(monoSink -> {
             final AtomicReference<Future<?>> runningFuture = new AtomicReference<>(null);
             final AtomicBoolean interrupted = new AtomicBoolean(false);
             monoSink.onRequest(count -> {
                 if (count > 0) {
                     runningFuture.updateAndGet(existingFuture -> existingFuture != null ? existingFuture
-                            : executorService.submit(meterRunnable("asyncMono", () -> {
+                            : executorService.submit(meterRunnable("asyncMono", operationClass, () -> {
                                 boolean done = false;
                                 try {
                                     monoSink.success(callable.call());
@@ -62,24 +85,53 @@ public class ExecutorAsyncService implements AsyncService {
         });
     }
 
-    private Runnable meterRunnable(final String methodName, final Runnable runnable) {
-        return meterRegistryOptional.map(meterRegistry -> (Runnable) () -> meterRegistry
-                .timer("async.task.run", "method", methodName).record(runnable)).orElse(runnable);
+    private Runnable meterRunnable(final String methodName, final OperationClass operationClass,
+            final Runnable runnable) {
+        final long submitTime = System.nanoTime();
+        final Semaphore limit = concurrencyLimits.get(operationClass);
+        final String classTag = operationClass.name().toLowerCase(Locale.ROOT).replace('_', '-');
+        return () -> {
+            if (limit != null) {
+                try {
+                    limit.acquire();
+                } catch (InterruptedException e) {
+                    // cancelled while waiting for a free slot
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            try {
+                meterRegistryOptional.ifPresentOrElse(meterRegistry -> {
+                    meterRegistry.timer("async.task.wait", "method", methodName, "class", classTag)
+                            .record(System.nanoTime() - submitTime, TimeUnit.NANOSECONDS);
+                    meterRegistry.timer("async.task.run", "method", methodName, "class", classTag).record(runnable);
+                }, runnable);
+            } finally {
+                if (limit != null)
+                    limit.release();
+            }
+        };
     }
 
     @Override
     public <T> Flux<T> asyncFlux(RelaxConsumer<Consumer<T>> sinkHandler) {
+        return asyncFlux(OperationClass.OTHER, sinkHandler);
+    }
+
+    @Override
+    public <T> Flux<T> asyncFlux(final OperationClass operationClass, RelaxConsumer<Consumer<T>> sinkHandler) {
+        final Semaphore limit = concurrencyLimits.get(operationClass);
         return Flux.<T> create(fluxSink -> {
             Semaphore freeSlots = new Semaphore(0);
             fluxSink.onRequest(count -> freeSlots.release((int) Math.min(count, Integer.MAX_VALUE)));
             AtomicBoolean interrupted = new AtomicBoolean(false);
-            final Future<?> future = executorService.submit(meterRunnable("asyncFlux", () -> {
+            final Future<?> future = executorService.submit(meterRunnable("asyncFlux", operationClass, () -> {
                 final Consumer<T> dataConsumer = nextElement -> {
                     if (interrupted.get()) {
                         throw new RuntimeException("Flux is already cancelled", new InterruptedException());
                     }
                     try {
-                        freeSlots.acquire(1);
+                        awaitDemand(freeSlots, limit);
                         try {
                             fluxSink.next(nextElement);
                         } catch (Exception e) {
@@ -109,4 +161,20 @@ public class ExecutorAsyncService implements AsyncService {
             });
         });
     }
+
+    // a producer waiting for its consumer gives up its slot, the consumer may need a slot of the same class to go on
+    private static void awaitDemand(final Semaphore freeSlots, final Semaphore limit) throws InterruptedException {
+        if (limit == null) {
+            freeSlots.acquire();
+            return;
+        }
+        if (freeSlots.tryAcquire())
+            return;
+        limit.release();
+        try {
+            freeSlots.acquire();
+        } finally {
+            limit.acquireUninterruptibly();
+        }
+    }
 }
@@ -0,0 +1,87 @@
+package ch.bergturbenthal.raoa.libs.service.impl;
+
+/**
+ * Concurrency limit following the latency of completed entries. The smallest latency seen stands for the backend
+ * without load, when the average latency grows beyond that, the limit shrinks by their ratio, otherwise it grows by a
+ * small queue allowance. Dropped entries halve the distance to the floor. Not thread safe, only one thread at a time
+ * may update it.
+ */
+class GradientLimit {
+    // latency may grow by this factor before the limit starts shrinking
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    private static final int SHORT_WINDOW = 10;
+    private static final int NO_LOAD_WINDOW = 100;
+    private final int minLimit;
+    private final int maxLimit;
+    private final boolean adaptive;
+    private volatile double limit;
+    private volatile double shortRttNanos = 0;
+    private volatile double noLoadRttNanos = 0;
+
+    private GradientLimit(final int initialLimit, final int minLimit, final int maxLimit, final boolean adaptive) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.adaptive = adaptive;
+        limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    static GradientLimit fixed(final int limit) {
+        return new GradientLimit(limit, limit, limit, false);
+    }
+
+    /**
+     * Starts at the floor, so the first samples show the latency of the backend without load
+     */
+    static GradientLimit adaptive(final int minLimit, final int maxLimit) {
+        return new GradientLimit(minLimit, minLimit, Math.max(minLimit, maxLimit), true);
+    }
+
+    private static double average(final double current, final double sample, final int window) {
+        if (current == 0)
+            return sample;
+        return current + (sample - current) / window;
+    }
+
+    int getLimit() {
+        return (int) limit;
+    }
+
+    double getShortRttNanos() {
+        return shortRttNanos;
+    }
+
+    double getNoLoadRttNanos() {
+        return noLoadRttNanos;
+    }
+
+    /**
+     * @param inFlight
+     *            entries running when the sample was taken, including the sampled one
+     */
+    void onSample(final long rttNanos, final int inFlight) {
+        shortRttNanos = average(shortRttNanos, rttNanos, SHORT_WINDOW);
+        if (noLoadRttNanos == 0 || rttNanos < noLoadRttNanos)
+            noLoadRttNanos = rttNanos;
+        else if (getLimit() <= minLimit)
+            // the floor is the least load the limiter allows, a backend that got slower for good is learned there
+            noLoadRttNanos = average(noLoadRttNanos, rttNanos, NO_LOAD_WINDOW);
+        if (!adaptive)
+            return;
+        // a limit nobody uses tells nothing about the backend, so it must not grow further
+        if (inFlight < limit / 2)
+            return;
+        final double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * noLoadRttNanos / shortRttNanos));
+        final double newLimit = limit * gradient + Math.sqrt(limit);
+        limit = clamp(limit * (1 - SMOOTHING) + newLimit * SMOOTHING);
+    }
+
+    void onDropped() {
+        if (adaptive)
+            limit = clamp(minLimit + (limit - minLimit) / 2);
+    }
+
+    private double clamp(final double value) {
+        return Math.max(minLimit, Math.min(maxLimit, value));
+    }
+}
@@ -0,0 +1,178 @@
+package ch.bergturbenthal.raoa.libs.service.impl;
+
+import lombok.Getter;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Immutable bidirectional index between paths and blob ids of one tree. An index for a later tree is derived by diffing
+ * the two trees and only holds the changed paths, lookups of other paths fall through to the index it was derived
+ * from. Once the chain gets deep or its changes large compared to the index, it is flattened into a new full index.
+ */
+class PathIndex {
+    private static final int MAX_DEPTH = 16;
+    @Getter
+    private final ObjectId treeId;
+    // null for a full index
+    private final PathIndex parent;
+    private final int depth;
+    private final int size;
+    // changed paths of all derived indexes down to the full one
+    private final int changeCount;
+    // in a derived index removed paths map to null
+    private final Map<String, ObjectId> idByPath;
+    // in a derived index every touched id maps to all its paths, an empty list if it has none left
+    private final Map<ObjectId, List<String>> pathsById;
+
+    private PathIndex(final ObjectId treeId, final PathIndex parent, final int size, final int changeCount,
+            final Map<String, ObjectId> idByPath, final Map<ObjectId, List<String>> pathsById) {
+        this.treeId = treeId;
+        this.parent = parent;
+        depth = parent == null ? 0 : parent.depth + 1;
+        this.size = size;
+        this.changeCount = changeCount;
+        this.idByPath = idByPath;
+        this.pathsById = pathsById;
+    }
+
+    public static PathIndex build(final ObjectReader reader, final AnyObjectId treeId) throws IOException {
+        final Map<String, ObjectId> idByPath = new HashMap<>();
+        final Map<ObjectId, List<String>> pathsById = new HashMap<>();
+        try (TreeWalk tw = new TreeWalk(reader)) {
+            tw.addTree(treeId);
+            tw.setRecursive(true);
+            while (tw.next()) {
+                final String path = tw.getPathString();
+                final ObjectId id = tw.getObjectId(0);
+                idByPath.put(path, id);
+                pathsById.put(id, withPath(pathsById.getOrDefault(id, List.of()), path));
+            }
+        }
+        return new PathIndex(treeId.copy(), null, idByPath.size(), 0, idByPath, pathsById);
+    }
+
+    public PathIndex update(final ObjectReader reader, final AnyObjectId newTreeId) throws IOException {
+        if (treeId.equals(newTreeId))
+            return this;
+        final Map<String, ObjectId> changedIds = new HashMap<>();
+        final Map<ObjectId, List<String>> changedPaths = new HashMap<>();
+        int newSize = size;
+        try (TreeWalk tw = new TreeWalk(reader)) {
+            tw.addTree(treeId);
+            tw.addTree(newTreeId);
+            tw.setRecursive(true);
+            tw.setFilter(TreeFilter.ANY_DIFF);
+            while (tw.next()) {
+                final String path = tw.getPathString();
+                if (isFile(tw.getRawMode(0))) {
+                    final ObjectId oldId = tw.getObjectId(0);
+                    changedIds.put(path, null);
+                    changedPaths.put(oldId, withoutPath(changedPaths.computeIfAbsent(oldId, this::pathsOf), path));
+                    newSize--;
+                }
+                if (isFile(tw.getRawMode(1))) {
+                    final ObjectId newId = tw.getObjectId(1);
+                    changedIds.put(path, newId);
+                    changedPaths.put(newId, withPath(changedPaths.computeIfAbsent(newId, this::pathsOf), path));
+                    newSize++;
+                }
+            }
+        }
+        final PathIndex derived = new PathIndex(newTreeId.copy(), this, newSize, changeCount + changedIds.size(),
+                changedIds, changedPaths);
+        if (derived.depth > MAX_DEPTH || derived.changeCount > derived.size / 2)
+            return derived.flatten();
+        return derived;
+    }
+
+    public Optional<ObjectId> lookupId(final String path) {
+        for (PathIndex index = this; index != null; index = index.parent)
+            if (index.idByPath.containsKey(path))
+                return Optional.ofNullable(index.idByPath.get(path));
+        return Optional.empty();
+    }
+
+    public Optional<String> lookupPath(final AnyObjectId id) {
+        final List<String> paths = pathsOf(id);
+        if (paths.isEmpty())
+            return Optional.empty();
+        return Optional.of(paths.get(0));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private List<String> pathsOf(final AnyObjectId id) {
+        for (PathIndex index = this; index != null; index = index.parent) {
+            final List<String> paths = index.pathsById.get(id);
+            if (paths != null)
+                return paths;
+        }
+        return List.of();
+    }
+
+    private PathIndex flatten() {
+        final Deque<PathIndex> chain = new ArrayDeque<>();
+        for (PathIndex index = this; index != null; index = index.parent)
+            chain.push(index);
+        final Map<String, ObjectId> idByPath = new HashMap<>(chain.peek().idByPath);
+        final Map<ObjectId, List<String>> pathsById = new HashMap<>(chain.pop().pathsById);
+        for (PathIndex index : chain) {
+            index.idByPath.forEach((path, id) -> {
+                if (id == null)
+                    idByPath.remove(path);
+                else
+                    idByPath.put(path, id);
+            });
+            index.pathsById.forEach((id, paths) -> {
+                if (paths.isEmpty())
+                    pathsById.remove(id);
+                else
+                    pathsById.put(id, paths);
+            });
+        }
+        return new PathIndex(treeId, null, idByPath.size(), 0, idByPath, pathsById);
+    }
+
+    private static boolean isFile(final int rawMode) {
+        return rawMode != 0 && (rawMode & FileMode.TYPE_MASK) != FileMode.TYPE_TREE;
+    }
+
+    // path lists are never modified in place, so derived indexes can share them
+    private static List<String> withPath(final List<String> existing, final String path) {
+        if (existing.isEmpty())
+            return List.of(path);
+        final int pos = Collections.binarySearch(existing, path);
+        if (pos >= 0)
+            return existing;
+        final List<String> paths = new ArrayList<>(existing.size() + 1);
+        paths.addAll(existing);
+        paths.add(-pos - 1, path);
+        return Collections.unmodifiableList(paths);
+    }
+
+    private static List<String> withoutPath(final List<String> existing, final String path) {
+        if (!existing.contains(path))
+            return existing;
+        if (existing.size() == 1)
+            return List.of();
+        final List<String> paths = new ArrayList<>(existing);
+        paths.remove(path);
+        return Collections.unmodifiableList(paths);
+    }
+}
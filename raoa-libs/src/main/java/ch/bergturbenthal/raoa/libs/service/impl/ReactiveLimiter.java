@@ -2,62 +2,127 @@ package ch.bergturbenthal.raoa.libs.service.impl;
 
 import ch.bergturbenthal.raoa.libs.properties.Properties;
 import ch.bergturbenthal.raoa.libs.service.Limiter;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
-import lombok.Value;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.FluxSink;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.core.scheduler.Schedulers;
 
 import java.time.Duration;
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.Deque;
-import java.util.List;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
 
+/**
+ * Entries wait in one queue per lane, free slots are handed out by smooth weighted round robin over the lanes with
+ * waiting entries. An entry still waiting at its deadline is dropped with a TimeoutException, either by the drain which
+ * finds it overdue or by its expiry task, which is disposed as soon as the entry leaves the queue otherwise.
+ */
 @Service
 @Slf4j
 // @RefreshScope
 public class ReactiveLimiter implements Limiter {
     private static final Object CONTEXT_KEY = new Object();
+    private static final Lane[] LANES = Lane.values();
     private final SubLimiter rootLimiter;
     private final MeterRegistry meterRegistry;
+    private final Duration timeout;
+    private final Duration queueTimeout;
+    private final int[] laneWeights = new int[LANES.length];
+    private final Map<Lane, Timer> queueWaitTimers = new EnumMap<>(Lane.class);
 
     public ReactiveLimiter(final Properties properties, final MeterRegistry meterRegistry) {
-        rootLimiter = new SubLimiter(properties.getMaxConcurrent());
-        meterRegistry.gauge("reactive-limiter.queue-length", rootLimiter.queue, Deque::size);
-        meterRegistry.gauge("reactive-limiter.running", rootLimiter, SubLimiter::currentRunningEntries);
-        meterRegistry.gauge("reactive-limiter.limit", properties, Properties::getMaxConcurrent);
         this.meterRegistry = meterRegistry;
+        timeout = properties.getLimiterTimeout();
+        queueTimeout = properties.getLimiterQueueTimeout();
+        for (Lane lane : LANES) {
+            laneWeights[lane.ordinal()] = Math.max(1, properties.getLimiterLaneWeights().getOrDefault(lane, 1));
+            queueWaitTimers.put(lane, Timer.builder("reactive-limiter.queue-wait").tag("lane", laneTag(lane))
+                    .publishPercentileHistogram().register(meterRegistry));
+        }
+        final GradientLimit limit = properties.isLimiterAdaptive()
+                ? GradientLimit.adaptive(properties.getLimiterMinConcurrent(), properties.getLimiterMaxConcurrent())
+                : GradientLimit.fixed(properties.getMaxConcurrent());
+        rootLimiter = new SubLimiter(limit);
+        for (Lane lane : LANES)
+            meterRegistry.gauge("reactive-limiter.queue-length", Tags.of("lane", laneTag(lane)), rootLimiter,
+                    l -> l.queueLength(lane));
+        meterRegistry.gauge("reactive-limiter.running", rootLimiter, SubLimiter::currentRunningEntries);
+        meterRegistry.gauge("reactive-limiter.limit", limit, GradientLimit::getLimit);
+        Gauge.builder("reactive-limiter.rtt", limit, GradientLimit::getShortRttNanos).baseUnit("nanoseconds")
+                .register(meterRegistry);
+        Gauge.builder("reactive-limiter.rtt-no-load", limit, GradientLimit::getNoLoadRttNanos).baseUnit("nanoseconds")
+                .register(meterRegistry);
+    }
+
+    private static String laneTag(final Lane lane) {
+        return lane.name().toLowerCase(Locale.ROOT);
     }
 
     @Override
     public <T> Mono<T> limit(final Mono<T> input, final String context) {
+        return limit(input, Lane.INTERACTIVE, null, context);
+    }
+
+    @Override
+    public <T> Flux<T> limit(final Flux<T> input, final String context) {
+        return limit(input, Lane.INTERACTIVE, null, context);
+    }
+
+    @Override
+    public <T> Mono<T> limit(final Mono<T> input, final Lane lane, final String context) {
+        return limit(input, lane, null, context);
+    }
+
+    @Override
+    public <T> Flux<T> limit(final Flux<T> input, final Lane lane, final String context) {
+        return limit(input, lane, null, context);
+    }
+
+    @Override
+    public <T> Mono<T> limit(final Mono<T> input, final Lane lane, final Instant deadline, final String context) {
         meterRegistry.counter("reactive-limiter.incoming").increment();
         AtomicReference<Instant> start = new AtomicReference<>(Instant.now());
-        return doLimit(input.flux(), context).doOnSubscribe(sub -> start.set(Instant.now())).singleOrEmpty()
+        return doLimit(input.flux(), lane, deadline, context).doOnSubscribe(sub -> start.set(Instant.now()))
+                .singleOrEmpty()
                 .doFinally(signal -> meterRegistry.timer("reactive-limiter.outgoing", "signal", signal.name())
                         .record(Duration.between(start.get(), Instant.now())));
     }
 
     @Override
-    public <T> Flux<T> limit(final Flux<T> input, final String context) {
+    public <T> Flux<T> limit(final Flux<T> input, final Lane lane, final Instant deadline, final String context) {
         meterRegistry.counter("reactive-limiter.incoming").increment();
         AtomicReference<Instant> start = new AtomicReference<>(Instant.now());
-        return doLimit(input, context).doOnSubscribe(sub -> start.set(Instant.now()))
+        return doLimit(input, lane, deadline, context).doOnSubscribe(sub -> start.set(Instant.now()))
                 .doFinally(signal -> meterRegistry.timer("reactive-limiter.outgoing", "signal", signal.name())
                         .record(Duration.between(start.get(), Instant.now())));
     }
 
-    private <T> Flux<T> doLimit(final Flux<T> input, final String context) {
+    private <T> Flux<T> doLimit(final Flux<T> input, final Lane lane, final Instant deadline, final String context) {
         return Flux.create(sink -> {
-            final QueueEntry<T> queueEntry = new QueueEntry<>(() -> input, sink, context);
-            final SubLimiter limiter = sink.currentContext().getOrDefault(CONTEXT_KEY, rootLimiter);
+            final QueueEntry<T> queueEntry = new QueueEntry<>(() -> input, sink, context, lane,
+                    deadline != null ? deadline : Instant.now().plus(queueTimeout), System.nanoTime());
+            final QueueEntry<?> parentEntry = sink.currentContext().getOrDefault(CONTEXT_KEY, null);
+            final SubLimiter limiter = parentEntry != null ? parentEntry.nestedLimiter() : rootLimiter;
             sink.onCancel(() -> {
                 meterRegistry.counter("reactive-limiter.cancel").increment();
                 limiter.removeEntry(queueEntry);
@@ -66,78 +131,209 @@ public class ReactiveLimiter implements Limiter {
         });
     }
 
-    private static class SubLimiter {
-        private final int maxRunning;
-        private final Deque<QueueEntry<?>> queue = new ConcurrentLinkedDeque<>();
-        private final List<QueueEntry<?>> runningEntries = new ArrayList<>();
-        private final Object lock = new Object();
+    /**
+     * Without locks: enqueue and completion only touch atomics and concurrent queues and then drain. Only one thread at
+     * a time drains, it takes the entries out of the queues, starts them as long as there are permits and feeds the
+     * completed samples into the limit, so neither the round robin credits nor the limit need a lock.
+     */
+    private class SubLimiter {
+        // sample of an entry dropped by its timeout
+        private static final long DROPPED = -1;
+        private final GradientLimit limit;
+        private final Map<Lane, Queue<QueueEntry<?>>> queues = new EnumMap<>(Lane.class);
+        // entries in the queues which are still waiting, cancelled and expired ones are skipped when polled
+        private final AtomicIntegerArray queueLengths = new AtomicIntegerArray(LANES.length);
+        // only touched while draining
+        private final int[] laneCredits = new int[LANES.length];
+        private final Queue<long[]> samples = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger drainRequests = new AtomicInteger();
 
-        public SubLimiter(int count) {
-            maxRunning = count;
+        public SubLimiter(GradientLimit limit) {
+            this.limit = limit;
+            for (Lane lane : LANES)
+                queues.put(lane, new ConcurrentLinkedQueue<>());
+        }
+
+        public int queueLength(Lane lane) {
+            return queueLengths.get(lane.ordinal());
         }
 
         public int currentRunningEntries() {
-            synchronized (lock) {
-                return runningEntries.size();
-            }
+            return running.get();
         }
 
         public void enqueue(QueueEntry<?> entry) {
-            queue.add(entry);
-            tryDeqeue(true);
-        }
-
-        private void tryDeqeue(final boolean wait) {
-            try {
-                final QueueEntry<?> takenEntry;
-                synchronized (lock) {
-                    if (runningEntries.size() < maxRunning) {
-                        takenEntry = queue.pollFirst();
-                        if (takenEntry != null)
-                            runningEntries.add(takenEntry);
-                    } else
-                        takenEntry = null;
-                }
-                if (takenEntry != null) {
-                    runEntry(takenEntry);
-                    tryDeqeue(false);
+            // counted only once it can be polled, so a drain never waits for an entry which is not there yet
+            queues.get(entry.getLane()).add(entry);
+            queueLengths.incrementAndGet(entry.getLane().ordinal());
+            drain();
+            if (entry.isQueued()) {
+                final long delay = Duration.between(Instant.now(), entry.getDeadline()).toMillis();
+                entry.setExpiry(Schedulers.parallel().schedule(() -> expire(entry), Math.max(0, delay),
+                        TimeUnit.MILLISECONDS));
+            }
+        }
+
+        private void expire(QueueEntry<?> entry) {
+            // an entry already started runs until its own timeout
+            if (entry.leaveQueue(QueueEntry.EXPIRED)) {
+                entry.disposeExpiry();
+                queueLengths.decrementAndGet(entry.getLane().ordinal());
+                meterRegistry.counter("reactive-limiter.rejections", "reason", "deadline").increment();
+                entry.getResultSink()
+                        .error(new TimeoutException("Deadline passed while queued: " + entry.getContext()));
+            }
+        }
+
+        public <T> void removeEntry(final QueueEntry<T> queueEntry) {
+            if (queueEntry.leaveQueue(QueueEntry.CANCELLED)) {
+                queueEntry.disposeExpiry();
+                queueLengths.decrementAndGet(queueEntry.getLane().ordinal());
+            }
+        }
+
+        private void drain() {
+            if (drainRequests.getAndIncrement() != 0)
+                return;
+            int missed = 1;
+            do {
+                applySamples();
+                while (true) {
+                    final int currentRunning = running.get();
+                    if (currentRunning >= limit.getLimit())
+                        break;
+                    final QueueEntry<?> entry = pollNext();
+                    if (entry == null)
+                        break;
+                    running.incrementAndGet();
+                    queueWaitTimers.get(entry.getLane()).record(System.nanoTime() - entry.getEnqueueTime(),
+                            TimeUnit.NANOSECONDS);
+                    try {
+                        runEntry(entry);
+                    } catch (final Exception e) {
+                        log.info("Cannot start " + entry.getContext(), e);
+                    }
                 }
+                missed = drainRequests.addAndGet(-missed);
+            } while (missed != 0);
+        }
 
-                // else {
-                // log.info("No slot available");
-                // }
-            } catch (final Exception e) {
-                log.info("Cannot Dequeue", e);
+        private void applySamples() {
+            long[] sample;
+            while ((sample = samples.poll()) != null) {
+                if (sample[0] == DROPPED)
+                    limit.onDropped();
+                else
+                    limit.onSample(sample[0], (int) sample[1]);
+            }
+        }
+
+        // smooth weighted round robin: every waiting lane earns its weight, the richest pays the sum of them
+        private QueueEntry<?> pollNext() {
+            // lanes still counted while their last entry is being started, cancelled or expired elsewhere
+            final boolean[] exhausted = new boolean[LANES.length];
+            while (true) {
+                Lane selected = null;
+                int totalWeight = 0;
+                for (Lane lane : LANES) {
+                    final int index = lane.ordinal();
+                    if (queueLengths.get(index) <= 0 || exhausted[index]) {
+                        laneCredits[index] = 0;
+                        continue;
+                    }
+                    laneCredits[index] += laneWeights[index];
+                    totalWeight += laneWeights[index];
+                    if (selected == null || laneCredits[index] > laneCredits[selected.ordinal()])
+                        selected = lane;
+                }
+                if (selected == null)
+                    return null;
+                laneCredits[selected.ordinal()] -= totalWeight;
+                final Queue<QueueEntry<?>> queue = queues.get(selected);
+                final Instant now = Instant.now();
+                QueueEntry<?> entry;
+                while ((entry = queue.poll()) != null) {
+                    if (entry.getDeadline().isBefore(now)) {
+                        expire(entry);
+                    } else if (entry.leaveQueue(QueueEntry.STARTED)) {
+                        entry.disposeExpiry();
+                        queueLengths.decrementAndGet(selected.ordinal());
+                        return entry;
+                    }
+                }
+                exhausted[selected.ordinal()] = true;
             }
         }
 
         private void runEntry(final QueueEntry<?> takenEntry) {
             final FluxSink<Object> sink = (FluxSink<Object>) takenEntry.getResultSink();
-            SubLimiter subLimiter = new SubLimiter(1);
-            final Disposable subscription = takenEntry.getMonoSupplier().get().timeout(Duration.ofSeconds(30))
-                    .doFinally(signal -> {
-                        // log.info("Signal " + signal);
-                        synchronized (lock) {
-                            final boolean remove = runningEntries.remove(takenEntry);
-                            if (!remove)
-                                log.info("Missing entry: " + takenEntry.context);
-                        }
-                        tryDeqeue(false);
-                    }).contextWrite(sink.currentContext().put(CONTEXT_KEY, subLimiter))
+            final long startTime = System.nanoTime();
+            takenEntry.getMonoSupplier().get().timeout(timeout).doFinally(signal -> {
+                if (signal == SignalType.ON_COMPLETE)
+                    samples.add(new long[] { System.nanoTime() - startTime, running.get() });
+                running.decrementAndGet();
+                drain();
+            }).doOnError(TimeoutException.class, ex -> {
+                meterRegistry.counter("reactive-limiter.rejections", "reason", "timeout").increment();
+                samples.add(new long[] { DROPPED, 0 });
+            }).contextWrite(sink.currentContext().put(CONTEXT_KEY, takenEntry))
                     .subscribe(sink::next, sink::error, sink::complete);
-            // sink.onCancel(subscription);
-            // sink.onDispose(subscription);
         }
+    }
 
-        public <T> void removeEntry(final QueueEntry<T> queueEntry) {
-            queue.remove(queueEntry);
+    @Getter
+    @RequiredArgsConstructor
+    private class QueueEntry<R> {
+        private static final int QUEUED = 0;
+        private static final int STARTED = 1;
+        private static final int CANCELLED = 2;
+        private static final int EXPIRED = 3;
+        private final Supplier<Flux<R>> monoSupplier;
+        private final FluxSink<R> resultSink;
+        private final String context;
+        private final Lane lane;
+        private final Instant deadline;
+        // System.nanoTime() when queued
+        private final long enqueueTime;
+        @Getter(AccessLevel.NONE)
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        // limiter of nested calls while this entry runs, they are run one after the other
+        @Getter(AccessLevel.NONE)
+        private final AtomicReference<SubLimiter> nestedLimiter = new AtomicReference<>();
+        @Getter(AccessLevel.NONE)
+        private final AtomicReference<Disposable> expiry = new AtomicReference<>();
+
+        boolean isQueued() {
+            return state.get() == QUEUED;
+        }
+
+        void setExpiry(final Disposable task) {
+            expiry.set(task);
+            // the entry may have left the queue before the task was known
+            if (!isQueued())
+                task.dispose();
+        }
+
+        void disposeExpiry() {
+            final Disposable task = expiry.get();
+            if (task != null)
+                task.dispose();
         }
-    }
 
-    @Value
-    private static class QueueEntry<R> {
-        private Supplier<Flux<R>> monoSupplier;
-        private FluxSink<R> resultSink;
-        private String context;
+        /**
+         * @return true if the entry was still queued, exactly one of start, cancel and expiry wins
+         */
+        boolean leaveQueue(final int newState) {
+            return state.compareAndSet(QUEUED, newState);
+        }
+
+        SubLimiter nestedLimiter() {
+            final SubLimiter existing = nestedLimiter.get();
+            if (existing != null)
+                return existing;
+            nestedLimiter.compareAndSet(null, new SubLimiter(GradientLimit.fixed(1)));
+            return nestedLimiter.get();
+        }
     }
 }
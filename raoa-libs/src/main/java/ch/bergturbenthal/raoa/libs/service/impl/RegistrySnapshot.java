@@ -0,0 +1,137 @@
+package ch.bergturbenthal.raoa.libs.service.impl;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Album registry as known at the last write, so the album list can answer right after startup without opening every
+ * repository. The entries may be outdated, they have to be checked against the heads of the repositories.
+ */
+@Slf4j
+final class RegistrySnapshot {
+    private static final byte FORMAT_VERSION = 2;
+
+    private RegistrySnapshot() {
+    }
+
+    /**
+     * @return the stored entries, empty if there is no readable snapshot
+     */
+    static List<Entry> read(final Path file) {
+        try (InputStream fileIn = Files.newInputStream(file)) {
+            if (fileIn.read() != FORMAT_VERSION) {
+                log.info("Ignoring snapshot " + file + " of an other format");
+                return Collections.emptyList();
+            }
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new InflaterInputStream(fileIn)));
+            final int count = in.readInt();
+            final List<Entry> entries = new ArrayList<>(count);
+            final byte[] rawId = new byte[Constants.OBJECT_ID_LENGTH];
+            for (int i = 0; i < count; i++) {
+                final UUID albumId = new UUID(in.readLong(), in.readLong());
+                final String relativePath = in.readUTF();
+                final ObjectId head;
+                if (in.readBoolean()) {
+                    in.readFully(rawId);
+                    head = ObjectId.fromRaw(rawId);
+                } else
+                    head = null;
+                final String title = in.readBoolean() ? in.readUTF() : null;
+                final ObjectId autoaddId;
+                if (in.readBoolean()) {
+                    in.readFully(rawId);
+                    autoaddId = ObjectId.fromRaw(rawId);
+                } else
+                    autoaddId = null;
+                final int autoaddCount = in.readInt();
+                final List<Instant> autoadd = new ArrayList<>(autoaddCount);
+                for (int j = 0; j < autoaddCount; j++)
+                    autoadd.add(Instant.ofEpochSecond(in.readLong(), in.readInt()));
+                entries.add(new Entry(albumId, relativePath, head, title, autoaddId, autoadd));
+            }
+            return entries;
+        } catch (NoSuchFileException e) {
+            return Collections.emptyList();
+        } catch (IOException | RuntimeException e) {
+            log.warn("Cannot read snapshot " + file + ", ignoring it", e);
+            return Collections.emptyList();
+        }
+    }
+
+    static void write(final Path file, final Collection<Entry> entries) throws IOException {
+        final Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        // several processes may share the snapshot, so it is replaced only when complete
+        final Path tempFile = dir.resolve(UUID.randomUUID() + ".tmp");
+        try {
+            try (OutputStream fileOut = Files.newOutputStream(tempFile)) {
+                fileOut.write(FORMAT_VERSION);
+                final DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new DeflaterOutputStream(fileOut)));
+                out.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    out.writeLong(entry.getAlbumId().getMostSignificantBits());
+                    out.writeLong(entry.getAlbumId().getLeastSignificantBits());
+                    out.writeUTF(entry.getRelativePath());
+                    out.writeBoolean(entry.getHead() != null);
+                    if (entry.getHead() != null)
+                        entry.getHead().copyRawTo(out);
+                    out.writeBoolean(entry.getTitle() != null);
+                    if (entry.getTitle() != null)
+                        out.writeUTF(entry.getTitle());
+                    out.writeBoolean(entry.getAutoaddId() != null);
+                    if (entry.getAutoaddId() != null)
+                        entry.getAutoaddId().copyRawTo(out);
+                    out.writeInt(entry.getAutoadd().size());
+                    for (Instant instant : entry.getAutoadd()) {
+                        out.writeLong(instant.getEpochSecond());
+                        out.writeInt(instant.getNano());
+                    }
+                }
+                out.close();
+            }
+            try {
+                Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    @Value
+    static class Entry {
+        UUID albumId;
+        String relativePath;
+        // null for albums without commits
+        ObjectId head;
+        String title;
+        ObjectId autoaddId;
+        List<Instant> autoadd;
+    }
+}
@@ -0,0 +1,298 @@
+package ch.bergturbenthal.raoa.libs.service.impl;
+
+import ch.bergturbenthal.raoa.libs.properties.Properties;
+import ch.bergturbenthal.raoa.libs.service.AlbumList;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.internal.storage.file.ObjectDirectory;
+import org.eclipse.jgit.internal.storage.file.Pack;
+import org.eclipse.jgit.internal.storage.file.PackIndex;
+import org.eclipse.jgit.internal.storage.file.PackInserter;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ObjectStream;
+import org.eclipse.jgit.lib.Repository;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import reactor.util.function.Tuple2;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the album repositories packed. Loose objects are collected into a new pack when there are too many of them,
+ * and when the packs pile up, the small ones are merged geometrically: the large packs stay as they are and are marked
+ * with a keep file, so every object is rewritten only a few times over the life of an album. Repositories are
+ * processed one after the other on an own thread and all reads and writes are throttled by a global budget, so
+ * maintenance does not compete with imports and clients.
+ */
+@Slf4j
+@Service
+public class RepositoryMaintenance implements Closeable {
+    private static final Duration INITIAL_DELAY = Duration.ofMinutes(2);
+    // a pack stays when it is at least this many times the size of all smaller packs together
+    private static final int GEOMETRIC_FACTOR = 2;
+    private static final String KEEP_MESSAGE = "raoa maintenance";
+    // sha-1 checksum at the end of every pack
+    private static final int PACK_TRAILER_SIZE = 20;
+    private final AlbumList albumList;
+    private final Properties properties;
+    private final MeterRegistry meterRegistry;
+    private final IoBudget ioBudget;
+    private final ScheduledExecutorService executorService = Executors
+            .newSingleThreadScheduledExecutor(new CustomizableThreadFactory("raoa-maintenance"));
+    private final Map<String, AtomicReference<GC.RepoStatistics>> statistics = new ConcurrentHashMap<>();
+
+    public RepositoryMaintenance(final AlbumList albumList, final Properties properties,
+            final MeterRegistry meterRegistry) {
+        this.albumList = albumList;
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+        ioBudget = new IoBudget(properties.getMaintenanceIoBudget().toBytes());
+        if (properties.isMaintenanceEnabled())
+            executorService.scheduleWithFixedDelay(this::runMaintenance, INITIAL_DELAY.toMillis(),
+                    properties.getMaintenanceInterval().toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private static List<ObjectId> listLooseObjects(final File objectsDir) {
+        final List<ObjectId> ret = new ArrayList<>();
+        final File[] fanoutDirs = objectsDir.listFiles(f -> f.isDirectory() && f.getName().length() == 2);
+        if (fanoutDirs == null)
+            return ret;
+        for (File fanoutDir : fanoutDirs) {
+            final String[] names = fanoutDir.list();
+            if (names == null)
+                continue;
+            for (String name : names) {
+                final String id = fanoutDir.getName() + name;
+                if (ObjectId.isId(id))
+                    ret.add(ObjectId.fromString(id));
+            }
+        }
+        return ret;
+    }
+
+    private static long packSize(final Pack pack) {
+        return pack.getPackFile().length();
+    }
+
+    private static boolean keptByOthers(final Pack pack) throws IOException {
+        final File keepFile = pack.getPackFile().create(PackExt.KEEP);
+        return keepFile.exists() && !KEEP_MESSAGE.equals(Files.readString(keepFile.toPath()).trim());
+    }
+
+    /**
+     * @param packs
+     *            sorted by size, the smallest first
+     * @return the number of the smallest packs to merge, all larger packs are at least {@link #GEOMETRIC_FACTOR} times
+     *         the size of all smaller ones
+     */
+    private static int packsToMerge(final List<Pack> packs) {
+        long smaller = packs.stream().mapToLong(RepositoryMaintenance::packSize).sum();
+        for (int i = packs.size() - 1; i >= 0; i--) {
+            final long size = packSize(packs.get(i));
+            smaller -= size;
+            if (size < GEOMETRIC_FACTOR * smaller)
+                return i + 1;
+        }
+        return 0;
+    }
+
+    private static void removePack(final Pack pack) throws IOException {
+        // without its pack an index is ignored, so a failure half way through leaves no broken pack behind
+        Files.deleteIfExists(pack.getPackFile().create(PackExt.PACK).toPath());
+        for (PackExt ext : PackExt.values())
+            Files.deleteIfExists(pack.getPackFile().create(ext).toPath());
+    }
+
+    @Override
+    public void close() {
+        executorService.shutdownNow();
+    }
+
+    public void runMaintenance() {
+        try {
+            for (Tuple2<String, Repository> album : albumList.listAlbums().map(AlbumList.FoundAlbum::getAccess)
+                    .concatMap(access -> access.getFullPath().zipWith(access.getRepository())).toIterable(1)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    album.getT2().close();
+                    return;
+                }
+                try {
+                    maintain(album.getT1(), album.getT2());
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Cannot maintain " + album.getT1(), e);
+                } finally {
+                    album.getT2().close();
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("Repository maintenance failed", e);
+        }
+    }
+
+    private void maintain(final String name, final Repository repository) throws IOException {
+        if (!(repository instanceof FileRepository fileRepository))
+            return;
+        final GC gc = new GC(fileRepository);
+        final GC.RepoStatistics before = gc.getStatistics();
+        updateStatistics(name, before);
+        final String action;
+        final Timer.Sample sample = Timer.start(meterRegistry);
+        if (before.numberOfPackFiles >= properties.getMaintenancePackThreshold()) {
+            action = "repack";
+            packLooseObjects(fileRepository);
+            gc.prunePacked();
+            repack(fileRepository);
+        } else if (before.numberOfLooseObjects >= properties.getMaintenanceLooseObjectThreshold()) {
+            action = "pack-loose";
+            packLooseObjects(fileRepository);
+            gc.prunePacked();
+        } else
+            return;
+        sample.stop(meterRegistry.timer("git-maintenance.run", "repository", name, "action", action));
+        final GC.RepoStatistics after = gc.getStatistics();
+        updateStatistics(name, after);
+        log.info("Maintenance " + action + " on " + name + ": " + before.numberOfLooseObjects + " loose objects, "
+                + before.numberOfPackFiles + " packs -> " + after.numberOfLooseObjects + " loose objects, "
+                + after.numberOfPackFiles + " packs");
+    }
+
+    private void repack(final FileRepository repository) throws IOException {
+        final List<Pack> packs = new ArrayList<>();
+        for (Pack pack : repository.getObjectDatabase().getPacks())
+            if (!keptByOthers(pack))
+                packs.add(pack);
+        packs.sort(Comparator.comparingLong(RepositoryMaintenance::packSize));
+        final int mergeCount = packsToMerge(packs);
+        final List<Pack> merged = packs.subList(0, mergeCount);
+        if (merged.size() > 1) {
+            mergePacks(repository, merged);
+            for (Pack pack : merged)
+                removePack(pack);
+        }
+        for (Pack pack : packs.subList(mergeCount, packs.size())) {
+            final File keepFile = pack.getPackFile().create(PackExt.KEEP);
+            if (!keepFile.exists())
+                Files.writeString(keepFile.toPath(), KEEP_MESSAGE + "\n");
+        }
+    }
+
+    /**
+     * Copies the objects of the packs into a new one. Each object is charged with the bytes it takes in its old pack
+     * when it is read and with its size when it is written.
+     */
+    private void mergePacks(final FileRepository repository, final List<Pack> packs) throws IOException {
+        final Set<ObjectId> copied = new HashSet<>();
+        try (PackInserter inserter = repository.getObjectDatabase().newPackInserter();
+                ObjectReader reader = repository.newObjectReader()) {
+            // all of them exist in the old packs, they are removed after the new pack is written
+            inserter.checkExisting(false);
+            for (Pack pack : packs) {
+                final List<PackIndex.MutableEntry> entries = new ArrayList<>();
+                for (PackIndex.MutableEntry entry : pack)
+                    entries.add(entry.cloneEntry());
+                // in the order of the pack, each object ends where the next one starts
+                entries.sort(Comparator.comparingLong(PackIndex.MutableEntry::getOffset));
+                for (int i = 0; i < entries.size(); i++) {
+                    final PackIndex.MutableEntry entry = entries.get(i);
+                    final long end = i + 1 < entries.size() ? entries.get(i + 1).getOffset()
+                            : packSize(pack) - PACK_TRAILER_SIZE;
+                    final ObjectId objectId = entry.toObjectId();
+                    if (!copied.add(objectId))
+                        continue;
+                    ioBudget.acquire(end - entry.getOffset());
+                    final ObjectLoader loader = reader.open(objectId);
+                    ioBudget.acquire(loader.getSize());
+                    try (ObjectStream in = loader.openStream()) {
+                        inserter.insert(loader.getType(), loader.getSize(), in);
+                    }
+                }
+            }
+            inserter.flush();
+        }
+    }
+
+    private void packLooseObjects(final FileRepository repository) throws IOException {
+        final ObjectDirectory objectDirectory = repository.getObjectDatabase();
+        final List<ObjectId> looseObjects = listLooseObjects(objectDirectory.getDirectory());
+        try (PackInserter inserter = objectDirectory.newPackInserter();
+                ObjectReader reader = repository.newObjectReader()) {
+            // all of them exist as loose objects, they are removed after the pack is written
+            inserter.checkExisting(false);
+            for (ObjectId objectId : looseObjects) {
+                final ObjectLoader loader = reader.open(objectId);
+                ioBudget.acquire(loader.getSize());
+                try (ObjectStream in = loader.openStream()) {
+                    inserter.insert(loader.getType(), loader.getSize(), in);
+                }
+            }
+            inserter.flush();
+        }
+    }
+
+    private void updateStatistics(final String name, final GC.RepoStatistics current) {
+        statistics.computeIfAbsent(name, k -> {
+            final AtomicReference<GC.RepoStatistics> ref = new AtomicReference<>(current);
+            final Tags tags = Tags.of("repository", k);
+            meterRegistry.gauge("git-maintenance.loose-objects", tags, ref, r -> r.get().numberOfLooseObjects);
+            meterRegistry.gauge("git-maintenance.loose-size", tags, ref, r -> r.get().sizeOfLooseObjects);
+            meterRegistry.gauge("git-maintenance.pack-files", tags, ref, r -> r.get().numberOfPackFiles);
+            meterRegistry.gauge("git-maintenance.pack-size", tags, ref, r -> r.get().sizeOfPackedObjects);
+            meterRegistry.gauge("git-maintenance.objects-since-bitmap", tags, ref,
+                    r -> r.get().numberOfObjectsSinceBitmap);
+            return ref;
+        }).set(current);
+    }
+
+    /**
+     * Blocks the caller until the bytes fit into the budget of bytes per second
+     */
+    private class IoBudget {
+        private final long bytesPerSecond;
+        private long nextFree = System.nanoTime();
+
+        IoBudget(final long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void acquire(final long bytes) {
+            final long waitNanos;
+            synchronized (this) {
+                final long now = System.nanoTime();
+                nextFree = Math.max(nextFree, now);
+                waitNanos = nextFree - now;
+                nextFree += bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+            }
+            meterRegistry.counter("git-maintenance.bytes").increment(bytes);
+            if (waitNanos <= 0)
+                return;
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for io budget", e);
+            }
+        }
+    }
+}
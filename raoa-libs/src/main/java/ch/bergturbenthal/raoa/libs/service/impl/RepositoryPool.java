@@ -0,0 +1,192 @@
+package ch.bergturbenthal.raoa.libs.service.impl;
+
+import ch.bergturbenthal.raoa.libs.properties.Properties;
+import ch.bergturbenthal.raoa.libs.service.AsyncService;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Value;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.Pack;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Keeps the recently used repositories open, so their pack handles and index caches survive between requests. The
+ * least recently used repositories are closed when the pool exceeds its limits on open repositories, pack files or
+ * index memory. Every repository handed out is counted as an open reference of the jgit repository and has to be
+ * closed by its user. The pool gives up its own reference on eviction, so the repository is closed as soon as the last
+ * operation still running on it is done.
+ */
+@Service
+public class RepositoryPool {
+    private final Map<Path, PoolEntry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final Sinks.Many<Path> evictions = Sinks.many().multicast().directBestEffort();
+    private final AsyncService asyncService;
+    private final MeterRegistry meterRegistry;
+    private final Properties properties;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private int packFiles = 0;
+    private long indexBytes = 0;
+
+    public RepositoryPool(final AsyncService asyncService, final MeterRegistry meterRegistry,
+            final Properties properties) {
+        this.asyncService = asyncService;
+        this.meterRegistry = meterRegistry;
+        this.properties = properties;
+        meterRegistry.gauge("repository-pool.open", this, RepositoryPool::openRepositories);
+        meterRegistry.gauge("repository-pool.pack-files", this, RepositoryPool::openPackFiles);
+        meterRegistry.gauge("repository-pool.index-bytes", this, RepositoryPool::openIndexBytes);
+        meterRegistry.gauge("repository-pool.hit-ratio", this, RepositoryPool::hitRatio);
+    }
+
+    private static int countPacks(final Repository repository) {
+        if (repository instanceof FileRepository fileRepository)
+            return fileRepository.getObjectDatabase().getPacks().size();
+        return 0;
+    }
+
+    private static long sumIndexSizes(final Repository repository) {
+        if (!(repository instanceof FileRepository fileRepository))
+            return 0;
+        long size = 0;
+        for (Pack pack : fileRepository.getObjectDatabase().getPacks())
+            size += pack.getPackFile().create(PackExt.INDEX).length();
+        return size;
+    }
+
+    /**
+     * Runs the operation on an own reference of the repository. A repository evicted and closed in the meantime opens
+     * its packs again for the operation and closes them with the reference.
+     */
+    static <T> Mono<T> using(final Repository repository, final Function<Repository, Mono<T>> operation) {
+        return Mono.usingWhen(Mono.fromSupplier(() -> {
+            repository.incrementOpen();
+            return repository;
+        }), operation, RepositoryPool::release);
+    }
+
+    static <T> Flux<T> usingMany(final Repository repository, final Function<Repository, Flux<T>> operation) {
+        return Flux.usingWhen(Mono.fromSupplier(() -> {
+            repository.incrementOpen();
+            return repository;
+        }), operation, RepositoryPool::release);
+    }
+
+    static Mono<Void> release(final Repository repository) {
+        return Mono.fromRunnable(repository::close);
+    }
+
+    /**
+     * @return the repository, the caller closes it when done
+     */
+    public Mono<Repository> repositoryOf(final Path gitDir) {
+        synchronized (this) {
+            final PoolEntry entry = entries.get(gitDir);
+            if (entry != null) {
+                hits.incrementAndGet();
+                meterRegistry.counter("repository-pool.lookup", "result", "hit").increment();
+                entry.getRepository().incrementOpen();
+                return Mono.just(entry.getRepository());
+            }
+        }
+        misses.incrementAndGet();
+        meterRegistry.counter("repository-pool.lookup", "result", "miss").increment();
+        return asyncService.asyncMono(AsyncService.OperationClass.GIT_READ, () -> open(gitDir));
+    }
+
+    /**
+     * Paths of the repositories given up by the pool, users keeping a repository for longer let go of it
+     */
+    public Flux<Path> evictions() {
+        return evictions.asFlux();
+    }
+
+    private Repository open(final Path gitDir) throws IOException {
+        final Repository repository = new FileRepositoryBuilder().setGitDir(gitDir.toFile()).readEnvironment().build();
+        final List<PoolEntry> evicted = new ArrayList<>();
+        synchronized (this) {
+            final PoolEntry existing = entries.get(gitDir);
+            if (existing != null) {
+                // opened concurrently by someone else
+                repository.close();
+                existing.getRepository().incrementOpen();
+                return existing.getRepository();
+            }
+            final PoolEntry entry = new PoolEntry(gitDir, repository, countPacks(repository),
+                    sumIndexSizes(repository));
+            entries.put(gitDir, entry);
+            packFiles += entry.getPackFiles();
+            indexBytes += entry.getIndexBytes();
+            evictOverLimit(evicted);
+            // the reference of the pool is the one the repository was opened with, the caller gets its own
+            repository.incrementOpen();
+        }
+        for (PoolEntry entry : evicted) {
+            entry.getRepository().close();
+            evictions.emitNext(entry.getGitDir(), Sinks.EmitFailureHandler.busyLooping(Duration.ofSeconds(1)));
+        }
+        meterRegistry.counter("repository-pool.evictions").increment(evicted.size());
+        return repository;
+    }
+
+    // the newest entry stays, even if it exceeds a limit on its own
+    private void evictOverLimit(final List<PoolEntry> evicted) {
+        final Iterator<PoolEntry> iterator = entries.values().iterator();
+        while (entries.size() > 1 && overLimit() && iterator.hasNext()) {
+            final PoolEntry entry = iterator.next();
+            iterator.remove();
+            packFiles -= entry.getPackFiles();
+            indexBytes -= entry.getIndexBytes();
+            evicted.add(entry);
+        }
+    }
+
+    private boolean overLimit() {
+        return entries.size() > properties.getRepositoryPoolSize()
+                || packFiles > properties.getRepositoryPoolMaxPackFiles()
+                || indexBytes > properties.getRepositoryPoolMaxIndexMemory().toBytes();
+    }
+
+    private synchronized int openRepositories() {
+        return entries.size();
+    }
+
+    private synchronized int openPackFiles() {
+        return packFiles;
+    }
+
+    private synchronized long openIndexBytes() {
+        return indexBytes;
+    }
+
+    private double hitRatio() {
+        final long hitCount = hits.get();
+        final long total = hitCount + misses.get();
+        return total == 0 ? 1 : (double) hitCount / total;
+    }
+
+    // pack files and index size as found when the repository was opened
+    @Value
+    private static class PoolEntry {
+        Path gitDir;
+        Repository repository;
+        int packFiles;
+        long indexBytes;
+    }
+}
@@ -0,0 +1,110 @@
+package ch.bergturbenthal.raoa.libs.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.stream.Stream;
+
+/**
+ * Watches the directories of the repository root down to the repositories, the repositories themselves are not
+ * watched. Creations and deletions are reported to the listener, which has to rescan everything on an overflow.
+ */
+@Slf4j
+class RepositoryTreeWatcher implements Closeable {
+    private final WatchService watchService;
+    private final Listener listener;
+
+    RepositoryTreeWatcher(final Path root, final Listener listener) throws IOException {
+        this.listener = listener;
+        watchService = root.getFileSystem().newWatchService();
+        registerTree(root);
+    }
+
+    static boolean isRepository(final Path dir) {
+        return dir.getFileName().toString().endsWith(".git") || Files.isDirectory(dir.resolve(".git"));
+    }
+
+    private void registerTree(final Path dir) throws IOException {
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        try (Stream<Path> children = Files.list(dir)) {
+            for (Path child : (Iterable<Path>) children::iterator) {
+                if (Files.isDirectory(child) && !isRepository(child))
+                    registerTree(child);
+            }
+        }
+    }
+
+    /**
+     * Delivers the pending events without blocking
+     */
+    void poll() {
+        try {
+            WatchKey key;
+            while ((key = watchService.poll()) != null) {
+                final Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        listener.overflow();
+                        continue;
+                    }
+                    final Path child = dir.resolve((Path) event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+                        listener.removed(child);
+                    else
+                        created(child);
+                }
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException e) {
+            log.debug("Watch service closed");
+        }
+    }
+
+    private void created(final Path child) {
+        if (child.getFileName().toString().equals(".git")) {
+            listener.repositoryAppeared(child);
+            return;
+        }
+        if (!Files.isDirectory(child))
+            return;
+        if (child.getFileName().toString().endsWith(".git")) {
+            listener.repositoryAppeared(child);
+            return;
+        }
+        final Path dotGitDir = child.resolve(".git");
+        if (Files.isDirectory(dotGitDir)) {
+            listener.repositoryAppeared(dotGitDir);
+            return;
+        }
+        // a new level of directories, it may already contain repositories when it was moved here
+        try {
+            registerTree(child);
+        } catch (IOException e) {
+            log.warn("Cannot watch " + child, e);
+        }
+        listener.directoryAppeared(child);
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    interface Listener {
+        void repositoryAppeared(Path gitDir);
+
+        void directoryAppeared(Path dir);
+
+        void removed(Path path);
+
+        void overflow();
+    }
+}
@@ -0,0 +1,140 @@
+package ch.bergturbenthal.raoa.libs.service.impl;
+
+import lombok.Value;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Applies path edits to a tree. Only the trees on the path of an edit are parsed and written again, all other entries
+ * are copied by id, so the cost depends on the number of edits and not on the size of the album.
+ */
+final class TreeRewriter {
+    private static final Comparator<TreeEntry> GIT_ORDER = (e1, e2) -> {
+        final byte[] n1 = e1.getSortName();
+        final byte[] n2 = e2.getSortName();
+        final int len = Math.min(n1.length, n2.length);
+        for (int i = 0; i < len; i++) {
+            final int diff = (n1[i] & 0xff) - (n2[i] & 0xff);
+            if (diff != 0)
+                return diff;
+        }
+        return n1.length - n2.length;
+    };
+
+    private TreeRewriter() {
+    }
+
+    /**
+     * @param baseTree
+     *            tree to start from, null for an empty repository
+     * @param edits
+     *            new blob id by path, a null id removes the path. Paths below a new file are dropped, the commit queue
+     *            rejects such edits before.
+     * @return id of the written tree
+     */
+    static ObjectId rewrite(final ObjectReader reader, final ObjectInserter inserter, final AnyObjectId baseTree,
+            final Map<String, ObjectId> edits) throws IOException {
+        final ObjectId treeId = rewriteTree(reader, inserter, baseTree, edits);
+        if (treeId == null)
+            return inserter.insert(new TreeFormatter());
+        return treeId;
+    }
+
+    private static ObjectId rewriteTree(final ObjectReader reader, final ObjectInserter inserter,
+            final AnyObjectId baseTree, final Map<String, ObjectId> edits) throws IOException {
+        final Map<String, ObjectId> fileEdits = new HashMap<>();
+        final Map<String, Map<String, ObjectId>> subtreeEdits = new HashMap<>();
+        for (Map.Entry<String, ObjectId> edit : edits.entrySet()) {
+            final String path = edit.getKey();
+            final int slash = path.indexOf('/');
+            if (slash < 0)
+                fileEdits.put(path, edit.getValue());
+            else
+                subtreeEdits.computeIfAbsent(path.substring(0, slash), k -> new HashMap<>())
+                        .put(path.substring(slash + 1), edit.getValue());
+        }
+
+        final List<TreeEntry> entries = new ArrayList<>();
+        final Set<String> existingNames = new HashSet<>();
+        if (baseTree != null) {
+            final CanonicalTreeParser parser = new CanonicalTreeParser(null, reader, baseTree);
+            for (; !parser.eof(); parser.next()) {
+                final TreeEntry existing = new TreeEntry(parser.getEntryPathString(), parser.getEntryFileMode(),
+                        parser.getEntryObjectId());
+                existingNames.add(existing.getName());
+                if (fileEdits.containsKey(existing.getName()) || subtreeEdits.containsKey(existing.getName()))
+                    addEdited(reader, inserter, entries, existing.getName(), existing, fileEdits, subtreeEdits);
+                else
+                    entries.add(existing);
+            }
+        }
+        final Set<String> newNames = new HashSet<>(fileEdits.keySet());
+        newNames.addAll(subtreeEdits.keySet());
+        newNames.removeAll(existingNames);
+        for (String name : newNames)
+            addEdited(reader, inserter, entries, name, null, fileEdits, subtreeEdits);
+
+        if (entries.isEmpty())
+            return null;
+        entries.sort(GIT_ORDER);
+        final TreeFormatter formatter = new TreeFormatter();
+        for (TreeEntry entry : entries)
+            formatter.append(entry.getName(), entry.getMode(), entry.getObjectId());
+        return inserter.insert(formatter);
+    }
+
+    private static void addEdited(final ObjectReader reader, final ObjectInserter inserter,
+            final List<TreeEntry> entries, final String name, final TreeEntry existing,
+            final Map<String, ObjectId> fileEdits, final Map<String, Map<String, ObjectId>> subtreeEdits)
+            throws IOException {
+        final ObjectId fileId = fileEdits.get(name);
+        if (fileId != null) {
+            entries.add(new TreeEntry(name, FileMode.REGULAR_FILE, fileId));
+            return;
+        }
+        // removing a name only removes a file, directories disappear with their last file
+        final boolean existingTree = existing != null && existing.isTree();
+        final Map<String, ObjectId> nestedEdits = subtreeEdits.get(name);
+        final ObjectId subtreeId;
+        if (nestedEdits != null)
+            subtreeId = rewriteTree(reader, inserter, existingTree ? existing.getObjectId() : null, nestedEdits);
+        else
+            subtreeId = existingTree ? existing.getObjectId() : null;
+        if (subtreeId != null)
+            // a file in the way of added paths is replaced by the new directory
+            entries.add(new TreeEntry(name, FileMode.TREE, subtreeId));
+        else if (existing != null && !existingTree && !fileEdits.containsKey(name))
+            entries.add(existing);
+    }
+
+    @Value
+    private static class TreeEntry {
+        String name;
+        FileMode mode;
+        ObjectId objectId;
+
+        boolean isTree() {
+            return FileMode.TREE.equals(mode.getBits());
+        }
+
+        // git sorts trees as if their name ended with a slash
+        byte[] getSortName() {
+            return Constants.encode(isTree() ? name + "/" : name);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package ch.bergturbenthal.raoa.libs.service.impl;
 
+import ch.bergturbenthal.raoa.libs.model.XmpData;
 import com.adobe.internal.xmp.XMPConst;
 import com.adobe.internal.xmp.XMPException;
 import com.adobe.internal.xmp.XMPMeta;
@@ -33,6 +34,11 @@ public class XmpWrapper {
         }
     }
 
+    public XmpData toXmpData() {
+        return XmpData.builder().description(readDescription()).rating(readRating())
+                .keywords(new LinkedHashSet<>(readKeywords())).build();
+    }
+
     public String readDescription() {
         try {
             final int entryCount = meta.countArrayItems(XMPConst.NS_DC, "description");
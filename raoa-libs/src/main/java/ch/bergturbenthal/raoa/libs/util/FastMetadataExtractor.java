@@ -0,0 +1,602 @@
+package ch.bergturbenthal.raoa.libs.util;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.metadata.TIFF;
+import org.apache.tika.metadata.TikaCoreProperties;
+import org.apache.tika.metadata.XMPDM;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.xml.sax.SAXException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the fields used by {@link TikaUtil} from the headers of JPEG, TIFF based raw files (NEF) and ISO base media
+ * files (MP4/MOV) without parsing the media data. Keys and value formats follow what tika writes, so the result can be
+ * used in place of a full tika parse. Other formats are handed to tika.
+ */
+@Slf4j
+public class FastMetadataExtractor {
+    private static final int MAX_TIFF_HEADER = 1024 * 1024;
+    private static final int MAX_JPEG_SEGMENTS = 64;
+    private static final int MAX_BOXES = 4096;
+    private static final int MAX_BOX_READ = 4096;
+    private static final int MAX_BOX_DEPTH = 4;
+    // full box header, entry count and a visual sample entry up to its height
+    private static final int SAMPLE_DESCRIPTION_HEADER = 44;
+    // seconds from 1904-01-01 (iso media epoch) to 1970-01-01
+    private static final long ISO_MEDIA_EPOCH_OFFSET = 2082844800L;
+    private static final byte[] EXIF_HEADER = "Exif\0\0".getBytes(StandardCharsets.ISO_8859_1);
+    private static final DateTimeFormatter EXIF_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss");
+    private static final DateTimeFormatter TIKA_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+    private static final Pattern ISO6709_PATTERN = Pattern
+            .compile("([+-][0-9]+(?:\\.[0-9]+)?)([+-][0-9]+(?:\\.[0-9]+)?).*");
+    private static final Set<String> MP4_BRANDS = Set.of("isom", "iso2", "iso4", "iso5", "iso6", "mp41", "mp42",
+            "avc1");
+    private static final Set<String> GPP_BRANDS = Set.of("3gp4", "3gp5", "3gp6");
+
+    private static final int TAG_IMAGE_WIDTH = 0x0100;
+    private static final int TAG_IMAGE_HEIGHT = 0x0101;
+    private static final int TAG_MAKE = 0x010f;
+    private static final int TAG_MODEL = 0x0110;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_SUB_IFDS = 0x014a;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_GPS_IFD = 0x8825;
+    private static final int TAG_EXPOSURE_TIME = 0x829a;
+    private static final int TAG_F_NUMBER = 0x829d;
+    private static final int TAG_ISO = 0x8827;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_TIME_ZONE = 0x9010;
+    private static final int TAG_FOCAL_LENGTH = 0x920a;
+    private static final int TAG_FOCAL_LENGTH_35 = 0xa405;
+    private static final int TAG_LENS_MODEL = 0xa434;
+    private static final int TAG_EXIF_IMAGE_WIDTH = 0xa002;
+    private static final int TAG_EXIF_IMAGE_HEIGHT = 0xa003;
+    private static final int TAG_GPS_LATITUDE_REF = 0x0001;
+    private static final int TAG_GPS_LATITUDE = 0x0002;
+    private static final int TAG_GPS_LONGITUDE_REF = 0x0003;
+    private static final int TAG_GPS_LONGITUDE = 0x0004;
+
+    public static Metadata extract(final Path file) throws IOException, SAXException, TikaException {
+        return extract(() -> Files.newInputStream(file), () -> TikaInputStream.get(file));
+    }
+
+    public static Metadata extract(final StreamSource<? extends InputStream> source)
+            throws IOException, SAXException, TikaException {
+        return extract(source, () -> TikaInputStream.get(source.open()));
+    }
+
+    private static Metadata extract(final StreamSource<? extends InputStream> source,
+            final StreamSource<TikaInputStream> tikaSource) throws IOException, SAXException, TikaException {
+        try (final InputStream in = source.open()) {
+            final Optional<Metadata> headerMetadata = readHeaders(in);
+            if (headerMetadata.isPresent())
+                return headerMetadata.get();
+        } catch (IOException | RuntimeException e) {
+            log.debug("Cannot read media headers, falling back to full parse", e);
+        }
+        AutoDetectParser parser = new AutoDetectParser();
+        BodyContentHandler handler = new BodyContentHandler();
+        Metadata metadata = new Metadata();
+        try (final TikaInputStream inputStream = tikaSource.open()) {
+            parser.parse(inputStream, handler, metadata);
+        }
+        return metadata;
+    }
+
+    /**
+     * Reads metadata from the headers of a supported format.
+     *
+     * @return empty if the format is not supported or the required headers are not found
+     */
+    public static Optional<Metadata> readHeaders(final InputStream stream) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        in.mark(16);
+        final byte[] magic = in.readNBytes(12);
+        in.reset();
+        if (magic.length < 12)
+            return Optional.empty();
+        if ((magic[0] & 0xff) == 0xff && (magic[1] & 0xff) == 0xd8)
+            return readJpeg(in);
+        if (magic[0] == 'I' && magic[1] == 'I' && magic[2] == 42 && magic[3] == 0
+                || magic[0] == 'M' && magic[1] == 'M' && magic[2] == 0 && magic[3] == 42)
+            return readTiffFile(in);
+        if (magic[4] == 'f' && magic[5] == 't' && magic[6] == 'y' && magic[7] == 'p')
+            return readIsoMedia(in);
+        return Optional.empty();
+    }
+
+    private static Optional<Metadata> readJpeg(final DataInputStream in) throws IOException {
+        in.skipNBytes(2);
+        final Metadata metadata = new Metadata();
+        metadata.set(Metadata.CONTENT_TYPE, "image/jpeg");
+        boolean exifFound = false;
+        for (int i = 0; i < MAX_JPEG_SEGMENTS; i++) {
+            if (in.readUnsignedByte() != 0xff)
+                return Optional.empty();
+            int marker = in.readUnsignedByte();
+            while (marker == 0xff)
+                marker = in.readUnsignedByte();
+            if (marker == 0x01 || marker >= 0xd0 && marker <= 0xd8)
+                continue;
+            if (marker == 0xd9 || marker == 0xda)
+                return Optional.empty();
+            final int length = in.readUnsignedShort() - 2;
+            if (length < 0)
+                return Optional.empty();
+            if (marker == 0xe1 && !exifFound) {
+                final byte[] segment = readFully(in, length);
+                if (startsWith(segment, EXIF_HEADER)) {
+                    exifFound = true;
+                    readTiff(ByteBuffer.wrap(segment, EXIF_HEADER.length, segment.length - EXIF_HEADER.length)
+                            .slice(), metadata);
+                }
+            } else if (isStartOfFrame(marker)) {
+                // exif data is always in front of the frame header
+                in.readUnsignedByte();
+                final int height = in.readUnsignedShort();
+                final int width = in.readUnsignedShort();
+                metadata.set(TIFF.IMAGE_WIDTH, Integer.toString(width));
+                metadata.set(TIFF.IMAGE_LENGTH, Integer.toString(height));
+                return Optional.of(metadata);
+            } else
+                in.skipNBytes(length);
+        }
+        return Optional.empty();
+    }
+
+    private static boolean isStartOfFrame(final int marker) {
+        return marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc;
+    }
+
+    private static Optional<Metadata> readTiffFile(final DataInputStream in) throws IOException {
+        // raw files keep their directories in front of the image data
+        final byte[] header = in.readNBytes(MAX_TIFF_HEADER);
+        final Metadata metadata = new Metadata();
+        metadata.set(Metadata.CONTENT_TYPE, "image/tiff");
+        if (!readTiff(ByteBuffer.wrap(header), metadata))
+            return Optional.empty();
+        return Optional.of(metadata);
+    }
+
+    private static boolean readTiff(final ByteBuffer tiff, final Metadata metadata) {
+        if (tiff.limit() < 8)
+            return false;
+        if (tiff.get(0) == 'I' && tiff.get(1) == 'I')
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        else if (tiff.get(0) == 'M' && tiff.get(1) == 'M')
+            tiff.order(ByteOrder.BIG_ENDIAN);
+        else
+            return false;
+        if (tiff.getShort(2) != 42)
+            return false;
+        final TiffDirectory ifd0 = TiffDirectory.read(tiff, tiff.getInt(4));
+        if (ifd0.isEmpty())
+            return false;
+        ifd0.getString(TAG_MAKE).ifPresent(v -> metadata.set(TIFF.EQUIPMENT_MAKE, v));
+        ifd0.getString(TAG_MODEL).ifPresent(v -> metadata.set(TIFF.EQUIPMENT_MODEL, v));
+        ifd0.getInt(TAG_ORIENTATION, 0).filter(v -> v >= 1 && v <= 8)
+                .ifPresent(v -> metadata.set(TIFF.ORIENTATION, Integer.toString(v)));
+
+        // like tika every directory overrides the dimension of the ones before: the first one holds a small preview in
+        // raw files, the sub directories follow in their order and the exif directory comes last
+        final int[] dimension = new int[2];
+        applyDimension(ifd0, dimension);
+        for (int i = 0; i < ifd0.getCount(TAG_SUB_IFDS); i++)
+            ifd0.getInt(TAG_SUB_IFDS, i).map(offset -> TiffDirectory.read(tiff, offset))
+                    .ifPresent(subIfd -> applyDimension(subIfd, dimension));
+        final Optional<TiffDirectory> exifIfd = ifd0.getInt(TAG_EXIF_IFD, 0)
+                .map(offset -> TiffDirectory.read(tiff, offset));
+        exifIfd.ifPresent(exif -> applyDimension(exif, dimension));
+        if (dimension[0] > 0)
+            metadata.set(TIFF.IMAGE_WIDTH, Integer.toString(dimension[0]));
+        if (dimension[1] > 0)
+            metadata.set(TIFF.IMAGE_LENGTH, Integer.toString(dimension[1]));
+
+        exifIfd.ifPresent(exif -> {
+            exif.getRational(TAG_EXPOSURE_TIME, 0)
+                    .ifPresent(v -> metadata.set(TIFF.EXPOSURE_TIME, Double.toString(v)));
+            exif.getRational(TAG_F_NUMBER, 0).ifPresent(v -> metadata.set(TIFF.F_NUMBER, Double.toString(v)));
+            exif.getInt(TAG_ISO, 0).ifPresent(v -> metadata.set(TIFF.ISO_SPEED_RATINGS, Integer.toString(v)));
+            exif.getString(TAG_DATE_TIME_ORIGINAL).flatMap(FastMetadataExtractor::parseExifDate)
+                    .ifPresent(v -> metadata.set(TikaCoreProperties.CREATED, TIKA_DATE_FORMAT.format(v)));
+            exif.getString(TAG_TIME_ZONE).filter(FastMetadataExtractor::isValidOffset)
+                    .ifPresent(v -> metadata.set("Exif SubIFD:Time Zone", v));
+            exif.getRational(TAG_FOCAL_LENGTH, 0)
+                    .ifPresent(v -> metadata.set(TIFF.FOCAL_LENGTH, Double.toString(v)));
+            exif.getInt(TAG_FOCAL_LENGTH_35, 0).filter(v -> v > 0)
+                    .ifPresent(v -> metadata.set("Exif SubIFD:Focal Length 35", v + " mm"));
+            exif.getString(TAG_LENS_MODEL).ifPresent(v -> metadata.set("Exif SubIFD:Lens Model", v));
+        });
+        ifd0.getInt(TAG_GPS_IFD, 0).map(offset -> TiffDirectory.read(tiff, offset)).ifPresent(gps -> {
+            final Optional<Double> latitude = readCoordinate(gps, TAG_GPS_LATITUDE, TAG_GPS_LATITUDE_REF, "S");
+            final Optional<Double> longitude = readCoordinate(gps, TAG_GPS_LONGITUDE, TAG_GPS_LONGITUDE_REF, "W");
+            if (latitude.isPresent() && longitude.isPresent()) {
+                metadata.set(TikaCoreProperties.LATITUDE, Double.toString(latitude.get()));
+                metadata.set(TikaCoreProperties.LONGITUDE, Double.toString(longitude.get()));
+            }
+        });
+        return true;
+    }
+
+    private static void applyDimension(final TiffDirectory directory, final int[] dimension) {
+        directory.getInt(TAG_IMAGE_WIDTH, 0).ifPresent(v -> dimension[0] = v);
+        directory.getInt(TAG_IMAGE_HEIGHT, 0).ifPresent(v -> dimension[1] = v);
+        directory.getInt(TAG_EXIF_IMAGE_WIDTH, 0).ifPresent(v -> dimension[0] = v);
+        directory.getInt(TAG_EXIF_IMAGE_HEIGHT, 0).ifPresent(v -> dimension[1] = v);
+    }
+
+    private static Optional<Double> readCoordinate(final TiffDirectory gps, final int valueTag, final int refTag,
+            final String negativeRef) {
+        final Optional<Double> degrees = gps.getRational(valueTag, 0);
+        final Optional<Double> minutes = gps.getRational(valueTag, 1);
+        final Optional<Double> seconds = gps.getRational(valueTag, 2);
+        final Optional<String> ref = gps.getString(refTag);
+        if (degrees.isEmpty() || minutes.isEmpty() || seconds.isEmpty() || ref.isEmpty())
+            return Optional.empty();
+        final double value = degrees.get() + minutes.get() / 60 + seconds.get() / 3600;
+        return Optional.of(ref.get().equals(negativeRef) ? -value : value);
+    }
+
+    private static Optional<LocalDateTime> parseExifDate(final String value) {
+        try {
+            return Optional.of(LocalDateTime.parse(value, EXIF_DATE_FORMAT));
+        } catch (DateTimeException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static boolean isValidOffset(final String value) {
+        try {
+            ZoneOffset.of(value);
+            return true;
+        } catch (DateTimeException e) {
+            return false;
+        }
+    }
+
+    private static Optional<Metadata> readIsoMedia(final DataInputStream in) throws IOException {
+        final BoxHeader fileType = BoxHeader.read(in);
+        if (fileType == null || fileType.getPayloadSize() < 4)
+            return Optional.empty();
+        final String brand = new String(readFully(in, 4), StandardCharsets.ISO_8859_1);
+        final String contentType;
+        if (MP4_BRANDS.contains(brand))
+            contentType = "video/mp4";
+        else if (brand.equals("qt  "))
+            contentType = "video/quicktime";
+        else if (GPP_BRANDS.contains(brand))
+            contentType = "video/3gpp";
+        else
+            return Optional.empty();
+        in.skipNBytes(fileType.getPayloadSize() - 4);
+
+        // the movie header is either in front of or behind the media data, the media data itself is skipped
+        for (int i = 0; i < MAX_BOXES; i++) {
+            final BoxHeader box = BoxHeader.read(in);
+            if (box == null || box.getPayloadSize() < 0)
+                return Optional.empty();
+            if (box.getType().equals("moov")) {
+                final Metadata metadata = new Metadata();
+                metadata.set(Metadata.CONTENT_TYPE, contentType);
+                final int[] dimension = new int[2];
+                readBoxes(in, box.getPayloadSize(), metadata, dimension, 0);
+                if (dimension[0] > 0 && dimension[1] > 0) {
+                    metadata.set(TIFF.IMAGE_WIDTH, Integer.toString(dimension[0]));
+                    metadata.set(TIFF.IMAGE_LENGTH, Integer.toString(dimension[1]));
+                }
+                return Optional.of(metadata);
+            }
+            in.skipNBytes(box.getPayloadSize());
+        }
+        return Optional.empty();
+    }
+
+    private static void readBoxes(final DataInputStream in, final long length, final Metadata metadata,
+            final int[] dimension, final int depth) throws IOException {
+        long remaining = length;
+        // the handler comes before the media information in the same media box
+        boolean videoTrack = false;
+        while (remaining > 0) {
+            final BoxHeader box = BoxHeader.read(in);
+            if (box == null || box.getPayloadSize() < 0 || box.getTotalSize() > remaining)
+                throw new IOException("Invalid box structure");
+            remaining -= box.getTotalSize();
+            final long size = box.getPayloadSize();
+            switch (box.getType()) {
+            case "minf":
+                if (videoTrack && depth < MAX_BOX_DEPTH)
+                    readBoxes(in, size, metadata, dimension, depth + 1);
+                else
+                    in.skipNBytes(size);
+                break;
+            case "trak":
+            case "mdia":
+            case "stbl":
+            case "udta":
+                if (depth < MAX_BOX_DEPTH)
+                    readBoxes(in, size, metadata, dimension, depth + 1);
+                else
+                    in.skipNBytes(size);
+                break;
+            case "mvhd":
+                readMovieHeader(readBox(in, size), metadata);
+                break;
+            case "hdlr":
+                videoTrack = isVideoHandler(readBox(in, size));
+                break;
+            case "stsd":
+                readSampleDescription(in, size, dimension);
+                break;
+            case "\u00a9xyz":
+                readLocation(readBox(in, size), metadata);
+                break;
+            default:
+                in.skipNBytes(size);
+            }
+        }
+    }
+
+    private static ByteBuffer readBox(final DataInputStream in, final long size) throws IOException {
+        if (size > MAX_BOX_READ) {
+            in.skipNBytes(size);
+            return ByteBuffer.allocate(0);
+        }
+        return ByteBuffer.wrap(readFully(in, (int) size));
+    }
+
+    private static void readMovieHeader(final ByteBuffer box, final Metadata metadata) {
+        final long creationTime;
+        final long timescale;
+        final long duration;
+        if (box.limit() >= 32 && box.get(0) == 1) {
+            creationTime = box.getLong(4);
+            timescale = Integer.toUnsignedLong(box.getInt(20));
+            duration = box.getLong(24);
+        } else if (box.limit() >= 20 && box.get(0) == 0) {
+            creationTime = Integer.toUnsignedLong(box.getInt(4));
+            timescale = Integer.toUnsignedLong(box.getInt(12));
+            duration = Integer.toUnsignedLong(box.getInt(16));
+        } else
+            return;
+        if (creationTime > 0)
+            metadata.set(TikaCoreProperties.CREATED,
+                    Date.from(Instant.ofEpochSecond(creationTime - ISO_MEDIA_EPOCH_OFFSET)));
+        if (timescale > 0 && duration > 0 && duration != 0xffffffffL)
+            metadata.set(XMPDM.DURATION, Double.toString((double) duration / timescale));
+    }
+
+    private static boolean isVideoHandler(final ByteBuffer box) {
+        return box.limit() >= 12 && box.getInt(8) == ('v' << 24 | 'i' << 16 | 'd' << 8 | 'e');
+    }
+
+    private static void readSampleDescription(final DataInputStream in, final long size, final int[] dimension)
+            throws IOException {
+        // like tika the coded size of the first visual sample entry of the last video track, not the track header
+        final int headerSize = (int) Math.min(size, SAMPLE_DESCRIPTION_HEADER);
+        final ByteBuffer box = ByteBuffer.wrap(readFully(in, headerSize));
+        in.skipNBytes(size - headerSize);
+        if (headerSize < SAMPLE_DESCRIPTION_HEADER || box.getInt(4) < 1)
+            return;
+        dimension[0] = Short.toUnsignedInt(box.getShort(40));
+        dimension[1] = Short.toUnsignedInt(box.getShort(42));
+    }
+
+    private static void readLocation(final ByteBuffer box, final Metadata metadata) {
+        if (box.limit() < 4)
+            return;
+        final int length = Math.min(Short.toUnsignedInt(box.getShort(0)), box.limit() - 4);
+        final String location = new String(box.array(), 4, length, StandardCharsets.UTF_8);
+        final Matcher matcher = ISO6709_PATTERN.matcher(location);
+        if (matcher.matches()) {
+            metadata.set(TikaCoreProperties.LATITUDE, Double.toString(Double.parseDouble(matcher.group(1))));
+            metadata.set(TikaCoreProperties.LONGITUDE, Double.toString(Double.parseDouble(matcher.group(2))));
+        }
+    }
+
+    private static byte[] readFully(final InputStream in, final int length) throws IOException {
+        final byte[] data = in.readNBytes(length);
+        if (data.length < length)
+            throw new EOFException();
+        return data;
+    }
+
+    private static boolean startsWith(final byte[] data, final byte[] prefix) {
+        if (data.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    @FunctionalInterface
+    public interface StreamSource<S extends InputStream> {
+        S open() throws IOException;
+    }
+
+    @Value
+    private static class BoxHeader {
+        String type;
+        long headerSize;
+        long payloadSize;
+
+        static BoxHeader read(final DataInputStream in) throws IOException {
+            final byte[] start = in.readNBytes(8);
+            if (start.length == 0)
+                return null;
+            if (start.length < 8)
+                throw new EOFException();
+            final ByteBuffer buffer = ByteBuffer.wrap(start);
+            final long size = Integer.toUnsignedLong(buffer.getInt(0));
+            final String type = new String(start, 4, 4, StandardCharsets.ISO_8859_1);
+            if (size == 0)
+                // box extends to the end of the file
+                return new BoxHeader(type, 8, -1);
+            if (size == 1) {
+                final long largeSize = in.readLong();
+                if (largeSize < 16)
+                    throw new IOException("Invalid box size " + largeSize);
+                return new BoxHeader(type, 16, largeSize - 16);
+            }
+            if (size < 8)
+                throw new IOException("Invalid box size " + size);
+            return new BoxHeader(type, 8, size - 8);
+        }
+
+        long getTotalSize() {
+            return headerSize + payloadSize;
+        }
+    }
+
+    @Value
+    private static class TiffEntry {
+        int type;
+        int count;
+        int valueOffset;
+    }
+
+    private static class TiffDirectory {
+        private final ByteBuffer tiff;
+        private final Map<Integer, TiffEntry> entries;
+
+        private TiffDirectory(final ByteBuffer tiff, final Map<Integer, TiffEntry> entries) {
+            this.tiff = tiff;
+            this.entries = entries;
+        }
+
+        static TiffDirectory read(final ByteBuffer tiff, final int offset) {
+            final Map<Integer, TiffEntry> entries = new HashMap<>();
+            if (offset < 8 || offset > tiff.limit() - 2)
+                return new TiffDirectory(tiff, entries);
+            final int count = Short.toUnsignedInt(tiff.getShort(offset));
+            for (int i = 0; i < count; i++) {
+                final int pos = offset + 2 + i * 12;
+                if (pos > tiff.limit() - 12)
+                    break;
+                final int tag = Short.toUnsignedInt(tiff.getShort(pos));
+                final int type = Short.toUnsignedInt(tiff.getShort(pos + 2));
+                final long valueCount = Integer.toUnsignedLong(tiff.getInt(pos + 4));
+                final int typeSize = typeSize(type);
+                final long size = valueCount * typeSize;
+                final long valueOffset = size <= 4 ? pos + 8 : Integer.toUnsignedLong(tiff.getInt(pos + 8));
+                // values behind the read part of the file are ignored
+                if (typeSize == 0 || valueOffset + size > tiff.limit())
+                    continue;
+                entries.put(tag, new TiffEntry(type, (int) valueCount, (int) valueOffset));
+            }
+            return new TiffDirectory(tiff, entries);
+        }
+
+        private static int typeSize(final int type) {
+            switch (type) {
+            case 1: // byte
+            case 2: // ascii
+            case 6: // signed byte
+            case 7: // undefined
+                return 1;
+            case 3: // short
+            case 8: // signed short
+                return 2;
+            case 4: // long
+            case 9: // signed long
+            case 13: // ifd
+                return 4;
+            case 5: // rational
+            case 10: // signed rational
+                return 8;
+            default:
+                return 0;
+            }
+        }
+
+        boolean isEmpty() {
+            return entries.isEmpty();
+        }
+
+        int getCount(final int tag) {
+            final TiffEntry entry = entries.get(tag);
+            return entry == null ? 0 : entry.getCount();
+        }
+
+        Optional<Integer> getInt(final int tag, final int index) {
+            final TiffEntry entry = entries.get(tag);
+            if (entry == null || index >= entry.getCount())
+                return Optional.empty();
+            final int pos = entry.getValueOffset() + index * typeSize(entry.getType());
+            switch (entry.getType()) {
+            case 1:
+            case 7:
+                return Optional.of(Byte.toUnsignedInt(tiff.get(pos)));
+            case 3:
+                return Optional.of(Short.toUnsignedInt(tiff.getShort(pos)));
+            case 4:
+            case 9:
+            case 13:
+                return Optional.of(tiff.getInt(pos));
+            default:
+                return Optional.empty();
+            }
+        }
+
+        Optional<Double> getRational(final int tag, final int index) {
+            final TiffEntry entry = entries.get(tag);
+            if (entry == null || index >= entry.getCount())
+                return Optional.empty();
+            final int pos = entry.getValueOffset() + index * 8;
+            final double numerator;
+            final double denominator;
+            if (entry.getType() == 5) {
+                numerator = Integer.toUnsignedLong(tiff.getInt(pos));
+                denominator = Integer.toUnsignedLong(tiff.getInt(pos + 4));
+            } else if (entry.getType() == 10) {
+                numerator = tiff.getInt(pos);
+                denominator = tiff.getInt(pos + 4);
+            } else
+                return Optional.empty();
+            if (denominator == 0)
+                return Optional.empty();
+            return Optional.of(numerator / denominator);
+        }
+
+        Optional<String> getString(final int tag) {
+            final TiffEntry entry = entries.get(tag);
+            if (entry == null || entry.getType() != 2 && entry.getType() != 7)
+                return Optional.empty();
+            final byte[] data = new byte[entry.getCount()];
+            tiff.get(entry.getValueOffset(), data);
+            int length = 0;
+            while (length < data.length && data[length] != 0)
+                length++;
+            final String value = new String(data, 0, length, StandardCharsets.UTF_8).trim();
+            return value.isEmpty() ? Optional.empty() : Optional.of(value);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package ch.bergturbenthal.raoa.libs.service.impl.test;
+
+import ch.bergturbenthal.raoa.libs.properties.Properties;
+import ch.bergturbenthal.raoa.libs.service.GitAccess;
+import ch.bergturbenthal.raoa.libs.service.Updater;
+import ch.bergturbenthal.raoa.libs.service.impl.BareGitAccess;
+import ch.bergturbenthal.raoa.libs.service.impl.DefaultMetadataCache;
+import ch.bergturbenthal.raoa.libs.service.impl.ExecutorAsyncService;
+import ch.bergturbenthal.raoa.libs.service.impl.RepositoryPool;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The commit queue of a bare repository, driven by the updaters of its git access
+ */
+public class TestCommitQueue {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static final Updater.CommitContext CONTEXT = Updater.CommitContext.builder().message("test")
+            .username("tester").email("tester@example.com").build();
+    @TempDir
+    File tempDir;
+    private ExecutorService executorService;
+    private Scheduler processScheduler;
+    private Repository repository;
+    private GitAccess gitAccess;
+    private final AtomicInteger commitCount = new AtomicInteger();
+
+    @BeforeEach
+    public void setup() throws Exception {
+        final Path baseDir = tempDir.toPath();
+        final Properties properties = new Properties(Files.createDirectories(baseDir.resolve("repository")).toFile(),
+                Files.createDirectories(baseDir.resolve("thumbnails")).toFile(),
+                Files.createDirectories(baseDir.resolve("import")).toFile());
+        final Path gitDir = properties.getRepository().toPath().resolve("album.git");
+        repository = Git.init().setBare(true).setDirectory(gitDir.toFile()).call().getRepository();
+        // a single thread, so a blocked task holds back the commits behind it
+        executorService = Executors.newSingleThreadExecutor();
+        processScheduler = Schedulers.newSingle("process");
+        final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        final ExecutorAsyncService asyncService = new ExecutorAsyncService(executorService, Optional.empty());
+        gitAccess = BareGitAccess.accessOf(gitDir, Path.of("album.git"), asyncService, processScheduler, meterRegistry,
+                new DefaultMetadataCache(properties, asyncService, meterRegistry),
+                new RepositoryPool(asyncService, meterRegistry, properties), commitCount::incrementAndGet);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        repository.close();
+        executorService.shutdownNow();
+        processScheduler.dispose();
+    }
+
+    private Path file(final String content) throws IOException {
+        return Files.writeString(Files.createTempFile(tempDir.toPath(), "import", ".jpg"), content);
+    }
+
+    private Updater updater() {
+        return gitAccess.createUpdater().block(TIMEOUT);
+    }
+
+    private ObjectId importFile(final Updater updater, final String name, final String content,
+            final boolean replace) throws IOException {
+        return updater.importFile(file(content), name, replace).block(TIMEOUT);
+    }
+
+    private boolean commit(final Updater updater) {
+        final Boolean committed = updater.commit(CONTEXT).block(TIMEOUT);
+        updater.close().block(TIMEOUT);
+        return committed;
+    }
+
+    // keeps the single thread busy until the returned latch is released
+    private CountDownLatch blockExecutor() {
+        final CountDownLatch blocker = new CountDownLatch(1);
+        executorService.submit(() -> {
+            blocker.await();
+            return null;
+        });
+        return blocker;
+    }
+
+    private RevCommit head() throws IOException {
+        try (RevWalk revWalk = new RevWalk(repository)) {
+            return revWalk.parseCommit(repository.resolve(Constants.HEAD));
+        }
+    }
+
+    private Optional<ObjectId> idAt(final String path) throws IOException {
+        try (TreeWalk tw = TreeWalk.forPath(repository, path, head().getTree())) {
+            return Optional.ofNullable(tw).map(t -> t.getObjectId(0));
+        }
+    }
+
+    @Test
+    public void testConcurrentSubmitsShareOneCommit() throws Exception {
+        final Updater firstUpdater = updater();
+        final Updater secondUpdater = updater();
+        final ObjectId first = importFile(firstUpdater, "a/first.jpg", "first", false);
+        final ObjectId second = importFile(secondUpdater, "b/second.jpg", "second", false);
+        final CountDownLatch blocker = blockExecutor();
+        final Mono<Boolean> firstResult = firstUpdater.commit(CONTEXT).cache();
+        final Mono<Boolean> secondResult = secondUpdater.commit(CONTEXT).cache();
+        firstResult.subscribe();
+        secondResult.subscribe();
+        blocker.countDown();
+
+        Assertions.assertTrue(firstResult.block(TIMEOUT));
+        Assertions.assertTrue(secondResult.block(TIMEOUT));
+        Assertions.assertEquals(1, commitCount.get());
+        Assertions.assertEquals(0, head().getParentCount());
+        Assertions.assertEquals(Optional.of(first), idAt("a/first.jpg"));
+        Assertions.assertEquals(Optional.of(second), idAt("b/second.jpg"));
+    }
+
+    @Test
+    public void testConflictingPutIsRejected() throws Exception {
+        final Updater firstUpdater = updater();
+        final Updater secondUpdater = updater();
+        final ObjectId original = importFile(firstUpdater, "image.jpg", "original", false);
+        importFile(secondUpdater, "image.jpg", "other", false);
+        Assertions.assertTrue(commit(firstUpdater));
+        final RevCommit before = head();
+
+        Assertions.assertFalse(commit(secondUpdater));
+        Assertions.assertEquals(before, head());
+        Assertions.assertEquals(Optional.of(original), idAt("image.jpg"));
+
+        final Updater replacingUpdater = updater();
+        final ObjectId replaced = importFile(replacingUpdater, "image.jpg", "replaced", true);
+        Assertions.assertTrue(commit(replacingUpdater));
+        Assertions.assertEquals(Optional.of(replaced), idAt("image.jpg"));
+    }
+
+    @Test
+    public void testDeleteLastFileRemovesDirectory() throws Exception {
+        final Updater importingUpdater = updater();
+        importFile(importingUpdater, "dir/only.jpg", "only", false);
+        importFile(importingUpdater, "other.jpg", "other", false);
+        Assertions.assertTrue(commit(importingUpdater));
+
+        final Updater removingUpdater = updater();
+        Assertions.assertTrue(removingUpdater.removeFile("dir/only.jpg").block(TIMEOUT));
+        Assertions.assertTrue(commit(removingUpdater));
+        Assertions.assertEquals(Optional.empty(), idAt("dir/only.jpg"));
+        Assertions.assertEquals(Optional.empty(), idAt("dir"));
+        Assertions.assertTrue(idAt("other.jpg").isPresent());
+    }
+
+    @Test
+    public void testFileReplacedByDirectory() throws Exception {
+        final Updater fileUpdater = updater();
+        importFile(fileUpdater, "entry", "file", false);
+        Assertions.assertTrue(commit(fileUpdater));
+
+        final Updater directoryUpdater = updater();
+        Assertions.assertTrue(directoryUpdater.removeFile("entry").block(TIMEOUT));
+        final ObjectId nested = importFile(directoryUpdater, "entry/nested.jpg", "nested", false);
+        Assertions.assertTrue(commit(directoryUpdater));
+        Assertions.assertEquals(Optional.of(nested), idAt("entry/nested.jpg"));
+        try (TreeWalk tw = TreeWalk.forPath(repository, "entry", head().getTree())) {
+            Assertions.assertTrue(tw.isSubtree());
+        }
+    }
+
+    @Test
+    public void testFileAndPathsBelowItAreRejected() throws Exception {
+        final Updater otherUpdater = updater();
+        importFile(otherUpdater, "other.jpg", "other", false);
+        Assertions.assertTrue(commit(otherUpdater));
+        final RevCommit before = head();
+
+        final Updater clashingUpdater = updater();
+        importFile(clashingUpdater, "entry", "file", true);
+        importFile(clashingUpdater, "entry/nested.jpg", "nested", false);
+        Assertions.assertFalse(commit(clashingUpdater));
+        Assertions.assertEquals(before, head());
+
+        final Updater directoryUpdater = updater();
+        final Updater fileUpdater = updater();
+        final ObjectId nested = importFile(directoryUpdater, "entry/nested.jpg", "nested", false);
+        importFile(fileUpdater, "entry", "file", true);
+        final CountDownLatch blocker = blockExecutor();
+        final Mono<Boolean> directoryResult = directoryUpdater.commit(CONTEXT).cache();
+        final Mono<Boolean> fileResult = fileUpdater.commit(CONTEXT).cache();
+        directoryResult.subscribe();
+        fileResult.subscribe();
+        blocker.countDown();
+
+        Assertions.assertTrue(directoryResult.block(TIMEOUT));
+        Assertions.assertFalse(fileResult.block(TIMEOUT));
+        Assertions.assertEquals(Optional.of(nested), idAt("entry/nested.jpg"));
+    }
+}
@@ -0,0 +1,182 @@
+package ch.bergturbenthal.raoa.libs.util.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Media files for the metadata tests and benchmarks. The samples are checked in: the jpeg of a Nikon D500, and a nef and
+ * an mp4 assembled around the exif block and the pixels of that jpeg. The builders write headers only, for the cases
+ * no sample covers.
+ */
+public class MediaFixtures {
+    private static final String SAMPLE_NAME = "/2019-06-29-08-44-24-_DSC0742.";
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_RATIONAL = 5;
+    // seconds from 1904-01-01 (iso media epoch) to 2019-06-29 08:44:24
+    private static final long MEDIA_CREATION_TIME = 2082844800L + 1561797864L;
+
+    private MediaFixtures() {
+    }
+
+    /**
+     * @param type
+     *            jpeg, nef or mp4
+     */
+    public static byte[] sample(final String type) {
+        final String extension = switch (type) {
+        case "jpeg" -> "JPG";
+        case "nef" -> "NEF";
+        case "mp4" -> "MP4";
+        default -> throw new IllegalArgumentException("Unknown sample " + type);
+        };
+        try (InputStream in = MediaFixtures.class.getResourceAsStream(SAMPLE_NAME + extension)) {
+            if (in == null)
+                throw new IllegalArgumentException("Missing sample " + SAMPLE_NAME + extension);
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Big endian tiff with ifd0, one sub ifd per dimension and an exif ifd
+     */
+    public static byte[] rawFile(final int[][] subDimensions) {
+        final List<List<TiffEntry>> directories = new ArrayList<>();
+        final List<TiffEntry> ifd0 = new ArrayList<>(List.of(longValue(0x00fe, 1), longValue(0x0100, 160),
+                longValue(0x0101, 120), ascii(0x010f, "NIKON CORPORATION"), ascii(0x0110, "NIKON D750"),
+                shortValue(0x0112, 1), new TiffEntry(0x014a, TYPE_LONG, subDimensions.length,
+                        new byte[4 * subDimensions.length]),
+                longValue(0x8769, 0)));
+        directories.add(ifd0);
+        for (int[] dimension : subDimensions)
+            directories.add(List.of(longValue(0x00fe, 0), longValue(0x0100, dimension[0]),
+                    longValue(0x0101, dimension[1])));
+        directories.add(List.of(rational(0x829a, 1, 250), rational(0x829d, 8, 1), shortValue(0x8827, 200),
+                ascii(0x9003, "2019:06:29 08:44:24"), rational(0x920a, 50, 1), shortValue(0xa405, 50)));
+
+        final int[] offsets = new int[directories.size()];
+        int offset = 8;
+        for (int i = 0; i < directories.size(); i++) {
+            offsets[i] = offset;
+            offset += 2 + directories.get(i).size() * 12 + 4;
+        }
+        final ByteBuffer subOffsets = ByteBuffer.allocate(4 * subDimensions.length);
+        for (int i = 0; i < subDimensions.length; i++)
+            subOffsets.putInt(offsets[i + 1]);
+        ifd0.set(6, new TiffEntry(0x014a, TYPE_LONG, subDimensions.length, subOffsets.array()));
+        ifd0.set(7, longValue(0x8769, offsets[offsets.length - 1]));
+
+        final ByteBuffer directoryData = ByteBuffer.allocate(offset - 8);
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (List<TiffEntry> directory : directories) {
+            directoryData.putShort((short) directory.size());
+            for (TiffEntry entry : directory) {
+                directoryData.putShort((short) entry.tag).putShort((short) entry.type).putInt(entry.count);
+                if (entry.value.length > 4) {
+                    directoryData.putInt(offset + data.size());
+                    data.writeBytes(entry.value);
+                } else
+                    directoryData.put(entry.value).put(new byte[4 - entry.value.length]);
+            }
+            // no next ifd
+            directoryData.putInt(0);
+        }
+        return concat(new byte[] { 'M', 'M', 0, 42, 0, 0, 0, 8 }, directoryData.array(), data.toByteArray(),
+                new byte[4096]);
+    }
+
+    private static TiffEntry ascii(final int tag, final String value) {
+        final byte[] text = (value + "\0").getBytes(StandardCharsets.ISO_8859_1);
+        return new TiffEntry(tag, TYPE_ASCII, text.length, text);
+    }
+
+    private static TiffEntry shortValue(final int tag, final int value) {
+        return new TiffEntry(tag, TYPE_SHORT, 1, new byte[] { (byte) (value >> 8), (byte) value });
+    }
+
+    private static TiffEntry longValue(final int tag, final int value) {
+        return new TiffEntry(tag, TYPE_LONG, 1, ByteBuffer.allocate(4).putInt(value).array());
+    }
+
+    private static TiffEntry rational(final int tag, final int numerator, final int denominator) {
+        return new TiffEntry(tag, TYPE_RATIONAL, 1, ByteBuffer.allocate(8).putInt(numerator).putInt(denominator)
+                .array());
+    }
+
+    /**
+     * Movie and video track in front of the media data, 12.5 seconds. The samples are coded in 1440x1080 and shown in
+     * 1920x1080, like hdv.
+     */
+    public static byte[] anamorphicMp4() {
+        final ByteBuffer mvhd = ByteBuffer.allocate(100);
+        mvhd.putInt(0).putInt((int) MEDIA_CREATION_TIME).putInt((int) MEDIA_CREATION_TIME);
+        // timescale 1000, 12.5 seconds
+        mvhd.putInt(1000).putInt(12500).putInt(0x00010000).putShort((short) 0x0100).put(new byte[10]);
+        putMatrix(mvhd);
+        mvhd.put(new byte[24]).putInt(2);
+
+        final ByteBuffer tkhd = ByteBuffer.allocate(84);
+        // version 0, track enabled and in movie
+        tkhd.putInt(0x000003).putInt((int) MEDIA_CREATION_TIME).putInt((int) MEDIA_CREATION_TIME);
+        tkhd.putInt(1).putInt(0).putInt(12500).put(new byte[8]).put(new byte[8]);
+        putMatrix(tkhd);
+        tkhd.putInt(1920 << 16).putInt(1080 << 16);
+
+        final byte[] hdlr = concat(new byte[8], "vide".getBytes(StandardCharsets.ISO_8859_1), new byte[12],
+                "VideoHandler\0".getBytes(StandardCharsets.ISO_8859_1));
+        final byte[] ftyp = concat("isom".getBytes(StandardCharsets.ISO_8859_1),
+                ByteBuffer.allocate(4).putInt(512).array(),
+                "isomiso2avc1mp41".getBytes(StandardCharsets.ISO_8859_1));
+        final ByteBuffer stsd = ByteBuffer.allocate(8 + 86);
+        stsd.putInt(0).putInt(1);
+        // visual sample entry up to the compressor name, the rest stays zero
+        stsd.putInt(86).put("avc1".getBytes(StandardCharsets.ISO_8859_1)).put(new byte[6]).putShort((short) 1);
+        stsd.put(new byte[16]).putShort((short) 1440).putShort((short) 1080).putInt(0x00480000).putInt(0x00480000);
+        stsd.putInt(0).putShort((short) 1);
+        final byte[] media = concat(box("hdlr", hdlr),
+                box("minf", concat(box("vmhd", new byte[12]), box("stbl", box("stsd", stsd.array())))));
+        final byte[] track = concat(box("tkhd", tkhd.array()), box("mdia", media));
+        final byte[] movie = concat(box("mvhd", mvhd.array()), box("trak", track));
+        return concat(box("ftyp", ftyp), box("moov", movie), box("mdat", new byte[4096]));
+    }
+
+    private static void putMatrix(final ByteBuffer buffer) {
+        for (int value : new int[] { 0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000 })
+            buffer.putInt(value);
+    }
+
+    private static byte[] box(final String type, final byte[] payload) {
+        return concat(ByteBuffer.allocate(4).putInt(8 + payload.length).array(),
+                type.getBytes(StandardCharsets.ISO_8859_1), payload);
+    }
+
+    private static byte[] concat(final byte[]... parts) {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (byte[] part : parts)
+            bos.writeBytes(part);
+        return bos.toByteArray();
+    }
+
+    private static class TiffEntry {
+        private final int tag;
+        private final int type;
+        private final int count;
+        private final byte[] value;
+
+        private TiffEntry(final int tag, final int type, final int count, final byte[] value) {
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.value = value;
+        }
+    }
+}
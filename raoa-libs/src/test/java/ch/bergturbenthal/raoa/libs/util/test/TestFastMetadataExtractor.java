@@ -0,0 +1,81 @@
+package ch.bergturbenthal.raoa.libs.util.test;
+
+import ch.bergturbenthal.raoa.libs.util.FastMetadataExtractor;
+import ch.bergturbenthal.raoa.libs.util.TikaUtil;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Optional;
+import java.util.TimeZone;
+
+public class TestFastMetadataExtractor {
+    private static Metadata assertMatchesTika(final byte[] data) throws Exception {
+        final Optional<Metadata> headerMetadata = FastMetadataExtractor.readHeaders(new ByteArrayInputStream(data));
+        Assertions.assertTrue(headerMetadata.isPresent());
+        final Metadata fast = headerMetadata.get();
+
+        final Metadata tika = new Metadata();
+        try (final TikaInputStream in = TikaInputStream.get(new ByteArrayInputStream(data))) {
+            new AutoDetectParser().parse(in, new BodyContentHandler(), tika);
+        }
+
+        final TimeZone timeZone = TimeZone.getTimeZone("Europe/Zurich");
+        Assertions.assertEquals(TikaUtil.extractCreateTime(tika, timeZone),
+                TikaUtil.extractCreateTime(fast, timeZone));
+        Assertions.assertEquals(TikaUtil.extractContentType(tika), TikaUtil.extractContentType(fast));
+        Assertions.assertEquals(TikaUtil.extractTargetWidth(tika), TikaUtil.extractTargetWidth(fast));
+        Assertions.assertEquals(TikaUtil.extractTargetHeight(tika), TikaUtil.extractTargetHeight(fast));
+        Assertions.assertEquals(TikaUtil.extractOrientation(tika), TikaUtil.extractOrientation(fast));
+        Assertions.assertEquals(TikaUtil.extractMake(tika), TikaUtil.extractMake(fast));
+        Assertions.assertEquals(TikaUtil.extractCameraModel(tika), TikaUtil.extractCameraModel(fast));
+        Assertions.assertEquals(TikaUtil.extractExposureTime(tika), TikaUtil.extractExposureTime(fast));
+        Assertions.assertEquals(TikaUtil.extractFNumber(tika), TikaUtil.extractFNumber(fast));
+        Assertions.assertEquals(TikaUtil.extractIsoSpeed(tika), TikaUtil.extractIsoSpeed(fast));
+        Assertions.assertEquals(TikaUtil.extractFocalLength(tika), TikaUtil.extractFocalLength(fast));
+        Assertions.assertEquals(TikaUtil.extractFocalLength35(tika), TikaUtil.extractFocalLength35(fast));
+        Assertions.assertEquals(TikaUtil.extractVideoDuration(tika), TikaUtil.extractVideoDuration(fast));
+        return fast;
+    }
+
+    @Test
+    public void testJpegMatchesTika() throws Exception {
+        assertMatchesTika(MediaFixtures.sample("jpeg"));
+    }
+
+    @Test
+    public void testNefMatchesTika() throws Exception {
+        final Metadata fast = assertMatchesTika(MediaFixtures.sample("nef"));
+        Assertions.assertEquals(Optional.of("NIKON D500"), TikaUtil.extractCameraModel(fast));
+    }
+
+    @Test
+    public void testMp4SampleMatchesTika() throws Exception {
+        final Metadata fast = assertMatchesTika(MediaFixtures.sample("mp4"));
+        Assertions.assertEquals(Optional.of(320), TikaUtil.extractWidth(fast));
+    }
+
+    @Test
+    public void testRawFileMatchesTika() throws Exception {
+        // like a nef: a small preview in the first directory, the full size preview and the sensor data below it
+        final Metadata fast = assertMatchesTika(MediaFixtures.rawFile(new int[][] { { 6016, 4016 }, { 6032, 4032 } }));
+        Assertions.assertEquals(Optional.of(6032), TikaUtil.extractWidth(fast));
+    }
+
+    @Test
+    public void testRawFileTakesLastSubDirectoryLikeTika() throws Exception {
+        final Metadata fast = assertMatchesTika(MediaFixtures.rawFile(new int[][] { { 6032, 4032 }, { 1620, 1080 } }));
+        Assertions.assertEquals(Optional.of(1620), TikaUtil.extractWidth(fast));
+    }
+
+    @Test
+    public void testMp4MatchesTika() throws Exception {
+        final Metadata fast = assertMatchesTika(MediaFixtures.anamorphicMp4());
+        Assertions.assertEquals(Optional.of(1440), TikaUtil.extractWidth(fast));
+        Assertions.assertTrue(TikaUtil.extractVideoDuration(fast).isPresent());
+    }
+}
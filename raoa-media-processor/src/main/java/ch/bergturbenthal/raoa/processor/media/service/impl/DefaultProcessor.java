@@ -2,6 +2,7 @@ package ch.bergturbenthal.raoa.processor.media.service.impl;
 
 import ch.bergturbenthal.raoa.elastic.model.AlbumEntryData;
 import ch.bergturbenthal.raoa.elastic.repository.AlbumDataEntryRepository;
+import ch.bergturbenthal.raoa.libs.model.XmpData;
 import ch.bergturbenthal.raoa.libs.properties.Properties;
 import ch.bergturbenthal.raoa.libs.service.AlbumList;
 import ch.bergturbenthal.raoa.libs.service.AsyncService;
@@ -10,8 +11,6 @@ import ch.bergturbenthal.raoa.libs.service.ThumbnailFilenameService;
 import ch.bergturbenthal.raoa.libs.util.TikaUtil;
 import ch.bergturbenthal.raoa.processor.media.properties.JobProperties;
 import ch.bergturbenthal.raoa.processor.media.service.Processor;
-import com.adobe.internal.xmp.XMPMeta;
-import com.adobe.internal.xmp.XMPMetaFactory;
 import com.drew.lang.Charsets;
 import lombok.Cleanup;
 import lombok.extern.slf4j.Slf4j;
@@ -25,13 +24,9 @@ import org.apache.commons.imaging.formats.tiff.constants.TiffTagConstants;
 import org.apache.commons.imaging.formats.tiff.write.TiffOutputDirectory;
 import org.apache.commons.imaging.formats.tiff.write.TiffOutputField;
 import org.apache.commons.imaging.formats.tiff.write.TiffOutputSet;
-import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.HttpHeaders;
 import org.apache.tika.metadata.Metadata;
-import org.apache.tika.parser.AutoDetectParser;
-import org.apache.tika.sax.BodyContentHandler;
 import org.eclipse.jgit.lib.ObjectId;
-import org.eclipse.jgit.lib.ObjectStream;
 import org.eclipse.jgit.treewalk.filter.NotTreeFilter;
 import org.eclipse.jgit.treewalk.filter.OrTreeFilter;
 import org.eclipse.jgit.treewalk.filter.PathFilter;
@@ -57,7 +52,6 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.URLDecoder;
-import java.nio.file.Path;
 import java.text.NumberFormat;
 import java.time.Duration;
 import java.util.ArrayList;
@@ -85,7 +79,6 @@ public class DefaultProcessor implements Processor {
   private final JobProperties jobProperties;
   private final AlbumList albumList;
   private final AsyncService asyncService;
-  private final AutoDetectParser parser;
   private final ThumbnailFilenameService thumbnailFilenameService;
   private final AlbumDataEntryRepository albumDataEntryRepository;
   private final Properties properties;
@@ -103,7 +96,6 @@ public class DefaultProcessor implements Processor {
     this.thumbnailFilenameService = thumbnailFilenameService;
     this.albumDataEntryRepository = albumDataEntryRepository;
     this.properties = properties;
-    parser = new AutoDetectParser();
   }
 
   private static boolean hasDcraw() {
@@ -193,27 +185,8 @@ public class DefaultProcessor implements Processor {
                                                   readFileEntryToTemp(ga, contentFile)
                                                       .flatMap(
                                                           entry ->
-                                                              asyncService
-                                                                  .asyncMono(
-                                                                      () -> {
-                                                                        BodyContentHandler handler =
-                                                                            new BodyContentHandler();
-                                                                        Metadata metadata =
-                                                                            new Metadata();
-
-                                                                        final Path path =
-                                                                            entry.getT2().toPath();
-                                                                        try (final TikaInputStream
-                                                                            inputStream =
-                                                                                TikaInputStream.get(
-                                                                                    path)) {
-                                                                          parser.parse(
-                                                                              inputStream,
-                                                                              handler,
-                                                                              metadata);
-                                                                          return metadata;
-                                                                        }
-                                                                      })
+                                                              ga.entryMetdata(
+                                                                      entry.getT1().getFileId())
                                                                   .map(
                                                                       metadata ->
                                                                           Tuples.of(
@@ -225,21 +198,7 @@ public class DefaultProcessor implements Processor {
                                                       .map(GitAccess.GitFileEntry::getFileId)
                                                       .flatMap(
                                                           entry ->
-                                                              ga.readObject(entry)
-                                                                  .flatMap(
-                                                                      loader ->
-                                                                          asyncService.asyncMono(
-                                                                              () -> {
-                                                                                try (final
-                                                                                ObjectStream
-                                                                                    stream =
-                                                                                        loader
-                                                                                            .openStream()) {
-                                                                                  return XMPMetaFactory
-                                                                                      .parse(
-                                                                                          stream);
-                                                                                }
-                                                                              }))
+                                                              ga.readXmpData(entry)
                                                                   .map(
                                                                       meta ->
                                                                           Tuples.of(
@@ -382,7 +341,7 @@ public class DefaultProcessor implements Processor {
                                                         params.getT1().getFileId();
                                                     final Optional<ObjectId> xmpFileId =
                                                         params.getT4();
-                                                    final Optional<XMPMeta> xmpMeta =
+                                                    final Optional<XmpData> xmpData =
                                                         params.getT5();
                                                     return albumDataEntryRepository
                                                         .save(
@@ -392,7 +351,7 @@ public class DefaultProcessor implements Processor {
                                                                 params.getT1().getNameString(),
                                                                 metadata,
                                                                 xmpFileId,
-                                                                xmpMeta,
+                                                                xmpData,
                                                                 properties.getTimeZone()))
                                                         .doOnNext(
                                                             f -> log.info("stored " + filename));
@@ -6,6 +6,7 @@ import ch.bergturbenthal.raoa.libs.service.GitAccess;
 import ch.bergturbenthal.raoa.viewer.service.AuthorizationManager;
 import jakarta.servlet.http.HttpServletRequest;
 import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.transport.ReceivePack;
@@ -46,7 +47,8 @@ public class HttpRepositoryResolver
     }
 
     @Override
-    public Repository open(final HttpServletRequest req, final String name) throws ServiceNotAuthorizedException {
+    public Repository open(final HttpServletRequest req, final String name)
+            throws ServiceNotAuthorizedException, RepositoryNotFoundException {
         User user = extractUser(req);
 
         final UUID albumId = UUID.fromString(name);
@@ -57,7 +59,10 @@ public class HttpRepositoryResolver
 
         final Repository repository = albumList.getAlbum(albumId).flatMap(GitAccess::getRepository)
                 .block(Duration.ofSeconds(10));
+        if (repository == null)
+            throw new RepositoryNotFoundException(name);
         reverseMap.put(repository, albumId);
+        // the servlet closes the repository after the request
         return repository;
     }
 
@@ -77,6 +82,7 @@ public class HttpRepositoryResolver
                     .flatMap(a -> a.getAccess().getRepository().map(repo -> Tuples.of(a.getAlbumId(), repo)))
                     .toIterable()) {
                 reverseMap.put(entry.getT2(), entry.getT1());
+                entry.getT2().close();
             }
         }
         final UUID albumId = reverseMap.get(db);
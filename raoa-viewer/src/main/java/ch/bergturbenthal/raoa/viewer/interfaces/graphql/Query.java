@@ -80,9 +80,8 @@ public class Query {
     @QueryMapping()
     public Flux<Album> listAlbums() {
         return queryContextSupplier.createContext()
-                .flatMapMany(queryContext -> dataViewService.listAlbums()
-                        .filterWhen(albumData -> authorizationManager
-                                .canUserAccessToAlbum(queryContext.getSecurityContext(), albumData.getRepositoryId()))
+                .flatMapMany(queryContext -> authorizationManager
+                        .findAccessibleAlbums(queryContext.getSecurityContext())
                         .map(album -> new Album(album.getRepositoryId(), queryContext, Mono.just(album))));
     }
 
@@ -2,6 +2,7 @@ package ch.bergturbenthal.raoa.viewer.properties;
 
 import java.io.File;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.Map;
 import lombok.Data;
@@ -21,6 +22,8 @@ public class ViewerProperties {
     private boolean alwaysShowLatestRepository = false;
     private boolean allowAlsoDebugging = false;
     private boolean newUi = false;
+    // album create times and group albums of the per user acl are reloaded in the background after this time
+    private Duration aclRefreshInterval = Duration.ofSeconds(10);
 
     public ViewerProperties() throws IOException {
 
@@ -20,6 +20,11 @@ public interface AuthorizationManager {
 
     Flux<AlbumData> findVisibleAlbums(SecurityContext context);
 
+    /**
+     * Like findVisibleAlbums, but also with the latest album when it is always shown
+     */
+    Flux<AlbumData> findAccessibleAlbums(SecurityContext context);
+
     Mono<Boolean> canUserAccessToAlbum(SecurityContext context, UUID album);
 
     Mono<Boolean> canUserModifyAlbum(SecurityContext context, UUID album);
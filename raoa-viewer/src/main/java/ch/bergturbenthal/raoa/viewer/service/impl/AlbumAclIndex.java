@@ -0,0 +1,107 @@
+package ch.bergturbenthal.raoa.viewer.service.impl;
+
+import ch.bergturbenthal.raoa.elastic.model.AlbumData;
+import ch.bergturbenthal.raoa.elastic.model.Group;
+import ch.bergturbenthal.raoa.elastic.model.GroupMembership;
+import ch.bergturbenthal.raoa.elastic.model.User;
+import ch.bergturbenthal.raoa.elastic.service.DataViewService;
+import ch.bergturbenthal.raoa.viewer.properties.ViewerProperties;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The albums a user can see through its own visible albums and the groups it is member of. The create time of all
+ * albums and the visible albums of all groups are reloaded in the background after the acl refresh interval and after
+ * every data update of this instance, requests only wait for the first load. The set of a user is only computed again
+ * when the user or these inputs have changed.
+ */
+@Slf4j
+@Service
+public class AlbumAclIndex {
+    private final Map<UUID, UserAcl> userAcls = new ConcurrentHashMap<>();
+    private final Flux<AclInputs> inputs;
+
+    public AlbumAclIndex(final DataViewService dataViewService, final ViewerProperties viewerProperties) {
+        final Mono<AclInputs> load = Mono.zip(
+                dataViewService.listAlbumCreateTimes().collectMap(AlbumData::getRepositoryId,
+                        album -> Optional.ofNullable(album.getCreateTime()).orElse(Instant.MIN)),
+                dataViewService.listGroups().collectMap(Group::getId,
+                        group -> Optional.ofNullable(group.getVisibleAlbums()).orElse(Collections.emptySet())))
+                .map(t -> new AclInputs(t.getT1(), t.getT2())).onErrorResume(ex -> {
+                    log.warn("Cannot load album acl", ex);
+                    return Mono.empty();
+                });
+        // one load at a time, updates while loading start one more load afterwards
+        inputs = Flux.<Object> merge(Flux.interval(Duration.ZERO, viewerProperties.getAclRefreshInterval()),
+                dataViewService.dataUpdates()).onBackpressureLatest().concatMap(update -> load, 1)
+                // the same instance while nothing has changed keeps the computed sets valid
+                .distinctUntilChanged().replay(1).autoConnect();
+    }
+
+    static boolean membershipMatches(final GroupMembership groupMembership, final Instant createTime) {
+        return Optional.ofNullable(groupMembership.getFrom()).map(from -> from.isBefore(createTime)).orElse(true)
+                && Optional.ofNullable(groupMembership.getUntil()).map(until -> until.isAfter(createTime)).orElse(true);
+    }
+
+    private static Set<UUID> computeVisibleAlbums(final User user, final AclInputs inputs) {
+        final Set<UUID> visibleAlbums = new HashSet<>(user.getVisibleAlbums());
+        for (GroupMembership membership : user.getGroupMembership()) {
+            final Set<UUID> groupAlbums = inputs.getGroupAlbums().get(membership.getGroup());
+            if (groupAlbums == null)
+                continue;
+            for (UUID album : groupAlbums) {
+                final Instant createTime = inputs.getAlbumCreateTimes().get(album);
+                if (createTime != null && membershipMatches(membership, createTime))
+                    visibleAlbums.add(album);
+            }
+        }
+        return Collections.unmodifiableSet(visibleAlbums);
+    }
+
+    public Mono<Set<UUID>> visibleAlbums(final User user) {
+        return inputs.next().map(current -> visibleAlbums(user, current));
+    }
+
+    /**
+     * Empty if the album was not known yet when the inputs were loaded
+     */
+    public Mono<Boolean> canAccess(final User user, final UUID album) {
+        return inputs.next().filter(current -> current.getAlbumCreateTimes().containsKey(album))
+                .map(current -> visibleAlbums(user, current).contains(album));
+    }
+
+    private Set<UUID> visibleAlbums(final User user, final AclInputs current) {
+        final UserAcl acl = userAcls.get(user.getId());
+        if (acl != null && acl.getInputs() == current && acl.getUser().equals(user))
+            return acl.getVisibleAlbums();
+        final Set<UUID> visibleAlbums = computeVisibleAlbums(user, current);
+        userAcls.put(user.getId(), new UserAcl(user, current, visibleAlbums));
+        return visibleAlbums;
+    }
+
+    @Value
+    private static class AclInputs {
+        Map<UUID, Instant> albumCreateTimes;
+        Map<UUID, Set<UUID>> groupAlbums;
+    }
+
+    @Value
+    private static class UserAcl {
+        User user;
+        AclInputs inputs;
+        Set<UUID> visibleAlbums;
+    }
+}
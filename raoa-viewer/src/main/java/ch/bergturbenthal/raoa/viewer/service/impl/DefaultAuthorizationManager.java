@@ -3,11 +3,10 @@ package ch.bergturbenthal.raoa.viewer.service.impl;
 import ch.bergturbenthal.raoa.elastic.model.AlbumData;
 import ch.bergturbenthal.raoa.elastic.model.AuthenticationId;
 import ch.bergturbenthal.raoa.elastic.model.Group;
-import ch.bergturbenthal.raoa.elastic.model.GroupMembership;
 import ch.bergturbenthal.raoa.elastic.model.PersonalUserData;
 import ch.bergturbenthal.raoa.elastic.model.User;
 import ch.bergturbenthal.raoa.elastic.service.DataViewService;
-import ch.bergturbenthal.raoa.libs.service.AlbumList;
+import ch.bergturbenthal.raoa.libs.service.AutoaddIndex;
 import ch.bergturbenthal.raoa.viewer.properties.ViewerProperties;
 import ch.bergturbenthal.raoa.viewer.service.AuthorizationManager;
 import lombok.extern.slf4j.Slf4j;
@@ -19,40 +18,30 @@ import org.springframework.security.oauth2.jwt.Jwt;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.util.function.Tuple2;
-import reactor.util.function.Tuples;
 
-import java.time.Duration;
 import java.time.Instant;
-import java.util.Comparator;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
-import java.util.stream.Collectors;
 
 @Slf4j
 @Service
 public class DefaultAuthorizationManager implements AuthorizationManager {
     private final Mono<UUID> latestAlbum;
     private final DataViewService dataViewService;
+    private final AlbumAclIndex albumAclIndex;
 
-    public DefaultAuthorizationManager(final AlbumList albumList, final DataViewService dataViewService,
-            final ViewerProperties viewerProperties) {
+    public DefaultAuthorizationManager(final AutoaddIndex autoaddIndex, final DataViewService dataViewService,
+            final ViewerProperties viewerProperties, final AlbumAclIndex albumAclIndex) {
         if (viewerProperties.isAlwaysShowLatestRepository())
-            latestAlbum = albumList.listAlbums()
-                    .flatMap(a -> a.getAccess().readAutoadd().reduce((t1, t2) -> t1.isAfter(t2) ? t1 : t2)
-                            .map(d -> Tuples.of(d, a.getAlbumId())))
-                    .collect(Collectors.maxBy(Comparator.comparing(Tuple2::getT1))).filter(Optional::isPresent)
-                    .map(Optional::get).map(Tuple2::getT2).cache(Duration.ofMinutes(5));
+            latestAlbum = Mono.defer(autoaddIndex::latestAlbum);
         else
             latestAlbum = Mono.just(UUID.randomUUID());
         this.dataViewService = dataViewService;
-    }
-
-    private static boolean membershipMatches(final GroupMembership groupMembership, final Instant createTime) {
-        return Optional.ofNullable(groupMembership.getFrom()).map(from -> from.isBefore(createTime)).orElse(true)
-                && Optional.ofNullable(groupMembership.getUntil()).map(until -> until.isAfter(createTime)).orElse(true);
+        this.albumAclIndex = albumAclIndex;
     }
 
     @Override
@@ -123,16 +112,9 @@ public class DefaultAuthorizationManager implements AuthorizationManager {
 
     @Override
     public Flux<AlbumData> findVisibleAlbumsOfUser(User user) {
-        final Set<UUID> directVisibleAlbums = user.getVisibleAlbums();
-        return dataViewService.listAlbums().filterWhen(album -> {
-            if (user.isSuperuser() || directVisibleAlbums.contains(album.getRepositoryId()))
-                return Mono.just(true);
-            final Instant createTime = album.getCreateTime();
-            return Flux.fromIterable(user.getGroupMembership())
-                    .filter(groupMembership -> membershipMatches(groupMembership, createTime))
-                    .map(GroupMembership::getGroup).flatMap(dataViewService::findGroupById)
-                    .any(g -> g.getVisibleAlbums().contains(album.getRepositoryId()));
-        });
+        if (user.isSuperuser())
+            return dataViewService.listAlbums();
+        return albumAclIndex.visibleAlbums(user).flatMapMany(dataViewService::listAlbums);
     }
 
     @Override
@@ -140,6 +122,22 @@ public class DefaultAuthorizationManager implements AuthorizationManager {
         return currentUser(context).flatMapMany(this::findVisibleAlbumsOfUser);
     }
 
+    @Override
+    public Flux<AlbumData> findAccessibleAlbums(final SecurityContext context) {
+        final Mono<Optional<UUID>> latest = latestAlbum.map(Optional::of).defaultIfEmpty(Optional.empty());
+        return currentUser(context).map(Optional::of).defaultIfEmpty(Optional.empty()).flatMapMany(user -> {
+            if (user.map(User::isSuperuser).orElse(false))
+                return dataViewService.listAlbums();
+            final Mono<Set<UUID>> visibleAlbums = user.map(albumAclIndex::visibleAlbums)
+                    .orElse(Mono.just(Collections.emptySet()));
+            return Mono.zip(visibleAlbums, latest).flatMapMany(t -> {
+                final Set<UUID> albums = new HashSet<>(t.getT1());
+                t.getT2().ifPresent(albums::add);
+                return dataViewService.listAlbums(albums);
+            });
+        });
+    }
+
     @Override
     public Mono<Boolean> canUserAccessToAlbum(final SecurityContext context, final UUID album) {
         return canUserAccessToAlbum(album, currentUser(context));
@@ -163,20 +161,24 @@ public class DefaultAuthorizationManager implements AuthorizationManager {
         final Mono<Boolean> canAccessAlbum = currentUser.flatMap(u -> {
             if (u.isSuperuser() || u.getVisibleAlbums().contains(album))
                 return Mono.just(true);
-
-            final Mono<Instant> createAlbumTimeMono = dataViewService.readAlbum(album)
-                    .map(albumData -> Optional.ofNullable(albumData.getCreateTime()).orElse(Instant.MIN)).cache();
-            return Flux.fromIterable(u.getGroupMembership())
-                    .flatMap(groupMembership -> dataViewService.findGroupById(groupMembership.getGroup())
-                            .filterWhen(group -> createAlbumTimeMono
-                                    .map(createAlbumTime -> membershipMatches(groupMembership, createAlbumTime))))
-                    .flatMapIterable(Group::getVisibleAlbums).any(album::equals);
+            // albums created after the last load of the acl inputs are checked one by one
+            return albumAclIndex.canAccess(u, album).switchIfEmpty(Mono.defer(() -> canAccessByGroups(u, album)));
         }).defaultIfEmpty(false);
         return Mono.zip(canAccessAlbum, latestAlbum.map(album::equals)).map(t -> t.getT1() || t.getT2())
         // .log("can access " + album)
         ;
     }
 
+    private Mono<Boolean> canAccessByGroups(final User user, final UUID album) {
+        final Mono<Instant> createAlbumTimeMono = dataViewService.readAlbum(album)
+                .map(albumData -> Optional.ofNullable(albumData.getCreateTime()).orElse(Instant.MIN)).cache();
+        return Flux.fromIterable(user.getGroupMembership())
+                .flatMap(groupMembership -> dataViewService.findGroupById(groupMembership.getGroup())
+                        .filterWhen(group -> createAlbumTimeMono.map(
+                                createAlbumTime -> AlbumAclIndex.membershipMatches(groupMembership, createAlbumTime))))
+                .flatMapIterable(Group::getVisibleAlbums).any(album::equals);
+    }
+
     @Override
     public Mono<Boolean> canUserManageUsers(final SecurityContext context) {
         return currentUser(context).map(User::isSuperuser)